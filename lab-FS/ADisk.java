@@ -11,10 +11,16 @@
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 
@@ -27,12 +33,21 @@ public class ADisk implements AutoCloseable {
 
   // 一些磁盘分区的定义，包括super block、log region的范围定义
   // 磁盘大小为8MB = 2^23，扇区大小 = 512B = 2^9 总共16K个扇区
+  // （以-Dlabfs.sectorSize=4096启动时扇区为4KB，日志仍是1K个扇区）
   // 其中1024=1K个日志块
   // 由于元数据等都由ADisk自定义，超级块用logStatus替代
   // 暂时设计布局为
   // 1个超级扇区 + 1K个日志扇区 + 剩余的数据扇区
   private static final int LOG_STATUS_SECTOR_NUMBER = 0;
   private static final int LOG_REGION = 1;
+  // genTag分配的tag从这里开始
+  private static final int FIRST_TAG = 16;
+
+  // Disk的工作线程数，写回和前台读可以同时在磁盘上执行
+  private static final int DISK_WORKERS = 4;
+
+  // 默认后端前面的内存热扇区层大小（log status、PTree位图/tnode表等元数据）
+  private static final int HOT_SECTORS = 512;
 
   // -------------------------------------------------------
   // member variables
@@ -45,6 +60,10 @@ public class ADisk implements AutoCloseable {
 
   private Vector<Integer> committedOrder;
   private AtomicLong nextCommitSeq;
+  private AtomicInteger nextTag;
+
+  // 卷的总扇区数：格式化时取底层Disk的大小写入超级块，挂载时从超级块读出
+  private int numSectors;
 
   private Thread writeBackThread;
 
@@ -69,12 +88,31 @@ public class ADisk implements AutoCloseable {
   //
   // -------------------------------------------------------
   public ADisk(boolean format) {
+    this(format, null);
+  }
+
+  // 指定Disk的存储后端（例如MappedDiskBackend），null表示默认的DISK.dat文件
+  // 默认文件不再逐个扇区同步写，而是在barrier和commit扇区处force一次
+  // 默认文件前面加一层按访问频率管理的内存热扇区，热扇区的写在flush时才落到文件
+  public ADisk(boolean format, DiskBackend backend) {
     try {
       activeTransactionList = new ActiveTransactionList();
       writeBackList = new WriteBackList();
       logStatus = new LogStatus();
       callbackTracker = new CallbackTracker();
-      disk = new Disk(callbackTracker);
+      if (backend == null) {
+        backend = new TieredDiskBackend(new FileDiskBackend(Disk.PATH, false), HOT_SECTORS);
+      }
+      // 前台读不应排在大量写回之后：按优先级分类，每类内部用deadline调度
+      disk = new Disk(callbackTracker, backend, DISK_WORKERS, new PriorityDiskScheduler());
+      // 恢复时逐个扇区读日志，打开预读把它变成按窗口读
+      disk.setReadAhead(Disk.READ_AHEAD_SECTORS);
+      // -Dlabfs.trace=<file>：记录所有磁盘请求（含格式化/恢复），供DiskTraceReplayer离线重放
+      // 同一进程里每新建一个ADisk都会从头重新记录
+      String tracePath = System.getProperty("labfs.trace");
+      if (tracePath != null) {
+        disk.startTrace(tracePath);
+      }
 
       lock = new SimpleLock();
       writeBackCond = lock.newCondition();
@@ -83,15 +121,19 @@ public class ADisk implements AutoCloseable {
 
       committedOrder = new Vector<>();
       nextCommitSeq = new AtomicLong(1);
+      nextTag = new AtomicInteger(0);
 
 
       // 格式化磁盘或者日志恢复
       if (format) {
         formatDisk();
+        numSectors = disk.getNumSectors();
+        logStatus.setNumSectors(numSectors);
         logStatus.recoverySectorsInUse(0, 0);
         byte[] buffer = new byte[Disk.SECTOR_SIZE];
         logStatus.writeLogStatus(buffer);
-        disk.startRequest(Disk.WRITE, 0, LOG_STATUS_SECTOR_NUMBER, buffer);
+        disk.addBarrier();
+        disk.startRequest(Disk.WRITE, 0, LOG_STATUS_SECTOR_NUMBER, buffer, true);
         callbackTracker.waitForTag(0);
       } else {
         recovery();
@@ -121,13 +163,19 @@ public class ADisk implements AutoCloseable {
   // Return the total number of data sectors that
   // can be used *not including space reseved for
   // the log or other data sructures*. This
-  // number will be smaller than Disk.NUM_OF_SECTORS.
+  // number will be smaller than getNumSectors().
   //
   // -------------------------------------------------------
   public int getNSectors() {
     // 对于ADisk，只关心自己负责的1 + 日志区域
     // PTree等上层模块可以在剩余的部分设置自己的元数据区域
-    return Disk.NUM_OF_SECTORS - (1 + REDO_LOG_SECTORS); 
+    return numSectors - (1 + REDO_LOG_SECTORS); 
+  }
+
+  // 自定义
+  // 卷的总扇区数（包括超级块和日志区域），由超级块记录
+  public int getNumSectors() {
+    return numSectors;
   }
 
   // 自定义
@@ -217,33 +265,52 @@ public class ADisk implements AutoCloseable {
       // 获取事务的log sector list
       byte[] transLog = transaction.getSectorsForLog();
 
-      // 将header + [updated sector]写入磁盘log并等待返回
+      // 整个日志镜像拷入一块池化的direct buffer
+      // 将header + [updated sector]作为向量请求写入磁盘log
       tags.clear();
-      byte[] headerBuffer = new byte[Disk.SECTOR_SIZE];
-      System.arraycopy(transLog, 0, headerBuffer, 0, Disk.SECTOR_SIZE);
-      tag = genTag(transaction.getTransID(), Disk.WRITE, logStart);
-      tags.add(tag);
-      disk.startRequest(Disk.WRITE, tag, logIndex2secNum(logStart, 0), headerBuffer);
-
-      // tag的构造方法直接采用transID + sec num，也能确保全局唯一和可读，header默认为0
-      for (int i = 0; i < logSectors - 2; ++i) {
-        byte[] buffer = new byte[Disk.SECTOR_SIZE];
-        transaction.getUpdateI(i, buffer);
-        tag = genTag(transaction.getTransID(), Disk.WRITE, logStart + i + 1);
-        tags.add(tag);
-        disk.startRequest(Disk.WRITE, tag, logIndex2secNum(logStart, i + 1), buffer);
+      SectorBuffer logBuffer = SectorBufferPool.SHARED.get(logSectors);
+      logBuffer.put(0, transLog, 0, logSectors * Disk.SECTOR_SIZE);
+      ArrayList<DiskResult> batch = new ArrayList<>();
+      addLogRequests(Disk.WRITE, logStart, 0, logBuffer.slice(0, logSectors - 1), tags, batch);
+      // 日志写优先于写回
+      for (DiskResult dr : batch) {
+        dr.setPriority(DiskResult.PRIO_SYNC_COMMIT);
       }
-      // commit扇区和前面的header扇区+更新扇区之间有barrier
+      // commit扇区依赖本事务的header扇区+更新扇区，不用barrier，
+      // 其他事务的写回不会挡住这次提交
       // 只需要等待commit扇区写入
+      // 在提交请求前登记，避免回调先于登记到达
       callbackTracker.dontWaitForTags(tags);
-      // 添加barrier
-      disk.addBarrier();
 
-      // 最后写入commit sector
-      byte[] commitBuffer = new byte[Disk.SECTOR_SIZE];
-      System.arraycopy(transLog, (logSectors - 1) * Disk.SECTOR_SIZE, commitBuffer, 0, Disk.SECTOR_SIZE);
-      tag = genTag(transaction.getTransID(), Disk.WRITE, logStart + logSectors - 1);
-      disk.startRequest(Disk.WRITE, tag, logIndex2secNum(logStart, logSectors - 1), commitBuffer);
+      // 最后写入commit sector，回调前必须已经持久化
+      tag = genTag();
+      DiskResult commitRequest = DiskResult.pooled(Disk.WRITE, tag, logIndex2secNum(logStart, logSectors - 1), logBuffer.slice(logSectors - 1, 1));
+      commitRequest.after(batch);
+      commitRequest.setDurable(true);
+      commitRequest.setPriority(DiskResult.PRIO_SYNC_COMMIT);
+      batch.add(commitRequest);
+
+      // 事务释放的扇区在commit持久化之后才discard：崩溃时若事务没有提交，这些扇区仍在使用
+      // 末尾再加一个barrier，之后重新分配这些扇区的写回不会被discard抹掉
+      List<int[]> discards = transaction.getDiscards();
+      if (!discards.isEmpty()) {
+        Vector<Integer> discardTags = new Vector<>();
+        for (int[] range : discards) {
+          int discardTag = genTag();
+          batch.add(new DiskResult(Disk.DISCARD, discardTag, range[0], range[1], null).after(commitRequest));
+          discardTags.add(discardTag);
+        }
+        batch.add(new DiskResult(Disk.BARRIER, DiskResult.RESERVED_TAG, 0, null));
+        callbackTracker.dontWaitForTags(discardTags);
+      }
+
+      // 日志和commit sector一次提交
+      // disk在请求完成前持有自己的引用，提交后即可释放
+      try {
+        disk.startRequests(batch);
+      } finally {
+        logBuffer.release();
+      }
 
       // 这里持有锁等待，所有事务提交全变成顺序了
       callbackTracker.waitForTag(tag);
@@ -318,38 +385,61 @@ public class ADisk implements AutoCloseable {
   public void readSector(TransID tid, int sectorNum, byte buffer[])
       throws IOException, IllegalArgumentException,
       IndexOutOfBoundsException {
+    readSectors(tid, sectorNum, 1, buffer);
+  }
+
+  // 自定义
+  // 读取从firstSector开始的nSectors个连续扇区，语义与readSector相同
+  // 不在事务或写回队列中的扇区通过一次向量请求从disk读出
+  public void readSectors(TransID tid, int firstSector, int nSectors, byte buffer[])
+      throws IOException, IllegalArgumentException,
+      IndexOutOfBoundsException {
     try {
       lock.lock();
 
-      if (sectorNum < 0 || sectorNum >= Disk.NUM_OF_SECTORS) {
+      if (nSectors < 1 || firstSector < 0 || (long) firstSector + nSectors > numSectors) {
         throw new IndexOutOfBoundsException("Bad sec num");
       }
-      if (buffer == null || buffer.length != Disk.SECTOR_SIZE) {
+      if (buffer == null || buffer.length != nSectors * Disk.SECTOR_SIZE) {
         throw new IllegalArgumentException("Bad buffer");
       }
       Transaction transaction = activeTransactionList.get(tid);
       if (transaction == null) {
         throw new IllegalArgumentException("Bad transaction id");
       }
-      // 首先查事务是否更新过该sector
-      if (transaction.checkRead(sectorNum, buffer)) {
-        // Common.debugPrintln("trans id: ", transaction.getTransID().toInt(), "; sector num: ", sectorNum,
-        //     "; read from own updated sectors");
-        return;
+
+      // 首先查事务是否更新过该sector，再查写回队列
+      boolean[] cached = new boolean[nSectors];
+      int nCached = 0;
+      byte[] sector = new byte[Disk.SECTOR_SIZE];
+      for (int i = 0; i < nSectors; ++i) {
+        if (transaction.checkRead(firstSector + i, sector)
+            || writeBackList.checkRead(firstSector + i, sector)) {
+          System.arraycopy(sector, 0, buffer, i * Disk.SECTOR_SIZE, Disk.SECTOR_SIZE);
+          cached[i] = true;
+          ++nCached;
+        }
       }
-      // 查写回队列
-      if (writeBackList.checkRead(sectorNum, buffer)) {
-        // Common.debugPrintln("trans id: ", transaction.getTransID().toInt(), "; sector num: ", sectorNum,
-        //     "; read from write back list");
+      if (nCached == nSectors) {
         return;
       }
 
-      // 向disk发起请求并等待
-      int tag = genTag(tid, Disk.READ, sectorNum);
-      disk.startRequest(Disk.READ, tag, sectorNum, buffer);
-      callbackTracker.waitForTag(tag);
-      // Common.debugPrintln("trans id: ", transaction.getTransID().toInt(), "; sector num: ", sectorNum,
-      //       "; read from disk");
+      // 向disk发起请求并等待，有部分扇区命中时先读到池化的临时缓冲区
+      if (nCached == 0) {
+        await(disk.submit(Disk.READ, firstSector, nSectors, buffer, false));
+        return;
+      }
+      SectorBuffer diskBuffer = SectorBufferPool.SHARED.get(nSectors);
+      try {
+        await(disk.submit(Disk.READ, firstSector, diskBuffer, false));
+        for (int i = 0; i < nSectors; ++i) {
+          if (!cached[i]) {
+            diskBuffer.get(i * Disk.SECTOR_SIZE, buffer, i * Disk.SECTOR_SIZE, Disk.SECTOR_SIZE);
+          }
+        }
+      } finally {
+        diskBuffer.release();
+      }
     } finally {
       lock.unlock();
     }
@@ -380,7 +470,7 @@ public class ADisk implements AutoCloseable {
     try {
       lock.lock();
 
-      if (sectorNum < 0 || sectorNum >= Disk.NUM_OF_SECTORS) {
+      if (sectorNum < 0 || sectorNum >= numSectors) {
         throw new IndexOutOfBoundsException("Bad sec num");
       }
       if (buffer == null || buffer.length != Disk.SECTOR_SIZE) {
@@ -398,6 +488,58 @@ public class ADisk implements AutoCloseable {
     }
   }
 
+  // 自定义
+  // 事务不再需要firstSector开始的nSectors个扇区（例如释放的数据块）
+  // 事务提交后对这些扇区发出DISCARD，之后它们的内容不确定，直到再次写入；
+  // abort则什么都不做。超级块和日志区域不能discard
+  public void discardSectors(TransID tid, int firstSector, int nSectors)
+      throws IllegalArgumentException,
+      IndexOutOfBoundsException {
+    try {
+      lock.lock();
+
+      if (nSectors < 1 || firstSector < getFirstAvailableSector()
+          || (long) firstSector + nSectors > numSectors) {
+        throw new IndexOutOfBoundsException("Bad sec num");
+      }
+      Transaction transaction = activeTransactionList.get(tid);
+      if (transaction == null) {
+        throw new IllegalArgumentException("Bad trans id");
+      }
+      transaction.addDiscard(firstSector, nSectors);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // 自定义
+  // 将buffer中的nSectors个扇区作为firstSector开始的连续扇区写入事务
+  public void writeSectors(TransID tid, int firstSector, int nSectors, byte buffer[])
+      throws IllegalArgumentException,
+      IndexOutOfBoundsException {
+    try {
+      lock.lock();
+
+      if (nSectors < 1 || firstSector < 0 || (long) firstSector + nSectors > numSectors) {
+        throw new IndexOutOfBoundsException("Bad sec num");
+      }
+      if (buffer == null || buffer.length != nSectors * Disk.SECTOR_SIZE) {
+        throw new IllegalArgumentException("Bad buffer");
+      }
+      Transaction transaction = activeTransactionList.get(tid);
+      if (transaction == null) {
+        throw new IllegalArgumentException("Bad trans id");
+      }
+
+      for (int i = 0; i < nSectors; ++i) {
+        transaction.addWrite(firstSector + i,
+            Arrays.copyOfRange(buffer, i * Disk.SECTOR_SIZE, (i + 1) * Disk.SECTOR_SIZE));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
   public Vector<Integer> committedOrder() {
     return committedOrder;
   }
@@ -426,14 +568,25 @@ public class ADisk implements AutoCloseable {
           }
 
           // 将该事务的更新块写入磁盘
+          // 每个扇区拷入池化的direct buffer，提交后释放自己的引用
           updatedSectors = transaction.getNUpdatedSectors();
+          ArrayList<DiskResult> batch = new ArrayList<>();
+          byte[] buffer = new byte[Disk.SECTOR_SIZE];
           for (int i = 0; i < updatedSectors; ++i) {
-            byte[] buffer = new byte[Disk.SECTOR_SIZE];
             sectorNum = transaction.getUpdateISecNum(i);
             transaction.getUpdateI(i, buffer);
-            tag = genTag(transaction.getTransID(), Disk.WRITE, sectorNum);
+            SectorBuffer sectorBuffer = SectorBufferPool.SHARED.get(1);
+            sectorBuffer.put(0, buffer, 0, Disk.SECTOR_SIZE);
+            tag = genTag();
             tags.add(tag);
-            disk.startRequest(Disk.WRITE, tag, sectorNum, buffer);
+            batch.add(DiskResult.pooled(Disk.WRITE, tag, sectorNum, sectorBuffer));
+          }
+          try {
+            disk.startRequests(batch);
+          } finally {
+            for (DiskResult request : batch) {
+              request.getSectorBuffer().release();
+            }
           }
           callbackTracker.waitForTags(tags);
 
@@ -443,7 +596,11 @@ public class ADisk implements AutoCloseable {
           assert logStatus.getLatestWBSeq() + 1 == transaction.getCommittedSeq();
           logStatus.setLatestWBSeq(transaction.getCommittedSeq());
           logStatus.writeLogStatus(logStatusBuffer);
-          disk.startRequest(Disk.WRITE, 0, LOG_STATUS_SECTOR_NUMBER, logStatusBuffer);
+          // 写回的扇区必须先于新的tail持久化，只依赖本事务的写回
+          DiskResult statusRequest = new DiskResult(Disk.WRITE, 0, LOG_STATUS_SECTOR_NUMBER, logStatusBuffer);
+          statusRequest.after(batch);
+          statusRequest.setDurable(true);
+          disk.startRequests(Collections.singletonList(statusRequest));
           callbackTracker.waitForTag(0); // 等待以保证更新顺序
           // Common.debugPrintln("Write back", transaction.recallLogSectorStart(), "seq", transaction.getCommittedSeq());
           writeBackList.removeNextWriteback();
@@ -456,10 +613,23 @@ public class ADisk implements AutoCloseable {
       // Common.debugPrintln("write back thread exit");
   }
 
-  // 希望构造具有一定意义的tag
-  // 高16位为事务id，后8位为 R(0)/W(1)，后八位为扇区号
-  private static int genTag(TransID transID, int op, int sectorNum) {
-    return (transID.toInt() & 0xFFFF0000) | ((op & 0x1) << 8) | (sectorNum & 0xFF);
+  // 等待submit提交的请求完成，磁盘失效时转换为IOException
+  private static DiskResult await(CompletableFuture<DiskResult> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  // tag只需要在同时未完成的请求之间唯一
+  // 原先由事务id和截断到8位的扇区号拼成，磁盘变大后不同扇区的请求会冲突
+  // 改为递增计数，0和LOG_REGION留给log status和格式化使用
+  private int genTag() {
+    return FIRST_TAG + Math.floorMod(nextTag.getAndIncrement(), Integer.MAX_VALUE - FIRST_TAG);
   }
 
   // 目前只需要清空super block（log status)
@@ -475,14 +645,24 @@ public class ADisk implements AutoCloseable {
     byteBuffer.putInt(0);
 
     Vector<Integer> tags = new Vector<>();
+    ArrayList<DiskResult> batch = new ArrayList<>();
     try {
-      disk.startRequest(Disk.WRITE, 0, LOG_STATUS_SECTOR_NUMBER, buffer);
+      // 先discard整个卷，旧数据占用的空间还给后端（文件镜像变成稀疏文件），
+      // 格式化的代价只和写入的元数据有关
+      int discardTag = genTag();
+      batch.add(new DiskResult(Disk.DISCARD, discardTag, LOG_REGION, disk.getNumSectors() - LOG_REGION, null));
+      tags.add(discardTag);
+      batch.add(new DiskResult(Disk.BARRIER, DiskResult.RESERVED_TAG, 0, null));
+
+      batch.add(new DiskResult(Disk.WRITE, 0, LOG_STATUS_SECTOR_NUMBER, buffer));
       tags.add(0);
 
-      for (int i = LOG_REGION; i < Disk.ADISK_REDO_LOG_SECTORS; ++i) {
-        disk.startRequest(Disk.WRITE, i, i, buffer);
-        tags.add(i);
-      }
+      // 整个日志区域作为一个向量请求清零
+      int nLogSectors = Disk.ADISK_REDO_LOG_SECTORS - LOG_REGION;
+      batch.add(new DiskResult(Disk.WRITE, LOG_REGION, LOG_REGION, nLogSectors,
+          new byte[nLogSectors * Disk.SECTOR_SIZE]));
+      tags.add(LOG_REGION);
+      disk.startRequests(batch);
       callbackTracker.waitForTags(tags);
     } catch (IOException e) {
       e.printStackTrace();
@@ -511,13 +691,19 @@ public class ADisk implements AutoCloseable {
       disk.startRequest(Disk.READ, 0, LOG_STATUS_SECTOR_NUMBER, buffer);
       callbackTracker.waitForTag(0);
       logStatus = LogStatus.parseLogStatus(buffer);
+      // 日志和上层的布局都以扇区为单位，扇区大小不同的卷无法解析
+      if (logStatus.getSectorSize() != Disk.SECTOR_SIZE) {
+        throw new IOException("Volume formatted with " + logStatus.getSectorSize()
+                              + "-byte sectors, disk uses " + Disk.SECTOR_SIZE);
+      }
+      // 卷大小以超级块记录为准，不能超过底层设备
+      if (logStatus.getNumSectors() > disk.getNumSectors()) {
+        throw new IOException("Volume larger than disk");
+      }
+      numSectors = (int) logStatus.getNumSectors();
       tail = logStatus.getTail();
       latestRWSeq = logStatus.getLatestWBSeq();
       
-      // 临时用一个“假”事务，主要用于构造tag
-      TransID transID = new TransID(0);
-      int tag = 0;
-      
       TransactionHeader[] headerList = new TransactionHeader[1];
       LinkedHashMap<Integer, byte[]> sectorWriteRecords = null;
 
@@ -525,9 +711,7 @@ public class ADisk implements AutoCloseable {
       Common.debugPrintln("head", head);
       while (true) {
         // 读取下一个事务的首个扇区并判断是否合法
-        tag = genTag(transID, Disk.READ, logIndex2secNum(0, head));
-        disk.startRequest(Disk.READ, tag, logIndex2secNum(0, head), buffer);
-        callbackTracker.waitForTag(tag);
+        await(disk.submit(Disk.READ, logIndex2secNum(0, head), buffer));
 
         logSectors = Transaction.parseHeader(buffer, headerList);
         if (logSectors == -1 || headerList[0] == null || headerList[0].status != Transaction.COMMITTED || headerList[0].logStart != head) {
@@ -545,20 +729,32 @@ public class ADisk implements AutoCloseable {
 
         sectorWriteRecords = new LinkedHashMap<>();
         tags.clear();
+        byte[][] updateBuffers = new byte[headerList[0].sectorNumList.size()][];
+        int nUpdates = 0;
         for (Integer sectorNum : headerList[0].sectorNumList) {
-          ++head;
-          tag = genTag(transID, Disk.READ, logIndex2secNum(0, head));
-          tags.add(tag);
-          sectorWriteRecords.put(sectorNum, new byte[Disk.SECTOR_SIZE]);
-          disk.startRequest(Disk.READ, tag, logIndex2secNum(0, head), sectorWriteRecords.get(sectorNum));
+          updateBuffers[nUpdates] = new byte[Disk.SECTOR_SIZE];
+          sectorWriteRecords.put(sectorNum, updateBuffers[nUpdates]);
+          ++nUpdates;
+        }
+        if (nUpdates > 0) {
+          ArrayList<DiskResult> batch = new ArrayList<>();
+          SectorBuffer updates = SectorBufferPool.SHARED.get(nUpdates);
+          try {
+            addLogRequests(Disk.READ, head, 1, updates, tags, batch);
+            disk.startRequests(batch);
+            callbackTracker.waitForTags(tags);
+            for (int i = 0; i < nUpdates; ++i) {
+              updates.get(i * Disk.SECTOR_SIZE, updateBuffers[i], 0, Disk.SECTOR_SIZE);
+            }
+          } finally {
+            updates.release();
+          }
         }
-        callbackTracker.waitForTags(tags);
+        head += nUpdates;
 
         // 读取commit sector并验证合法性
         ++head;
-        tag = genTag(transID, Disk.READ, logIndex2secNum(0, head));
-        disk.startRequest(Disk.READ, tag, logIndex2secNum(0, head), buffer);
-        callbackTracker.waitForTag(tag);
+        await(disk.submit(Disk.READ, logIndex2secNum(0, head), buffer));
 
         Transaction transaction = new Transaction(headerList[0], sectorWriteRecords);
         transaction.writeCommit(commitBuffer);
@@ -603,9 +799,30 @@ public class ADisk implements AutoCloseable {
       } catch (InterruptedException e) {
           e.printStackTrace();
       }
+      try {
+        disk.stopTrace();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
       Common.debugPrintln("ADisk exit");
     }
 
+  // 将buf作为日志中从logStart + index开始的连续扇区读写
+  // 每段连续的物理扇区构造一个向量请求加入batch，日志回绕时最多拆成两个
+  // 由调用者统一提交
+  private void addLogRequests(int op, int logStart, int index,
+      SectorBuffer buf, Vector<Integer> tags, ArrayList<DiskResult> batch) {
+    int done = 0;
+    while (done < buf.getNSectors()) {
+      int secNum = logIndex2secNum(logStart, index + done);
+      int n = Math.min(buf.getNSectors() - done, LOG_REGION + REDO_LOG_SECTORS - secNum);
+      int tag = genTag();
+      tags.add(tag);
+      batch.add(DiskResult.pooled(op, tag, secNum, buf.slice(done, n)));
+      done += n;
+    }
+  }
+
   // logStart是在磁盘日志区为事务分配的空间的逻辑起始位置
   // index是指定的扇区的逻辑下标
   // 日志是循环的
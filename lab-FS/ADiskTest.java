@@ -16,6 +16,7 @@ public class ADiskTest {
   public static void main(String[] args) throws InterruptedException {
     sequentialTest();
     concurrentTest(50, 100, 0);
+    largeVolumeTest();
     // recoveryTest();
     System.out.println("All Tests Passed!");
     System.exit(0);
@@ -112,6 +113,36 @@ public class ADiskTest {
     System.out.println("Test 1 Passed!");
   }
 
+  // 卷比默认的NUM_OF_SECTORS大时，高处的扇区也要能写入、读回
+  private static void largeVolumeTest() {
+    System.out.println("Test 4: test sectors beyond the default disk size");
+
+    int numSectors = 4 * Disk.NUM_OF_SECTORS;
+    int sectorNum = numSectors - 1;
+    byte[] buffer = new byte[Disk.SECTOR_SIZE];
+    byte[] readBuffer = new byte[Disk.SECTOR_SIZE];
+    Common.setBuffer((byte) 0x5a, buffer);
+
+    try {
+      ADisk aDisk = new ADisk(true, new RamDiskBackend(false, numSectors));
+      assert aDisk.getNumSectors() == numSectors;
+
+      TransID transID1 = aDisk.beginTransaction();
+      aDisk.writeSector(transID1, sectorNum, buffer);
+      aDisk.commitTransaction(transID1);
+
+      // 写回前后都应读到提交的数据
+      TransID transID2 = aDisk.beginTransaction();
+      aDisk.readSector(transID2, sectorNum, readBuffer);
+      assert Arrays.equals(readBuffer, buffer);
+      aDisk.commitTransaction(transID2);
+    } catch (Exception e) {
+      e.printStackTrace();
+      assert false;
+    }
+    System.out.println("Test 4 Passed!");
+  }
+
   private static void concurrentTest(int threadCount, int totSector, double prob) {
     System.out.println("Test 2: test concurrent write & read & commit / abort");
 
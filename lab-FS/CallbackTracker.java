@@ -14,6 +14,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Vector;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.locks.Condition;
 
 public class CallbackTracker implements DiskCallback {
@@ -45,6 +46,28 @@ public class CallbackTracker implements DiskCallback {
         }
     }
 
+    // 一批请求只加一次锁、唤醒一次
+    @Override
+    public void requestsDone(List<DiskResult> results) {
+        boolean added = false;
+        try {
+            lock.lock();
+            for (DiskResult result : results) {
+                if (ignoreTags.contains(result.getTag())) {
+                    ignoreTags.remove(result.getTag());
+                } else {
+                    doneTags.put(result.getTag(), result);
+                    added = true;
+                }
+            }
+            if (added) {
+                doneCond.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     //
     // Wait for one tag to be done
     //
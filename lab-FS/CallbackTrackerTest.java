@@ -1,4 +1,5 @@
 
+import java.util.ArrayList;
 import java.util.Vector;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.CountDownLatch;
@@ -10,6 +11,7 @@ public class CallbackTrackerTest {
     public static void main(String[] args) throws InterruptedException {
         testSimpleAddWait(5, 20);
         testDontWait(5, 20);
+        testBatchDone(20);
 
         System.out.println("All Tests Passed!");
     }
@@ -61,6 +63,33 @@ public class CallbackTrackerTest {
         System.out.println("Test 2 Passed!");
     }
 
+    private static void testBatchDone(int times) {
+        System.out.println("Test 3: test batch done");
+        CallbackTracker callbackTracker = new CallbackTracker();
+        ArrayList<DiskResult> batch = new ArrayList<>();
+        Vector<Integer> tags = new Vector<>();
+
+        // 偶数tag忽略，奇数tag等待，一次requestsDone全部送达
+        for (int i = 0; i < times; ++i) {
+            batch.add(new DiskResult(Disk.READ, i, 0, null));
+            if (i % 2 == 0) {
+                callbackTracker.dontWaitForTag(i);
+            } else {
+                tags.add(i);
+            }
+        }
+        Thread thread = new Thread(() -> {
+            callbackTracker.requestsDone(batch);
+        });
+        thread.start();
+        Vector<DiskResult> results = callbackTracker.waitForTags(tags);
+        assert results.size() == times / 2;
+        for (DiskResult result : results) {
+            assert result.getTag() % 2 == 1;
+        }
+        System.out.println("Test 3 Passed!");
+    }
+
     private static void performTagWait(CallbackTracker callbackTracker,
                                        CountDownLatch latch, int threadCount, int times) {
         for (int i = 0; i < threadCount; i += 2) {
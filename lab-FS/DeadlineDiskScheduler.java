@@ -0,0 +1,302 @@
+/*
+ * DeadlineDiskScheduler.java
+ *
+ * Read-preferring deadline policy, after the Linux
+ * deadline I/O scheduler. Reads and writes (and
+ * DISCARDs, which go with the writes) are queued
+ * separately, each both in sector order and in arrival
+ * order:
+ *
+ *  -- requests go out in batches of up to fifoBatch, in
+ *     ascending sector order from where the last one
+ *     ended, all in one direction (reads or writes)
+ *  -- between batches reads are preferred, but after
+ *     writesStarved read batches in a row with writes
+ *     waiting, a write batch goes
+ *  -- a batch starts at the oldest request of its
+ *     direction instead of the next sector if that
+ *     request has waited longer than its expiry time
+ *
+ * so a foreground read waits for at most one write batch
+ * behind a writeback burst, while writes cannot be
+ * starved for ever.
+ *
+ * Barriers are kept as in ElevatorDiskScheduler: only
+ * head-epoch writes may go, any read may, and a BARRIER
+ * cannot retire while reads queued ahead of it are
+ * waiting. A write whose deadline has passed still waits
+ * for the barriers ahead of it; its clock only matters
+ * once it is in the head epoch.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class DeadlineDiskScheduler implements DiskScheduler{
+  public static final long DEFAULT_READ_EXPIRE_NANOS = 500L * 1000 * 1000;
+  public static final long DEFAULT_WRITE_EXPIRE_NANOS = 5000L * 1000 * 1000;
+  public static final int DEFAULT_WRITES_STARVED = 2;
+  public static final int DEFAULT_FIFO_BATCH = 16;
+
+  //
+  // A queued request. It sits in a sector-sorted queue
+  // and a FIFO; whichever hands it out first marks it
+  // taken and the other skips it.
+  //
+  private static class Queued{
+    DiskResult dr;
+    Epoch epoch;
+    long arrived;
+    boolean taken;
+    Queued(DiskResult dr, Epoch epoch, long arrived){
+      this.dr = dr;
+      this.epoch = epoch;
+      this.arrived = arrived;
+      this.taken = false;
+    }
+  }
+
+  //
+  // Requests queued in one direction: by sector and by
+  // arrival
+  //
+  private static class Queue{
+    TreeMap<Integer, ArrayDeque<Queued>> sorted = new TreeMap<>();
+    ArrayDeque<Queued> fifo = new ArrayDeque<Queued>();
+    int count = 0;
+  }
+
+  //
+  // Requests queued between two barriers. Each epoch
+  // holds its own writes; reads only count here (they
+  // live in the shared read queue).
+  //
+  private static class Epoch{
+    Queue writes = new Queue();
+    int nReads = 0;
+    boolean closed = false; // A BARRIER follows this epoch
+  }
+
+  private ArrayDeque<Epoch> epochs;
+  private Queue reads;
+  private long readExpireNanos;
+  private long writeExpireNanos;
+  private int writesStarved;
+  private int fifoBatch;
+
+  private boolean batchIsRead;  // Direction of the current batch
+  private int batchLeft;        // Requests left in it
+  private int starved;          // Read batches since writes last went
+  private int position;         // Where the last request ended
+
+  //-------------------------------------------------------
+  // DeadlineDiskScheduler -- the Linux defaults: reads
+  // expire after 500 ms, writes after 5 s, two read
+  // batches per write batch under contention, 16
+  // requests per batch
+  //-------------------------------------------------------
+  public DeadlineDiskScheduler()
+  {
+    this(DEFAULT_READ_EXPIRE_NANOS, DEFAULT_WRITE_EXPIRE_NANOS,
+         DEFAULT_WRITES_STARVED, DEFAULT_FIFO_BATCH);
+  }
+
+  public DeadlineDiskScheduler(long readExpireNanos, long writeExpireNanos,
+                               int writesStarved, int fifoBatch)
+  {
+    if(readExpireNanos < 0 || writeExpireNanos < 0
+       || writesStarved < 0 || fifoBatch < 1){
+      throw new IllegalArgumentException("Bad deadline parameters");
+    }
+    this.epochs = new ArrayDeque<Epoch>();
+    this.epochs.addLast(new Epoch());
+    this.reads = new Queue();
+    this.readExpireNanos = readExpireNanos;
+    this.writeExpireNanos = writeExpireNanos;
+    this.writesStarved = writesStarved;
+    this.fifoBatch = fifoBatch;
+    this.batchIsRead = true;
+    this.batchLeft = 0;
+    this.starved = 0;
+    this.position = 0;
+  }
+
+  public void add(DiskResult dr)
+  {
+    Epoch tail = epochs.getLast();
+    Queued q;
+
+    if(dr.getOperation() == Disk.BARRIER){
+      tail.closed = true;
+      epochs.addLast(new Epoch());
+      return;
+    }
+    q = new Queued(dr, tail, System.nanoTime());
+    if(dr.getOperation() == Disk.READ){
+      enqueue(reads, q);
+      tail.nReads++;
+    }
+    else{
+      enqueue(tail.writes, q);
+    }
+  }
+
+  public boolean barrierAtHead()
+  {
+    Epoch head = epochs.getFirst();
+    return head.closed && head.nReads == 0 && head.writes.count == 0;
+  }
+
+  public void removeBarrier()
+  {
+    assert(barrierAtHead());
+    epochs.removeFirst();
+  }
+
+  //-------------------------------------------------------
+  // next() -- carry on with the current batch if it has
+  // room and its direction has something at or above
+  // position; otherwise start a new batch.
+  //-------------------------------------------------------
+  public DiskResult next()
+  {
+    Queue writes = epochs.getFirst().writes;
+    Queued q = null;
+    long now;
+
+    if(batchLeft > 0){
+      q = ceiling(batchIsRead ? reads : writes, position);
+    }
+    if(q == null){
+      if(reads.count == 0 && writes.count == 0){
+        return null;
+      }
+      if(reads.count > 0 && (writes.count == 0 || starved < writesStarved)){
+        batchIsRead = true;
+        starved = writes.count > 0 ? starved + 1 : 0;
+      }
+      else{
+        batchIsRead = false;
+        starved = 0;
+      }
+      now = System.nanoTime();
+      q = batchIsRead ? start(reads, readExpireNanos, now)
+        : start(writes, writeExpireNanos, now);
+      batchLeft = fifoBatch;
+    }
+    take(q);
+    batchLeft--;
+    return q.dr;
+  }
+
+  public DiskResult removeWrite(int sectorNum)
+  {
+    ArrayDeque<Queued> at = epochs.getFirst().writes.sorted.get(sectorNum);
+
+    if(at == null){
+      return null;
+    }
+    for(Queued q : at){
+      if(q.dr.getOperation() == Disk.WRITE){
+        take(q);
+        return q.dr;
+      }
+    }
+    return null; // Only DISCARDs start here
+  }
+
+  public DiskResult removeSuperseded(DiskResult dr)
+  {
+    ArrayDeque<Queued> at = epochs.getLast().writes.sorted.get(dr.getSectorNum());
+
+    if(at == null){
+      return null;
+    }
+    for(Queued q : at){
+      if(DiskScheduler.supersedes(dr, q.dr)){
+        remove(q);
+        return q.dr;
+      }
+    }
+    return null;
+  }
+
+  //-------------------------------------------------------
+  // start -- first request of a batch: the oldest one if
+  // it has expired, else the next one in sector order
+  // (wrapping to the lowest sector)
+  //-------------------------------------------------------
+  private Queued start(Queue queue, long expireNanos, long now)
+  {
+    Queued oldest = oldest(queue);
+    Queued q;
+
+    if(now - oldest.arrived >= expireNanos){
+      return oldest;
+    }
+    q = ceiling(queue, position);
+    return q != null ? q : queue.sorted.firstEntry().getValue().getFirst();
+  }
+
+  private static Queued ceiling(Queue queue, int sectorNum)
+  {
+    Map.Entry<Integer, ArrayDeque<Queued>> e = queue.sorted.ceilingEntry(sectorNum);
+    return e == null ? null : e.getValue().getFirst();
+  }
+
+  //-------------------------------------------------------
+  // oldest -- head of the FIFO, dropping entries the
+  // sorted side already handed out
+  //-------------------------------------------------------
+  private static Queued oldest(Queue queue)
+  {
+    while(queue.fifo.getFirst().taken){
+      queue.fifo.removeFirst();
+    }
+    return queue.fifo.getFirst();
+  }
+
+  private static void enqueue(Queue queue, Queued q)
+  {
+    queue.sorted.computeIfAbsent(q.dr.getSectorNum(), k -> new ArrayDeque<Queued>())
+      .addLast(q);
+    queue.fifo.addLast(q);
+    queue.count++;
+  }
+
+  //-------------------------------------------------------
+  // take -- remove q from its queue and move the head
+  // past it
+  //-------------------------------------------------------
+  private void take(Queued q)
+  {
+    remove(q);
+    position = q.dr.getSectorNum() + q.dr.getNSectors();
+  }
+
+  private void remove(Queued q)
+  {
+    Queue queue = q.dr.getOperation() == Disk.READ ? reads : q.epoch.writes;
+    ArrayDeque<Queued> at = queue.sorted.get(q.dr.getSectorNum());
+
+    at.remove(q);
+    if(at.isEmpty()){
+      queue.sorted.remove(q.dr.getSectorNum());
+    }
+    q.taken = true;
+    queue.count--;
+    if(queue.count == 0){
+      queue.fifo.clear();
+    }
+    if(q.dr.getOperation() == Disk.READ){
+      q.epoch.nReads--;
+    }
+    if(queue.fifo.peekFirst() == q){
+      queue.fifo.removeFirst();
+    }
+  }
+}
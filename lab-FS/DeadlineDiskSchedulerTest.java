@@ -0,0 +1,98 @@
+import java.util.HashSet;
+
+public class DeadlineDiskSchedulerTest {
+    //-------------------------------------------------------
+    // main() -- DeadlineDiskScheduler test
+    //-------------------------------------------------------
+    public static void main(String[] args) {
+        testReadsFirst();
+        testWritesNotStarved();
+        testReadExpiry();
+        testBarrierRules();
+
+        System.out.println("All Tests Passed!");
+    }
+
+    // 大量写回排在前面时，后到的读在第一批就被发出
+    private static void testReadsFirst() {
+        System.out.println("Test 1: test reads first");
+        DeadlineDiskScheduler s = new DeadlineDiskScheduler();
+
+        for (int i = 0; i < 300; ++i) {
+            s.add(request(Disk.WRITE, i, i));
+        }
+        s.add(request(Disk.READ, 1000, 5000));
+        assert s.next().getTag() == 1000;
+        System.out.println("Test 1 Passed!");
+    }
+
+    // 读写都在排队时，每writesStarved批读之后必须发一批写
+    private static void testWritesNotStarved() {
+        System.out.println("Test 2: test writes not starved");
+        DeadlineDiskScheduler s = new DeadlineDiskScheduler(
+            DeadlineDiskScheduler.DEFAULT_READ_EXPIRE_NANOS,
+            DeadlineDiskScheduler.DEFAULT_WRITE_EXPIRE_NANOS, 2, 4);
+
+        for (int i = 0; i < 100; ++i) {
+            s.add(request(Disk.READ, i, i));
+            s.add(request(Disk.WRITE, 1000 + i, 1000 + i));
+        }
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 24; ++i) {
+            order.append(s.next().getOperation() == Disk.READ ? 'r' : 'w');
+        }
+        assert order.toString().equals("rrrrrrrrwwwwrrrrrrrrwwww") : order;
+        System.out.println("Test 2 Passed!");
+    }
+
+    // 过期的读优先于扇区顺序
+    private static void testReadExpiry() {
+        System.out.println("Test 3: test read expiry");
+        DeadlineDiskScheduler s = new DeadlineDiskScheduler(0,
+            DeadlineDiskScheduler.DEFAULT_WRITE_EXPIRE_NANOS, 2, 1);
+
+        s.add(request(Disk.READ, 1, 500));
+        s.add(request(Disk.READ, 2, 100));
+        s.add(request(Disk.READ, 3, 300));
+        // 按扇区顺序会先发100，但500最早到达且已过期
+        assert s.next().getTag() == 1;
+        assert s.next().getTag() == 2;
+        assert s.next().getTag() == 3;
+        assert s.next() == null;
+        System.out.println("Test 3 Passed!");
+    }
+
+    // 写不能越过barrier，读可以；barrier要等前面的读发出后才能移除
+    private static void testBarrierRules() {
+        System.out.println("Test 4: test barrier rules");
+        DeadlineDiskScheduler s = new DeadlineDiskScheduler();
+
+        s.add(request(Disk.WRITE, 1, 10));
+        s.add(request(Disk.READ, 2, 20));
+        s.add(request(Disk.BARRIER, DiskResult.RESERVED_TAG, 0));
+        s.add(request(Disk.WRITE, 3, 11));
+        s.add(request(Disk.READ, 4, 12));
+        s.add(request(Disk.DISCARD, 5, 13));
+
+        assert s.removeWrite(11) == null;
+        HashSet<Integer> tags = new HashSet<>();
+        DiskResult dr;
+        while ((dr = s.next()) != null) {
+            tags.add(dr.getTag());
+        }
+        assert tags.size() == 3 && tags.contains(1) && tags.contains(2) && tags.contains(4) : tags;
+        assert s.barrierAtHead();
+
+        s.removeBarrier();
+        assert s.removeWrite(13) == null;
+        dr = s.removeWrite(11);
+        assert dr != null && dr.getTag() == 3;
+        assert s.next().getTag() == 5;
+        assert s.next() == null;
+        System.out.println("Test 4 Passed!");
+    }
+
+    private static DiskResult request(int op, int tag, int sectorNum) {
+        return new DiskResult(op, tag, sectorNum, op == Disk.BARRIER ? null : new byte[0]);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * DirectDiskBackend.java
+ *
+ * Disk storage in a file opened for direct I/O
+ * (ExtendedOpenOption.DIRECT, i.e. O_DIRECT), so sectors
+ * are not cached a second time in the host page cache
+ * under ADisk's and PTree's own caches. Writes are not
+ * synchronous; flush() does an fsync, which tells the
+ * device to empty its write cache, when anything was
+ * written since the last one. Disk flushes when a
+ * barrier retires and after a durable write, as with
+ * FileDiskBackend in group sync mode.
+ *
+ * Direct I/O must be aligned to the file system block
+ * size in file offset, length and memory address. A
+ * transfer that already is (a whole-block run to or
+ * from an aligned direct buffer, e.g. a SectorBuffer
+ * with 4 KB sectors) goes straight to the file; anything
+ * else is staged through an aligned per-thread buffer,
+ * and a write that covers only part of a block reads
+ * the block first. Writes lock the blocks they touch so
+ * two workers writing different sectors of one block do
+ * not undo each other.
+ *
+ * Not every file system supports direct I/O (tmpfs on
+ * older kernels, some network file systems). open()
+ * falls back to a group sync FileDiskBackend there.
+ * DISCARD keeps the data (allowed; see DiskBackend).
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import com.sun.nio.file.ExtendedOpenOption;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class DirectDiskBackend implements DiskBackend{
+  private static final int LOCK_STRIPES = 64;
+
+  private FileChannel channel;
+  private int align;              // Bytes
+  private int numSectors;
+  private AtomicBoolean dirty;    // Writes since the last force
+  private ReentrantLock locks[];  // Block b is guarded by locks[b % LOCK_STRIPES]
+  private ThreadLocal<ByteBuffer> staging;
+
+  //-------------------------------------------------------
+  // open -- direct I/O if the file system allows it,
+  // else a FileDiskBackend that syncs at flush()
+  //-------------------------------------------------------
+  public static DiskBackend open(String path, int numSectors)
+    throws IOException
+  {
+    try{
+      return new DirectDiskBackend(path, numSectors);
+    }
+    catch(UnsupportedOperationException | IOException e){
+      return new FileDiskBackend(path, false, numSectors);
+    }
+  }
+
+  //-------------------------------------------------------
+  // DirectDiskBackend -- fails (IOException or
+  // UnsupportedOperationException) if the file system
+  // cannot do direct I/O on path
+  //-------------------------------------------------------
+  public DirectDiskBackend(String path, int numSectors)
+    throws IOException
+  {
+    Path p = Paths.get(path);
+    long size = (long)numSectors * Disk.SECTOR_SIZE;
+    FileChannel c;
+    ByteBuffer probe;
+    int ii;
+
+    if(numSectors < 1){
+      throw new IllegalArgumentException("Bad sector count");
+    }
+    //
+    // Create and extend (sparsely) through the page cache;
+    // a one-byte write is not allowed once direct
+    //
+    c = FileChannel.open(p, StandardOpenOption.CREATE,
+                         StandardOpenOption.READ,
+                         StandardOpenOption.WRITE);
+    try{
+      if(c.size() < size){
+        c.write(ByteBuffer.allocate(1), size - 1);
+      }
+      c.force(true);
+      size = c.size();
+    }
+    finally{
+      c.close();
+    }
+
+    this.align = (int)Math.max(Disk.SECTOR_SIZE, Files.getFileStore(p).getBlockSize());
+    this.channel = FileChannel.open(p, StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE,
+                                    ExtendedOpenOption.DIRECT);
+    try{
+      probe = alignedBuffer(align);
+      channel.read(probe, 0);
+    }
+    catch(IOException e){
+      channel.close();
+      throw e;
+    }
+    this.numSectors = (int)Math.min(Integer.MAX_VALUE, size / Disk.SECTOR_SIZE);
+    this.dirty = new AtomicBoolean(false);
+    this.locks = new ReentrantLock[LOCK_STRIPES];
+    for(ii = 0; ii < LOCK_STRIPES; ii++){
+      locks[ii] = new ReentrantLock();
+    }
+    this.staging = new ThreadLocal<ByteBuffer>();
+  }
+
+  public int getNumSectors()
+  {
+    return numSectors;
+  }
+
+  //-------------------------------------------------------
+  // getAlignment -- bytes every direct transfer is a
+  // multiple of
+  //-------------------------------------------------------
+  public int getAlignment()
+  {
+    return align;
+  }
+
+  public void read(int sectorNum, int nSectors, byte b[])
+    throws IOException
+  {
+    read(sectorNum, ByteBuffer.wrap(b, 0, nSectors * Disk.SECTOR_SIZE));
+  }
+
+  public void write(int sectorNum, int nSectors, byte b[])
+    throws IOException
+  {
+    write(sectorNum, ByteBuffer.wrap(b, 0, nSectors * Disk.SECTOR_SIZE));
+  }
+
+  public void read(int sectorNum, ByteBuffer b)
+    throws IOException
+  {
+    long pos = (long)sectorNum * Disk.SECTOR_SIZE;
+    long first = pos - pos % align;
+    int len = b.remaining();
+    ByteBuffer s;
+
+    if(isAligned(pos, b)){
+      readFully(b, pos);
+      return;
+    }
+    s = stage(first, pos + len);
+    readFully(s, first);
+    s.limit((int)(pos - first) + len);
+    s.position((int)(pos - first));
+    b.put(s);
+  }
+
+  public void write(int sectorNum, ByteBuffer b)
+    throws IOException
+  {
+    long pos = (long)sectorNum * Disk.SECTOR_SIZE;
+    long end = pos + b.remaining();
+    long first = pos - pos % align;
+    long last = roundUp(end);
+    ByteBuffer s;
+
+    lockBlocks(first, last);
+    try{
+      if(isAligned(pos, b)){
+        writeFully(b, pos);
+      }
+      else{
+        s = stage(first, end);
+        if(pos != first){
+          s.limit(align);
+          readFully(s, first);
+        }
+        if(end != last && (last - align > first || pos == first)){
+          s.limit((int)(last - first));
+          s.position((int)(last - first) - align);
+          readFully(s, last - align);
+        }
+        s.limit((int)(last - first));
+        s.position((int)(pos - first));
+        s.put(b);
+        s.position(0);
+        writeFully(s, first);
+      }
+    }
+    finally{
+      unlockBlocks(first, last);
+    }
+    dirty.set(true);
+  }
+
+  //-------------------------------------------------------
+  // flush -- skip the fsync if nothing was written since
+  // the last one. One at a time, as in FileDiskBackend,
+  // so nobody returns while the fsync that covers its
+  // writes is still running.
+  //-------------------------------------------------------
+  public synchronized void flush()
+    throws IOException
+  {
+    if(dirty.getAndSet(false)){
+      channel.force(false);
+    }
+  }
+
+  public void close()
+    throws IOException
+  {
+    flush();
+    channel.close();
+  }
+
+  private boolean isAligned(long pos, ByteBuffer b)
+  {
+    return b.isDirect() && pos % align == 0 && b.remaining() % align == 0
+      && b.alignmentOffset(b.position(), align) == 0;
+  }
+
+  private long roundUp(long pos)
+  {
+    return (pos + align - 1) / align * align;
+  }
+
+  //-------------------------------------------------------
+  // stage -- this thread's aligned buffer, cleared to
+  // cover the blocks of [first, end)
+  //-------------------------------------------------------
+  private ByteBuffer stage(long first, long end)
+  {
+    int len = (int)(roundUp(end) - first);
+    ByteBuffer s = staging.get();
+
+    if(s == null || s.capacity() < len){
+      s = alignedBuffer(Math.max(len, Disk.MAX_COALESCE_SECTORS * Disk.SECTOR_SIZE
+                                 + 2 * align));
+      staging.set(s);
+    }
+    s.clear();
+    s.limit(len);
+    return s;
+  }
+
+  private ByteBuffer alignedBuffer(int len)
+  {
+    return ByteBuffer.allocateDirect(len + align).alignedSlice(align).limit(len);
+  }
+
+  //-------------------------------------------------------
+  // readFully -- fill b from pos; past the end of the
+  // file reads as zeros
+  //-------------------------------------------------------
+  private void readFully(ByteBuffer b, long pos)
+    throws IOException
+  {
+    long base = pos - b.position();
+    while(b.hasRemaining()){
+      if(channel.read(b, base + b.position()) < 0){
+        while(b.hasRemaining()){
+          b.put((byte)0);
+        }
+      }
+    }
+  }
+
+  private void writeFully(ByteBuffer b, long pos)
+    throws IOException
+  {
+    long base = pos - b.position();
+    while(b.hasRemaining()){
+      channel.write(b, base + b.position());
+    }
+  }
+
+  //-------------------------------------------------------
+  // lockBlocks -- take the stripe locks of the blocks in
+  // [first, last) in index order, so two writers never
+  // wait on each other in a cycle
+  //-------------------------------------------------------
+  private void lockBlocks(long first, long last)
+  {
+    int ii;
+    for(ii = 0; ii < LOCK_STRIPES; ii++){
+      if(stripeUsed(ii, first, last)){
+        locks[ii].lock();
+      }
+    }
+  }
+
+  private void unlockBlocks(long first, long last)
+  {
+    int ii;
+    for(ii = LOCK_STRIPES - 1; ii >= 0; ii--){
+      if(stripeUsed(ii, first, last)){
+        locks[ii].unlock();
+      }
+    }
+  }
+
+  private boolean stripeUsed(int stripe, long first, long last)
+  {
+    long b0 = first / align;
+    long nBlocks = (last - first) / align;
+    return nBlocks >= LOCK_STRIPES || Math.floorMod(stripe - b0, LOCK_STRIPES) < nBlocks;
+  }
+}
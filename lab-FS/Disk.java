@@ -9,31 +9,129 @@
  * (C) 2007,2010 Mike Dahlin
  *
  */
-import java.io.RandomAccessFile;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.Condition;
 import java.util.Random;
-import java.util.ListIterator;
 
 public class Disk{
+  // Size of a new disk image unless the backend says
+  // otherwise; see getNumSectors()
   public static final int NUM_OF_SECTORS = 16384;
-  public static final int SECTOR_SIZE = 512;
+
+  // Bytes per sector. Fixed for the life of the process:
+  // run with -Dlabfs.sectorSize=4096 to format (and later
+  // mount) a volume with 4 KB sectors. ADisk records the
+  // size in its superblock and refuses a mismatch.
+  public static final int DEFAULT_SECTOR_SIZE = 512;
+  public static final int LARGE_SECTOR_SIZE = 4096;
+  public static final int SECTOR_SIZE = sectorSizeProperty();
   public static final int ADISK_REDO_LOG_SECTORS = 1024;
 
+  // Stop growing a coalesced write once it is this long
+  public static final int MAX_COALESCE_SECTORS = 128;
+
+  // Read-ahead window for callers that turn it on with
+  // setReadAhead() (ADisk does); see TrackBuffer
+  public static final int READ_AHEAD_SECTORS = 64;
+
   /* Operation types */
   public static final int READ = 19432;
   public static final int WRITE = 43255;
   public static final int BARRIER = 134219;
+  public static final int DISCARD = 72841;
 
-  private static final String PATH = "DISK.dat";
+  public static final String PATH = "DISK.dat";
 
-  private RandomAccessFile file;
-  private LinkedList<DiskResult> pending;
+  private DiskBackend backend;
+  private int numSectors;
+  private DiskScheduler pending;
   private SimpleLock lock;
   private Condition workReady;
 
+  //
+  // Barriers split requests into epochs. The barrier
+  // between headEpoch and the next one can only be
+  // retired once no request from headEpoch is still
+  // being worked on by some DiskWorker.
+  //
+  private long headEpoch;
+  private long tailEpoch;
+  private HashMap<Long, Integer> inFlight;
+
+  //
+  // Set while a worker flushes the backend for a barrier
+  // or for needFlush. The flush runs without the lock,
+  // so other workers keep dispatching; only one flush
+  // runs at a time.
+  //
+  private boolean flushing;
+
+  //
+  // Requests from submit() not yet handed back through
+  // workDone(), so their futures can be failed if the
+  // disk dies
+  //
+  private HashSet<DiskResult> submitted;
+
+  //
+  // Writes taken off the queue because a later write in
+  // the same epoch overwrites them. They count as in
+  // flight; the next free worker completes them without
+  // any I/O.
+  //
+  private ArrayDeque<DiskResult> superseded;
+
+  //
+  // By sector, the not yet done write that superseded an
+  // earlier one there. That earlier write was called
+  // back at once, so a read queued now is held until
+  // this one is done, rather than passing it and seeing
+  // data older than both.
+  //
+  private HashMap<Integer, DiskResult> superseding;
+
+  //
+  // A request queued with dependencies (DiskResult
+  // after()). It stays out of the scheduler until they
+  // are done, then waits in needFlush if some of them
+  // wrote and are not durable yet, and in ready until a
+  // worker takes it. It counts as in flight in its epoch
+  // from the moment it is queued, so no barrier behind it
+  // retires early; a write among them still goes only
+  // once its epoch is at the head.
+  //
+  private static class Held{
+    DiskResult dr;
+    int waitingFor;      // Dependencies not yet done
+    boolean needsFlush;
+    Held(DiskResult dr){
+      this.dr = dr;
+      this.waitingFor = 0;
+      this.needsFlush = false;
+    }
+  }
+  private HashMap<DiskResult, ArrayList<Held>> dependents; // By dependency
+  private ArrayList<DiskResult> needFlush;
+  private ArrayList<DiskResult> ready;
+  private long queuedCount;  // Requests queued so far
+  private long doneCount;    // ... and through workDone()
+  private long durableUpTo;  // doneCount as of the last flush
+
+  //
+  // Counters and latency histograms; see DiskStats.
+  // headSince is when headEpoch became the head, i.e.,
+  // when the last barrier retired.
+  //
+  private DiskStats stats;
+  private long headSince;
+
   //
   // For debugging, you can make the disk "fail"
   // with some specified probability per request
@@ -44,25 +142,115 @@ public class Disk{
   private Random rand;
   private boolean diskIsDead;
 
+  //
+  // Optional device model; null means complete requests
+  // as fast as the backend allows
+  //
+  private volatile DiskLatencyModel latencyModel;
+
+  //
+  // Read-ahead window shared by the workers; null when
+  // read-ahead is off
+  //
+  private volatile TrackBuffer trackBuffer;
+
+  //
+  // Where requests are being recorded; null when not
+  //
+  private DiskTrace trace;
+
   //-------------------------------------------------------
   // Disk
   //-------------------------------------------------------
   public Disk(DiskCallback callback)
-  throws FileNotFoundException
+  throws IOException
+  {
+    this(callback, new FileDiskBackend(PATH));
+  }
+
+  //-------------------------------------------------------
+  // Disk -- use the given storage instead of the default
+  // "rws" file at PATH.
+  //-------------------------------------------------------
+  public Disk(DiskCallback callback, DiskBackend backend)
+  {
+    this(callback, backend, 1);
+  }
+
+  //-------------------------------------------------------
+  // Disk -- RAID-0 over one file per path (see
+  // StripedDiskBackend), stripeSectors sectors per stripe,
+  // with one DiskWorker per file. Same default size and
+  // sync-each-write durability as Disk(callback).
+  //-------------------------------------------------------
+  public Disk(DiskCallback callback, String paths[], int stripeSectors)
+    throws IOException
+  {
+    this(callback, 
+         new StripedDiskBackend(paths, stripeSectors, true, NUM_OF_SECTORS),
+         paths.length);
+  }
+
+  //-------------------------------------------------------
+  // Disk -- serve requests with nWorkers DiskWorker
+  // threads. Requests that are not ordered by a barrier
+  // may be in flight at the same time, so the backend
+  // must allow concurrent access to different sectors.
+  //-------------------------------------------------------
+  public Disk(DiskCallback callback, DiskBackend backend, int nWorkers)
+    throws IllegalArgumentException
+  {
+    this(callback, backend, nWorkers, new RandomDiskScheduler());
+  }
+
+  //-------------------------------------------------------
+  // Disk -- order requests with the given policy. The
+  // default RandomDiskScheduler is a test mode; use an
+  // ElevatorDiskScheduler for throughput, or a
+  // DeadlineDiskScheduler to keep reads from queueing
+  // behind bursts of writes.
+  //-------------------------------------------------------
+  public Disk(DiskCallback callback, DiskBackend backend, int nWorkers,
+              DiskScheduler scheduler)
+    throws IllegalArgumentException
   {
     DiskWorker dw;
+    int ii;
 
-    this.file = new RandomAccessFile(PATH, "rws");
-    this.pending = new LinkedList<DiskResult>();
+    if(nWorkers < 1){
+      throw new IllegalArgumentException("Bad worker count");
+    }
+    this.backend = backend;
+    this.numSectors = backend.getNumSectors();
+    this.pending = scheduler;
     this.lock = new SimpleLock();
     this.workReady = lock.newCondition();
+    this.headEpoch = 0;
+    this.tailEpoch = 0;
+    this.inFlight = new HashMap<Long, Integer>();
+    this.flushing = false;
+    this.submitted = new HashSet<DiskResult>();
+    this.superseded = new ArrayDeque<DiskResult>();
+    this.superseding = new HashMap<Integer, DiskResult>();
+    this.dependents = new HashMap<DiskResult, ArrayList<Held>>();
+    this.needFlush = new ArrayList<DiskResult>();
+    this.ready = new ArrayList<DiskResult>();
+    this.queuedCount = 0;
+    this.doneCount = 0;
+    this.durableUpTo = 0;
+    this.stats = new DiskStats();
+    this.headSince = System.nanoTime();
     this.rand = new Random();
     this.diskIsDead = false;
     this.failureProb = (float)0.0;
     this.failureCountDown = -1;
+    this.trackBuffer = null;
+    this.trace = null;
 
-    dw = new DiskWorker(this, file, callback);
-    dw.start();
+    for(ii = 0; ii < nWorkers; ii++){
+      dw = new DiskWorker(this, backend, callback);
+      dw.start();
+    }
   }
 
 
@@ -81,6 +269,138 @@ public class Disk{
       }
   }
 
+  //-------------------------------------------------------
+  // Make completions follow a device model (null for
+  // none). Takes effect for requests dispatched after
+  // the call.
+  //-------------------------------------------------------
+  public void setLatencyModel(DiskLatencyModel model)
+  {
+    this.latencyModel = model;
+  }
+
+  public DiskLatencyModel getLatencyModel()
+  {
+    return latencyModel;
+  }
+
+  //-------------------------------------------------------
+  // Fetch windowSectors sectors when reads turn
+  // sequential (0 turns read-ahead off, as it is for a
+  // new Disk). Takes effect for requests dispatched after
+  // the call.
+  //-------------------------------------------------------
+  public void setReadAhead(int windowSectors)
+  {
+    if(windowSectors < 0){
+      throw new IllegalArgumentException("Bad read-ahead window");
+    }
+    this.trackBuffer = windowSectors == 0 ? null 
+      : new TrackBuffer(windowSectors, numSectors);
+  }
+
+  public TrackBuffer getTrackBuffer()
+  {
+    return trackBuffer;
+  }
+
+  //-------------------------------------------------------
+  // startTrace -- record every request queued from now on,
+  // and its completion, to a DiskTrace at path. Replaces
+  // (and finishes) any trace already running.
+  //-------------------------------------------------------
+  public void startTrace(String path)
+    throws IOException
+  {
+    DiskTrace t = new DiskTrace(path, numSectors);
+    DiskTrace old;
+    try{
+      lock.lock();
+      old = trace;
+      trace = t;
+    }
+    finally{
+      lock.unlock();
+    }
+    if(old != null){
+      old.close();
+    }
+  }
+
+  //-------------------------------------------------------
+  // stopTrace -- finish the running trace, if any. Throws
+  // the I/O error that cut it short, if one did.
+  //-------------------------------------------------------
+  public void stopTrace()
+    throws IOException
+  {
+    DiskTrace old;
+    try{
+      lock.lock();
+      old = trace;
+      trace = null;
+    }
+    finally{
+      lock.unlock();
+    }
+    if(old != null){
+      old.close();
+    }
+  }
+
+  //-------------------------------------------------------
+  // getStats -- a snapshot of the counters and latency
+  // histograms since the disk was created or
+  // resetStats() was last called
+  //-------------------------------------------------------
+  public DiskStats getStats()
+  {
+    try{
+      lock.lock();
+      return stats.copy();
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // resetStats -- start counting afresh. Queue depth and
+  // requests in flight are kept since they are current
+  // state, not history.
+  //-------------------------------------------------------
+  public void resetStats()
+  {
+    try{
+      lock.lock();
+      stats = stats.restart();
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // sectorSizeProperty -- the sector size this process
+  // was started with
+  //-------------------------------------------------------
+  private static int sectorSizeProperty()
+  {
+    int size = Integer.getInteger("labfs.sectorSize", DEFAULT_SECTOR_SIZE);
+    if(size != DEFAULT_SECTOR_SIZE && size != LARGE_SECTOR_SIZE){
+      throw new IllegalArgumentException("Unsupported sector size " + size);
+    }
+    return size;
+  }
+
+  //-------------------------------------------------------
+  // getNumSectors -- size of this disk, from the backend
+  //-------------------------------------------------------
+  public int getNumSectors()
+  {
+    return numSectors;
+  }
+
   //-------------------------------------------------------
   // startRequest -- enqueue a read or write request. 
   // Callback will be called when it completes. 
@@ -92,26 +412,390 @@ public class Disk{
   public void startRequest(int operation, int tag, int sectorNum, byte b[])
     throws IllegalArgumentException, IOException
   {
-    DiskResult dr;
+    startRequest(operation, tag, sectorNum, b, false);
+  }
+
+  //-------------------------------------------------------
+  // startRequest -- as above. If durable is set, the write
+  // is flushed to stable storage before its callback runs
+  // (e.g., an ADisk commit sector). Other writes are only
+  // guaranteed durable once a later barrier retires.
+  //-------------------------------------------------------
+  public void startRequest(int operation, int tag, int sectorNum, byte b[],
+                           boolean durable)
+    throws IllegalArgumentException, IOException
+  {
+    startRequest(operation, tag, sectorNum, 1, b, durable);
+  }
+
+  //-------------------------------------------------------
+  // startRequest -- vectored. Transfer nSectors consecutive
+  // sectors starting at firstSector to/from b as one
+  // request with one callback.
+  //
+  // Also used for DISCARD (b is null): tell the backend
+  // the sectors no longer hold data so it can free the
+  // space behind them. Their contents are undefined until
+  // they are written again. A DISCARD is ordered like a
+  // write: it cannot pass a barrier, and is unordered
+  // with writes in the same epoch.
+  //-------------------------------------------------------
+  public void startRequest(int operation, int tag, int firstSector, 
+                           int nSectors, byte b[])
+    throws IllegalArgumentException, IOException
+  {
+    startRequest(operation, tag, firstSector, nSectors, b, false);
+  }
+
+  public void startRequest(int operation, int tag, int firstSector, 
+                           int nSectors, byte b[], boolean durable)
+    throws IllegalArgumentException, IOException
+  {
+    if(nSectors < 1){
+      throw new IllegalArgumentException("Bad sector count");
+    }
+    enqueue(new DiskResult(operation, tag, firstSector, nSectors, b), durable);
+  }
+
+  //-------------------------------------------------------
+  // startRequest -- scatter/gather. Transfer bufs.length
+  // consecutive sectors starting at firstSector; sector
+  // i goes to/from bufs[i]. Still one I/O and one
+  // callback.
+  //-------------------------------------------------------
+  public void startRequest(int operation, int tag, int firstSector, 
+                           byte bufs[][])
+    throws IllegalArgumentException, IOException
+  {
+    startRequest(operation, tag, firstSector, bufs, false);
+  }
+
+  public void startRequest(int operation, int tag, int firstSector, 
+                           byte bufs[][], boolean durable)
+    throws IllegalArgumentException, IOException
+  {
+    if(bufs == null || bufs.length < 1){
+      throw new IllegalArgumentException("Bad buffer");
+    }
+    enqueue(DiskResult.scatterGather(operation, tag, firstSector, bufs), 
+            durable);
+  }
+
+  //-------------------------------------------------------
+  // startRequest -- pooled. Transfer sb.getNSectors()
+  // consecutive sectors starting at firstSector to/from
+  // sb. Disk holds its own reference to sb until the
+  // callback returns, so the caller may release its
+  // reference at any time (e.g., right away for a write
+  // it does not care to look at again).
+  //-------------------------------------------------------
+  public void startRequest(int operation, int tag, int firstSector, 
+                           SectorBuffer sb)
+    throws IllegalArgumentException, IOException
+  {
+    startRequest(operation, tag, firstSector, sb, false);
+  }
+
+  public void startRequest(int operation, int tag, int firstSector, 
+                           SectorBuffer sb, boolean durable)
+    throws IllegalArgumentException, IOException
+  {
+    if(sb == null){
+      throw new IllegalArgumentException("Bad buffer");
+    }
+    enqueue(DiskResult.pooled(operation, tag, firstSector, sb), durable);
+  }
+
+  //-------------------------------------------------------
+  // submit -- the startRequest flavors without a tag or
+  // callback. The returned future is completed with the
+  // DiskResult when the request is done, status OK or
+  // REAL_ERROR as a callback would see it. If the disk
+  // is (or goes) dead first, the future completes
+  // exceptionally with an IOException instead.
+  //
+  // Ordering is exactly as for startRequest. Dependent
+  // stages attached with the non-async CompletableFuture
+  // methods run on a DiskWorker thread; anything that
+  // blocks, such as waiting for another Disk request,
+  // belongs in an *Async stage.
+  //-------------------------------------------------------
+  public CompletableFuture<DiskResult> submit(int operation, int sectorNum, 
+                                              byte b[])
+    throws IllegalArgumentException
+  {
+    return submit(operation, sectorNum, 1, b, false);
+  }
+
+  public CompletableFuture<DiskResult> submit(int operation, int firstSector,
+                                              int nSectors, byte b[], 
+                                              boolean durable)
+    throws IllegalArgumentException
+  {
+    if(nSectors < 1){
+      throw new IllegalArgumentException("Bad sector count");
+    }
+    return submit(new DiskResult(operation, DiskResult.RESERVED_TAG, 
+                                 firstSector, nSectors, b), 
+                  durable);
+  }
+
+  public CompletableFuture<DiskResult> submit(int operation, int firstSector,
+                                              byte bufs[][], boolean durable)
+    throws IllegalArgumentException
+  {
+    if(bufs == null || bufs.length < 1){
+      throw new IllegalArgumentException("Bad buffer");
+    }
+    return submit(DiskResult.scatterGather(operation, DiskResult.RESERVED_TAG,
+                                           firstSector, bufs), 
+                  durable);
+  }
+
+  public CompletableFuture<DiskResult> submit(int operation, int firstSector,
+                                              SectorBuffer sb, boolean durable)
+    throws IllegalArgumentException
+  {
+    if(sb == null){
+      throw new IllegalArgumentException("Bad buffer");
+    }
+    return submit(DiskResult.pooled(operation, DiskResult.RESERVED_TAG, 
+                                    firstSector, sb), 
+                  durable);
+  }
+
+  private CompletableFuture<DiskResult> submit(DiskResult dr, boolean durable)
+    throws IllegalArgumentException
+  {
+    CompletableFuture<DiskResult> f = new CompletableFuture<DiskResult>();
+    dr.setFuture(f);
+    try{
+      enqueue(dr, durable);
+    }
+    catch(IOException e){
+      f.completeExceptionally(e);
+    }
+    return f;
+  }
+
+  //-------------------------------------------------------
+  // startRequests -- enqueue a batch of requests built with
+  // the DiskResult constructors, taking the lock and
+  // waking the workers once for the whole batch. A
+  // BARRIER entry (tag RESERVED_TAG, null buffer) acts
+  // like addBarrier() at that point in the batch. Each
+  // request keeps its own durable flag and callback.
+  //
+  // Every request is checked before any is queued, so a
+  // bad batch is rejected as a whole. A request may
+  // depend (DiskResult.after()) on one earlier in the
+  // batch.
+  //-------------------------------------------------------
+  public void startRequests(List<DiskResult> reqs)
+    throws IllegalArgumentException, IOException
+  {
+    long now;
+    for(DiskResult dr : reqs){
+      if(dr.getOperation() != BARRIER){
+        checkRequest(dr);
+      }
+    }
     try{
       lock.lock();
       if(diskIsDead){
         throw new IOException("Disk is dead");
       }
-      if(sectorNum < 0 || sectorNum >= NUM_OF_SECTORS){
-        throw new IllegalArgumentException("Bad sector number");
+      checkDependencies(reqs);
+      now = System.nanoTime();
+      for(DiskResult dr : reqs){
+        if(dr.getSectorBuffer() != null){
+          dr.getSectorBuffer().retain();
+        }
+        dr.setEpoch(tailEpoch);
+        if(dr.getOperation() == WRITE){
+          cancelSuperseded(dr, now);
+        }
+        if(dr.getOperation() == BARRIER){
+          pending.add(dr);
+          tailEpoch++;
+          if(trace != null){
+            trace.barrier(now);
+          }
+        }
+        else{
+          dr.setQueueNanos(now);
+          queue(dr);
+          stats.queued(dr);
+          if(dr.getFuture() != null){
+            submitted.add(dr);
+          }
+        }
       }
-      if(b == null || b.length < SECTOR_SIZE){
+      workReady.signalAll();
+      return;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // checkRequest -- common checks for all read and write
+  // requests
+  //-------------------------------------------------------
+  private void checkRequest(DiskResult dr)
+    throws IllegalArgumentException
+  {
+    byte bufs[][] = dr.getBufs();
+    int ii;
+
+    if(dr.getSectorNum() < 0 || dr.getNSectors() < 1
+       || (long)dr.getSectorNum() + dr.getNSectors() > numSectors){
+      throw new IllegalArgumentException("Bad sector number");
+    }
+    if(dr.getOperation() != READ && dr.getOperation() != WRITE
+       && dr.getOperation() != DISCARD){
+      throw new IllegalArgumentException("Bad operation");
+    }
+    if(dr.getTag() == DiskResult.RESERVED_TAG && dr.getFuture() == null){
+      throw new IllegalArgumentException("Reserved tag");
+    }
+    if(dr.getOperation() == DISCARD){
+      return;
+    }
+    if(dr.getSectorBuffer() != null){
+      return;
+    }
+    if(bufs == null){
+      if(dr.getBuf() == null 
+         || dr.getBuf().length < dr.getNSectors() * SECTOR_SIZE){
         throw new IllegalArgumentException("Bad buffer");
       }
-      if(operation != READ && operation != WRITE){
-        throw new IllegalArgumentException("Bad operation");
+      return;
+    }
+    for(ii = 0; ii < bufs.length; ii++){
+      if(bufs[ii] == null || bufs[ii].length < SECTOR_SIZE){
+        throw new IllegalArgumentException("Bad buffer");
       }
-      if(tag == DiskResult.RESERVED_TAG){
-        throw new IllegalArgumentException("Reserved tag");
+    }
+  }
+
+  //-------------------------------------------------------
+  // checkDependencies -- each dependency of a request in
+  // reqs must be queued already or come earlier in reqs.
+  // It is then in the same epoch or an earlier one, and
+  // cannot be stuck behind a barrier that is waiting for
+  // its dependent. Caller holds lock.
+  //-------------------------------------------------------
+  private void checkDependencies(List<DiskResult> reqs)
+    throws IllegalArgumentException
+  {
+    HashSet<DiskResult> earlier = new HashSet<DiskResult>();
+    for(DiskResult dr : reqs){
+      for(DiskResult dep : dr.getDependencies()){
+        if(dep.getQueuedSeq() == 0 && !earlier.contains(dep)){
+          throw new IllegalArgumentException("Dependency not queued");
+        }
       }
-      dr = new DiskResult(operation, tag, sectorNum, b);
-      pending.addLast(dr);
+      earlier.add(dr);
+    }
+  }
+
+  //-------------------------------------------------------
+  // queue -- hand dr to the scheduler, or hold it if it
+  // has dependencies that are not done and durable, or
+  // is a read of a sector with a superseding write not
+  // done yet (see superseding). Caller holds lock.
+  //-------------------------------------------------------
+  private void queue(DiskResult dr)
+  {
+    ArrayList<DiskResult> writes = supersedingWrites(dr);
+    Held h;
+
+    dr.setQueuedSeq(++queuedCount);
+    if(trace != null){
+      trace.queued(dr);
+    }
+    if(dr.getDependencies().isEmpty() && writes.isEmpty()){
+      pending.add(dr);
+      return;
+    }
+    h = new Held(dr);
+    countInFlight(dr);
+    for(DiskResult w : writes){
+      // Only ordered behind it; the read needs no flush
+      dependents.computeIfAbsent(w, k -> new ArrayList<Held>()).add(h);
+      h.waitingFor++;
+    }
+    for(DiskResult d : dr.getDependencies()){
+      DiskResult dep = d;
+      while(dep.getSupersededBy() != null){
+        dep = dep.getSupersededBy();
+      }
+      if(dep.getOperation() != READ
+         && (dep.getDoneSeq() == 0 || dep.getDoneSeq() > durableUpTo)){
+        h.needsFlush = true;
+      }
+      if(dep.getDoneSeq() == 0){
+        dependents.computeIfAbsent(dep, k -> new ArrayList<Held>()).add(h);
+        h.waitingFor++;
+      }
+    }
+    if(h.waitingFor == 0){
+      (h.needsFlush ? needFlush : ready).add(dr);
+    }
+  }
+
+  //-------------------------------------------------------
+  // supersedingWrites -- for a READ, the writes in
+  // superseding over any of its sectors. Caller holds
+  // lock.
+  //-------------------------------------------------------
+  private ArrayList<DiskResult> supersedingWrites(DiskResult dr)
+  {
+    ArrayList<DiskResult> writes = new ArrayList<DiskResult>();
+    DiskResult w;
+    int s;
+
+    if(dr.getOperation() != READ || superseding.isEmpty()){
+      return writes;
+    }
+    for(s = dr.getSectorNum(); s < dr.getSectorNum() + dr.getNSectors(); s++){
+      w = superseding.get(s);
+      if(w != null && !writes.contains(w)){
+        writes.add(w);
+      }
+    }
+    return writes;
+  }
+
+  //-------------------------------------------------------
+  // enqueue -- queue one request from a startRequest flavor
+  //-------------------------------------------------------
+  private void enqueue(DiskResult dr, boolean durable)
+    throws IllegalArgumentException, IOException
+  {
+    checkRequest(dr);
+    try{
+      lock.lock();
+      if(diskIsDead){
+        throw new IOException("Disk is dead");
+      }
+      checkDependencies(Collections.singletonList(dr));
+      if(dr.getSectorBuffer() != null){
+        dr.getSectorBuffer().retain();
+      }
+      dr.setDurable(durable);
+      dr.setEpoch(tailEpoch);
+      dr.setQueueNanos(System.nanoTime());
+      if(dr.getFuture() != null){
+        submitted.add(dr);
+      }
+      if(dr.getOperation() == WRITE){
+        cancelSuperseded(dr, dr.getQueueNanos());
+      }
+      queue(dr);
+      stats.queued(dr);
       workReady.signal();
       return;
     }
@@ -121,7 +805,8 @@ public class Disk{
   }
 
     //
-    // Put a BARRIER marker onto queue. Reads can pass barrier but writes cannot
+    // Put a BARRIER marker onto queue. Reads can pass barrier but writes cannot.
+    // To order a request after just the ones it needs, see DiskResult.after().
     //
     public void addBarrier()
         throws IOException
@@ -133,7 +818,12 @@ public class Disk{
                 throw new IOException("Disk is dead");
             }
             dr = new DiskResult(BARRIER, DiskResult.RESERVED_TAG, 0, null);
-            pending.addLast(dr);
+            dr.setEpoch(tailEpoch);
+            pending.add(dr);
+            tailEpoch++;
+            if(trace != null){
+                trace.barrier(System.nanoTime());
+            }
         }
         finally{
             lock.unlock();
@@ -143,31 +833,65 @@ public class Disk{
   //-------------------------------------------------------
   // getWork() -- used by worker thread. Block until a
   // read or write request needs attention.
+  //
+  // Usually returns one request. If it is a write, any
+  // queued writes that may go now and continue it on
+  // consecutive sectors come along, so the worker can do
+  // them as one transfer. Each still gets its own
+  // callback.
+  //
+  // A superseded write (see cancelSuperseded()) is
+  // returned alone, ahead of everything else. A request
+  // released from its dependencies goes before anything
+  // the scheduler has, once its epoch allows; if they
+  // wrote, this worker flushes first.
   //-------------------------------------------------------
-  public DiskResult getWork()
+  public ArrayList<DiskResult> getWork()
     throws IOException
   {
-    int skip;
-    DiskResult dr;
+    ArrayList<DiskResult> work;
+    DiskResult dr = null;
+    DiskResult next;
+    boolean held = false;
+    int nSectors;
+    long now;
 
     try{
       lock.lock();
 
 
       // 
-      // Wait until there is a non-BARRIER item at front of list
-      // that we can return.
+      // Wait until the scheduler has something we can return:
+      // anything once the barriers ahead of it are retired, or
+      // a read that can pass a barrier still waiting on other
+      // workers.
       //
       // Thanks to Andrew Boyle, Matt Christen, and Fei Li for this bug fix!
       //
-      while(!diskIsDead && (pending.size() == 0 
-                            || pending.getFirst().getOperation() == BARRIER)){
-          while(!diskIsDead && pending.size() == 0){
-              workReady.awaitUninterruptibly();
+      while(!diskIsDead){
+          if(!superseded.isEmpty()){
+              work = new ArrayList<DiskResult>();
+              work.add(superseded.removeFirst());
+              return work;
+          }
+          if(!flushing && !needFlush.isEmpty()){
+              flushForDependents();
+              continue;
+          }
+          if(!flushing && pending.barrierAtHead() && !inFlight.containsKey(headEpoch)){
+              retireBarrier();
+              continue;
           }
-          while(!pending.isEmpty() && pending.getFirst().getOperation() == BARRIER){
-              pending.removeFirst();
+          dr = takeReady();
+          if(dr != null){
+              held = true;
+              break;
           }
+          dr = pending.next();
+          if(dr != null){
+              break;
+          }
+          workReady.awaitUninterruptibly();
       }
 
       
@@ -177,60 +901,276 @@ public class Disk{
         throw new IOException("Disk is dead");
       }
 
-      //
-      // Pull a random-ish item off the list. Use random
-      // to test non-fifo list...
-      //
-      // Note
-      //  -- if first item is barrier, remove it
-      //  -- writes cannot pass barrier -- if random item selected is a write past
-      //     a barrier, then just take first item on list
-      //  -- reads can pass barrier
-      //
-
-      //
-      // Remove any barriers at front of list
-      //
-      while(pending.getFirst().getOperation() == BARRIER){
-          pending.removeFirst();
+      assert(dr.getOperation() == WRITE || dr.getOperation() == READ
+             || dr.getOperation() == DISCARD);
+      now = System.nanoTime();
+      work = new ArrayList<DiskResult>();
+      work.add(dr);
+      dispatch(dr, now, held);
+      if(dr.getOperation() == WRITE){
+        nSectors = dr.getNSectors();
+        while(nSectors < MAX_COALESCE_SECTORS
+              && (next = pending.removeWrite(dr.getSectorNum() + nSectors)) != null){
+          // Each request gets its own chance to fail, as if
+          // it had been handed out alone.
+          randomlyKillDisk();
+          if(diskIsDead){
+            break;
+          }
+          work.add(next);
+          dispatch(next, now, false);
+          nSectors += next.getNSectors();
+        }
       }
+      return work;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
 
-      skip = 0;
-      if(pending.size() > 1){
-        skip = rand.nextInt(pending.size() - 1); 
+  //-------------------------------------------------------
+  // takeSuperseded() -- used by a worker that has done
+  // its work from getWork() but not yet called back for
+  // it: up to max superseded writes (see
+  // cancelSuperseded()), which are finished already, to
+  // call back for in the same batch. Never starts I/O or
+  // waits; empty if there are none.
+  //-------------------------------------------------------
+  public ArrayList<DiskResult> takeSuperseded(int max)
+  {
+    ArrayList<DiskResult> done = new ArrayList<DiskResult>();
+    try{
+      lock.lock();
+      while(done.size() < max && !superseded.isEmpty()){
+        done.add(superseded.removeFirst());
       }
-      dr = pending.get(skip);
+      return done;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
 
-      // Reads can pass barrier
-      if(dr.getOperation() == READ){
-          dr = pending.remove(skip);
-      }
-      // BARRIER is no-op; just work on first request instead
-      else if(dr.getOperation() == BARRIER){
-          dr = pending.removeFirst();
-      }
-      // Write cannot pass barrier; If skip takes us to a write past the barrier,
-      // work on first request instead.
-      else{
-          assert(dr.getOperation() == WRITE);
-          
-          ListIterator<DiskResult> li = pending.listIterator(0);
-          while(li.nextIndex() <= skip){
-              if(!li.hasNext() || li.next().getOperation() == BARRIER){
-                  skip = 0;
-                  break;
-              }
+
+  //-------------------------------------------------------
+  // workDone() -- used by worker thread once the callback
+  // for requests from getWork() and takeSuperseded() has
+  // returned.
+  // Drops Disk's reference to any pooled buffers. The
+  // worker completes the futures of submitted requests
+  // after this returns.
+  //-------------------------------------------------------
+  public void workDone(List<DiskResult> work)
+  {
+    int count;
+    int ii;
+    try{
+      lock.lock();
+      for(DiskResult dr : work){
+        if(dr.getSectorBuffer() != null){
+          dr.getSectorBuffer().release();
+        }
+        stats.completed(dr);
+        submitted.remove(dr);
+        dr.setDoneSeq(++doneCount);
+        if(trace != null){
+          trace.done(dr);
+        }
+        release(dependents.remove(dr));
+        if(dr.getOperation() == WRITE && !superseding.isEmpty()){
+          for(ii = dr.getSectorNum(); ii < dr.getSectorNum() + dr.getNSectors(); ii++){
+            superseding.remove(ii, dr);
           }
-          dr = pending.remove(skip);
+        }
+        count = inFlight.get(dr.getEpoch()) - 1;
+        if(count > 0){
+          inFlight.put(dr.getEpoch(), count);
+        }
+        else{
+          inFlight.remove(dr.getEpoch());
+          if(dr.getEpoch() == headEpoch){
+            workReady.signalAll();
+          }
+        }
       }
-      assert(dr.getOperation() == WRITE || dr.getOperation() == READ);
-      return dr;
     }
     finally{
       lock.unlock();
     }
   }
 
+  //-------------------------------------------------------
+  // cancelSuperseded -- dr, a WRITE about to join the
+  // tail epoch, overwrites queued writes in that epoch
+  // (DiskScheduler.removeSuperseded()). No read can see
+  // their data: a read in this epoch is unordered with
+  // both writes, and anything after the next barrier
+  // sees dr. Take them off the queue and let a worker
+  // call them back as done, with no I/O. A read queued
+  // once they are called back is held until dr is done
+  // (see superseding), so it cannot pass dr and see data
+  // older than both. Same-epoch writes to one sector
+  // used to land in either order; now the later one
+  // always wins. Caller holds lock.
+  //-------------------------------------------------------
+  private void cancelSuperseded(DiskResult dr, long now)
+  {
+    DiskResult old;
+    ArrayList<Held> waiting;
+    int s;
+    while((old = pending.removeSuperseded(dr)) != null){
+      old.setSuperseded(true);
+      old.setSupersededBy(dr);
+      for(s = old.getSectorNum(); s < old.getSectorNum() + old.getNSectors(); s++){
+        superseding.put(s, dr);
+      }
+      waiting = dependents.remove(old);
+      if(waiting != null){
+        dependents.computeIfAbsent(dr, k -> new ArrayList<Held>()).addAll(waiting);
+      }
+      dispatch(old, now, false);
+      stats.superseded(old);
+      superseded.addLast(old);
+    }
+  }
+
+  //-------------------------------------------------------
+  // dispatch -- dr is being handed to a worker at time
+  // now. It was held up by barriers from when it was
+  // queued until its epoch reached the head (a read that
+  // passed a barrier was not held up). A held request
+  // has counted as in flight since it was queued.
+  // Caller holds lock.
+  //-------------------------------------------------------
+  private void dispatch(DiskResult dr, long now, boolean held)
+  {
+    if(!held){
+      countInFlight(dr);
+    }
+    dr.setDispatchNanos(now);
+    stats.dispatched(dr, dr.getEpoch() == headEpoch 
+                     ? Math.max(0, headSince - dr.getQueueNanos()) : 0);
+  }
+
+  private void countInFlight(DiskResult dr)
+  {
+    Integer count = inFlight.get(dr.getEpoch());
+    inFlight.put(dr.getEpoch(), count == null ? 1 : count + 1);
+  }
+
+  //-------------------------------------------------------
+  // release -- a dependency of each of waiting is done;
+  // pass on the ones with none left. Caller holds lock.
+  //-------------------------------------------------------
+  private void release(List<Held> waiting)
+  {
+    if(waiting == null){
+      return;
+    }
+    for(Held h : waiting){
+      h.waitingFor--;
+      if(h.waitingFor == 0){
+        (h.needsFlush ? needFlush : ready).add(h.dr);
+      }
+    }
+    workReady.signalAll();
+  }
+
+  //-------------------------------------------------------
+  // takeReady -- a released request that may go now: any
+  // read, or a write or discard in the head epoch.
+  // Caller holds lock.
+  //-------------------------------------------------------
+  private DiskResult takeReady()
+  {
+    DiskResult dr;
+    int ii;
+
+    for(ii = 0; ii < ready.size(); ii++){
+      dr = ready.get(ii);
+      if(dr.getOperation() == READ || dr.getEpoch() == headEpoch){
+        ready.remove(ii);
+        return dr;
+      }
+    }
+    return null;
+  }
+
+  //-------------------------------------------------------
+  // flushForDependents -- every request in needFlush has
+  // its dependencies done. Make them durable, as a
+  // barrier would, but without waiting for anything else
+  // in flight. Requests that join needFlush during the
+  // flush wait for the next one. Caller holds lock.
+  //-------------------------------------------------------
+  private void flushForDependents()
+    throws IOException
+  {
+    long upTo = doneCount;
+    ArrayList<DiskResult> flushed = new ArrayList<DiskResult>(needFlush);
+    needFlush.clear();
+    flushUnlocked();
+    durableUpTo = Math.max(durableUpTo, upTo);
+    ready.addAll(flushed);
+  }
+
+  //-------------------------------------------------------
+  // retireBarrier -- BARRIER is at the front of the queue
+  // and every request queued before it has completed.
+  // Make those writes durable before any later write can
+  // be handed out: the barrier stays queued, and
+  // headEpoch unchanged, until the flush is done.
+  // Caller holds lock.
+  //-------------------------------------------------------
+  private void retireBarrier()
+    throws IOException
+  {
+    assert(pending.barrierAtHead());
+    assert(!inFlight.containsKey(headEpoch));
+    long start = System.nanoTime();
+    long upTo = doneCount;
+    flushUnlocked();
+    assert(pending.barrierAtHead());
+    pending.removeBarrier();
+    headEpoch++;
+    durableUpTo = Math.max(durableUpTo, upTo);
+    headSince = System.nanoTime();
+    stats.barrierRetired(headSince - start);
+  }
+
+  //-------------------------------------------------------
+  // flushUnlocked -- flush the backend with the lock
+  // dropped, so other workers can take and finish work
+  // meanwhile; flushing keeps them from starting another
+  // flush. Caller holds lock, and holds it again on
+  // return, with the workers woken to look for the work
+  // the flush let go. A failed flush kills the disk.
+  //-------------------------------------------------------
+  private void flushUnlocked()
+    throws IOException
+  {
+    IOException failed = null;
+
+    assert(!flushing);
+    flushing = true;
+    lock.unlock();
+    try{
+      backend.flush();
+    }
+    catch(IOException e){
+      failed = e;
+    }
+    finally{
+      lock.lock();
+      flushing = false;
+      workReady.signalAll();
+    }
+    if(failed != null){
+      die();
+      throw failed;
+    }
+  }
 
   //-------------------------------------------------------
   // randomlyKillDisk -- flip a coin. If heads, then 
@@ -253,10 +1193,32 @@ public class Disk{
     coin = rand.nextFloat();
     if(coin > 1.0 - failureProb){
       System.out.println("Killing disk: " + coin + " failureProb " + failureProb);
-      diskIsDead = true;
-      workReady.signalAll();
+      die();
     }
     return;
   }
 
+  //-------------------------------------------------------
+  // die -- no request will complete from now on. Wake the
+  // workers so they stop, and fail the futures of
+  // submitted requests. The futures are failed on another
+  // thread, since their dependent stages must not run
+  // under our lock. Caller holds lock.
+  //-------------------------------------------------------
+  private void die()
+  {
+    final ArrayList<DiskResult> lost = new ArrayList<DiskResult>(submitted);
+
+    diskIsDead = true;
+    workReady.signalAll();
+    submitted.clear();
+    if(!lost.isEmpty()){
+      CompletableFuture.runAsync(() -> {
+          for(DiskResult dr : lost){
+            dr.getFuture().completeExceptionally(new IOException("Disk is dead"));
+          }
+        });
+    }
+  }
+
 }
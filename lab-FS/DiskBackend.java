@@ -0,0 +1,61 @@
+/*
+ * DiskBackend.java
+ *
+ * Storage underneath a Disk. DiskWorker moves sectors
+ * between request buffers and the backend; Disk decides
+ * when the backend must be made durable.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface DiskBackend{
+  //
+  // Copy nSectors sectors starting at sectorNum into
+  // b[0..nSectors * SECTOR_SIZE)
+  //
+  public void read(int sectorNum, int nSectors, byte b[]) throws IOException;
+
+  //
+  // Copy b[0..nSectors * SECTOR_SIZE) into nSectors sectors
+  // starting at sectorNum. The write need not be durable
+  // until flush() returns.
+  //
+  public void write(int sectorNum, int nSectors, byte b[]) throws IOException;
+
+  //
+  // As above, between the sectors starting at sectorNum
+  // and b's remaining bytes (a whole number of sectors).
+  // b is usually a direct SectorBuffer, which the
+  // backend can transfer without a heap copy.
+  //
+  public void read(int sectorNum, ByteBuffer b) throws IOException;
+
+  public void write(int sectorNum, ByteBuffer b) throws IOException;
+
+  //
+  // The nSectors sectors starting at sectorNum no longer
+  // hold data (Disk.DISCARD). Their contents are undefined
+  // until written again; a backend that can, frees the
+  // storage and reads them back as zeros. The default
+  // keeps the data, which is always allowed.
+  //
+  public default void discard(int sectorNum, int nSectors) throws IOException
+  {
+  }
+
+  //
+  // Capacity in sectors. Fixed once the backend is open.
+  //
+  public int getNumSectors();
+
+  //
+  // Make all completed writes durable
+  //
+  public void flush() throws IOException;
+
+  public void close() throws IOException;
+}
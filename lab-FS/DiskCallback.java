@@ -9,6 +9,21 @@
  * (C) 2007,2010 Mike Dahlin
  *
  */
+import java.util.List;
+
 public interface DiskCallback{
   public void requestDone(DiskResult result);
+
+  //
+  // Called once for each batch of requests a worker
+  // finishes together: a run of coalesced writes, plus
+  // any superseded writes (which need no I/O) that were
+  // waiting when it finished.
+  // Override to handle the whole batch at once.
+  //
+  public default void requestsDone(List<DiskResult> results){
+    for(DiskResult result : results){
+      requestDone(result);
+    }
+  }
 }
@@ -0,0 +1,25 @@
+/*
+ * DiskLatencyModel.java
+ *
+ * Cost model for a real device. DiskWorker asks the
+ * model when a request would have finished on that
+ * device and holds the callback until then, so
+ * timings on a fast host file look like the modeled
+ * hardware.
+ *
+ * Models keep device state (head position, busy
+ * channels) and are shared by all workers of a Disk,
+ * so implementations must be thread safe.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+public interface DiskLatencyModel{
+  //
+  // A request for nSectors starting at sectorNum reaches
+  // the device at time now (System.nanoTime()). Return
+  // the time it completes.
+  //
+  public long complete(long now, int operation, int sectorNum, int nSectors);
+}
@@ -0,0 +1,61 @@
+public class DiskLatencyModelTest {
+    //-------------------------------------------------------
+    // main() -- HDD/SSD latency model test
+    //-------------------------------------------------------
+    public static void main(String[] args) {
+        testHDD();
+        testSSD();
+
+        System.out.println("All Tests Passed!");
+    }
+
+    // 顺序访问应远快于跨越整个磁盘的随机访问，且请求串行执行
+    private static void testHDD() {
+        System.out.println("Test 1: test HDD model");
+        int n = 64;
+
+        HDDLatencyModel seq = new HDDLatencyModel();
+        long now = 0;
+        for (int i = 0; i < n; ++i) {
+            now = seq.complete(now, Disk.READ, 2000 + i, 1);
+        }
+        long seqTime = now;
+
+        HDDLatencyModel rand = new HDDLatencyModel();
+        now = 0;
+        for (int i = 0; i < n; ++i) {
+            int sector = (i % 2 == 0) ? 0 : Disk.NUM_OF_SECTORS - 1;
+            now = rand.complete(now, Disk.READ, sector, 1);
+        }
+        long randTime = now;
+        System.out.println("sequential " + seqTime + " ns, random " + randTime + " ns");
+        assert seqTime * 10 < randTime;
+
+        // 同一时刻到达的两个请求，第二个排在第一个之后
+        HDDLatencyModel queued = new HDDLatencyModel();
+        long first = queued.complete(0, Disk.WRITE, 100, 1);
+        long second = queued.complete(0, Disk.WRITE, 101, 1);
+        assert second > first;
+        System.out.println("Test 1 Passed!");
+    }
+
+    // 不同通道上的页并行，同一通道上的页串行
+    private static void testSSD() {
+        System.out.println("Test 2: test SSD model");
+        int sectorsPerPage = 8;
+        SSDLatencyModel ssd = new SSDLatencyModel(4, sectorsPerPage, 50000L, 200000L);
+
+        // 4个页分布在4个通道上，只花一个页的时间
+        long done = ssd.complete(0, Disk.READ, 0, 4 * sectorsPerPage);
+        assert done == 50000L;
+
+        // 通道0已被占用，再读页4（通道0）需要排队
+        done = ssd.complete(0, Disk.READ, 4 * sectorsPerPage, 1);
+        assert done == 100000L;
+
+        // 写比读慢
+        SSDLatencyModel ssd2 = new SSDLatencyModel(4, sectorsPerPage, 50000L, 200000L);
+        assert ssd2.complete(0, Disk.WRITE, 0, 1) == 200000L;
+        System.out.println("Test 2 Passed!");
+    }
+}
@@ -9,6 +9,13 @@
  * (C) 2007,2010 Mike Dahlin
  *
  */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public class DiskResult{
   public static final int INPROGRESS = 34234;
   public static final int OK = 9083;
@@ -16,23 +23,117 @@ public class DiskResult{
   public static final int REAL_ERROR = 33245; // Real IO eror
   public static final int RESERVED_TAG = -1;
 
+  /* Priority classes, most urgent first; see PriorityDiskScheduler */
+  public static final int PRIO_SYNC_COMMIT = 0;          // Commit log writes
+  public static final int PRIO_FOREGROUND_READ = 1;      // Default for reads
+  public static final int PRIO_BACKGROUND_WRITEBACK = 2; // Default for the rest
+  public static final int NUM_PRIORITIES = 3;
+
   private int tag;  // Request identifier provided by caller
   private int status;
 
   private byte buf[];
+  private byte bufs[][];   // Scatter/gather: one sector per buffer
+  private SectorBuffer sbuf; // Pooled direct buffer
   private int secNum;
+  private int nSectors;
   private int operation;
+  private boolean durable; // Flush before calling back
+  private int priority;
+  private boolean superseded; // Overwritten while queued; never done
+  private long epoch;       // Barriers enqueued before this request
+  private long queueNanos;    // System.nanoTime() at startRequest
+  private long dispatchNanos; // ... when a worker took it
+  private long doneNanos;     // ... when the transfer finished
+  private CompletableFuture<DiskResult> future; // Disk.submit(); no callback
+  private ArrayList<DiskResult> after; // Must be done (and durable) first
+  private long queuedSeq;     // Disk's count of queued requests; 0 if never
+  private long doneSeq;       // ... of completed requests; 0 until done
+  private DiskResult supersededBy; // The write that made this one moot
 
   //-------------------------------------------------------
   // DiskResult
   //-------------------------------------------------------
   public DiskResult(int operation, int tag, int sectorNum, byte b[])
+  {
+    this(operation, tag, sectorNum, 1, b);
+  }
+
+  //-------------------------------------------------------
+  // DiskResult -- nSectors consecutive sectors starting
+  // at sectorNum, all in b
+  //-------------------------------------------------------
+  public DiskResult(int operation, int tag, int sectorNum, int nSectors, 
+                    byte b[])
   {
     this.operation = operation;
     this.tag = tag;
     this.secNum = sectorNum;
+    this.nSectors = nSectors;
     this.buf = b;
+    this.bufs = null;
     this.status = INPROGRESS;
+    this.durable = false;
+    this.priority = operation == Disk.READ ? PRIO_FOREGROUND_READ 
+      : PRIO_BACKGROUND_WRITEBACK;
+    this.after = null;
+  }
+
+  //-------------------------------------------------------
+  // scatterGather -- bufs.length consecutive sectors
+  // starting at sectorNum, sector i in bufs[i]
+  //-------------------------------------------------------
+  public static DiskResult scatterGather(int operation, int tag, int sectorNum,
+                                         byte bufs[][])
+  {
+    DiskResult dr = new DiskResult(operation, tag, sectorNum, bufs.length, 
+                                   (byte[])null);
+    dr.bufs = bufs;
+    return dr;
+  }
+
+  //-------------------------------------------------------
+  // pooled -- sb.getNSectors() consecutive sectors
+  // starting at sectorNum, all in sb
+  //-------------------------------------------------------
+  public static DiskResult pooled(int operation, int tag, int sectorNum,
+                                  SectorBuffer sb)
+  {
+    DiskResult dr = new DiskResult(operation, tag, sectorNum, 
+                                   sb.getNSectors(), (byte[])null);
+    dr.sbuf = sb;
+    return dr;
+  }
+
+  //-------------------------------------------------------
+  // after -- do not start this request until each of
+  // reqs has completed and, if it was not a READ, is
+  // durable. Only this request waits; unrelated requests
+  // keep flowing, unlike with a BARRIER. Each of reqs
+  // must be queued on the same Disk before this one
+  // (earlier in the same startRequests() batch will do).
+  // Returns this.
+  //-------------------------------------------------------
+  public DiskResult after(DiskResult... reqs)
+  {
+    return after(Arrays.asList(reqs));
+  }
+
+  public DiskResult after(Collection<DiskResult> reqs)
+  {
+    if(operation == Disk.BARRIER){
+      throw new IllegalArgumentException("Barrier with dependencies");
+    }
+    if(after == null){
+      after = new ArrayList<DiskResult>();
+    }
+    for(DiskResult dr : reqs){
+      if(dr == null || dr == this || dr.getOperation() == Disk.BARRIER){
+        throw new IllegalArgumentException("Bad dependency");
+      }
+      after.add(dr);
+    }
+    return this;
   }
   
   //-------------------------------------------------------
@@ -44,9 +145,18 @@ public class DiskResult{
   public int getSectorNum(){
     return secNum;
   }
+  public int getNSectors(){
+    return nSectors;
+  }
   public byte[] getBuf(){
     return buf;
   }
+  public byte[][] getBufs(){
+    return bufs;
+  }
+  public SectorBuffer getSectorBuffer(){
+    return sbuf;
+  }
   public void setStatus(int status){
     assert(status == INPROGRESS 
            || status == OK
@@ -60,8 +170,81 @@ public class DiskResult{
   public int getTag(){
     return tag;
   }
+  public void setDurable(boolean durable){
+    this.durable = durable;
+  }
+  public boolean isDurable(){
+    return durable;
+  }
+  public void setPriority(int priority){
+    if(priority < 0 || priority >= NUM_PRIORITIES){
+      throw new IllegalArgumentException("Bad priority");
+    }
+    this.priority = priority;
+  }
+  public int getPriority(){
+    return priority;
+  }
+  void setSuperseded(boolean superseded){
+    this.superseded = superseded;
+  }
+  public boolean isSuperseded(){
+    return superseded;
+  }
+  public void setEpoch(long epoch){
+    this.epoch = epoch;
+  }
+  public long getEpoch(){
+    return epoch;
+  }
+  public void setQueueNanos(long nanos){
+    this.queueNanos = nanos;
+  }
+  public long getQueueNanos(){
+    return queueNanos;
+  }
+  public void setDispatchNanos(long nanos){
+    this.dispatchNanos = nanos;
+  }
+  public long getDispatchNanos(){
+    return dispatchNanos;
+  }
+  public void setDoneNanos(long nanos){
+    this.doneNanos = nanos;
+  }
+  public long getDoneNanos(){
+    return doneNanos;
+  }
+  void setFuture(CompletableFuture<DiskResult> future){
+    this.future = future;
+  }
+  public CompletableFuture<DiskResult> getFuture(){
+    return future;
+  }
+  public List<DiskResult> getDependencies(){
+    return after == null ? Collections.<DiskResult>emptyList() 
+      : Collections.unmodifiableList(after);
+  }
+  void setQueuedSeq(long seq){
+    this.queuedSeq = seq;
+  }
+  long getQueuedSeq(){
+    return queuedSeq;
+  }
+  void setDoneSeq(long seq){
+    this.doneSeq = seq;
+  }
+  long getDoneSeq(){
+    return doneSeq;
+  }
+  void setSupersededBy(DiskResult dr){
+    this.supersededBy = dr;
+  }
+  DiskResult getSupersededBy(){
+    return supersededBy;
+  }
 
   public String toString(){
-      return "(DiskResult)(operation: " + operation + " tag: " + tag + " secNum: " + secNum + " status: " + status + ")";
+      return "(DiskResult)(operation: " + operation + " tag: " + tag + " secNum: " + secNum + " nSectors: " + nSectors + " status: " + status + ")";
   }
 }
@@ -0,0 +1,71 @@
+/*
+ * DiskScheduler.java
+ *
+ * Policy that decides which queued request a DiskWorker
+ * gets next. Disk holds its lock around every call.
+ *
+ * Rules every policy must keep:
+ *  -- writes cannot pass a BARRIER
+ *  -- reads can pass a BARRIER
+ *  -- a DISCARD is ordered like a write
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+public interface DiskScheduler{
+  //
+  // Queue a READ, WRITE or DISCARD request or a BARRIER
+  //
+  public void add(DiskResult dr);
+
+  //
+  // True if the oldest thing queued is a BARRIER, i.e.,
+  // every request queued before it has been handed out
+  //
+  public boolean barrierAtHead();
+
+  //
+  // Drop the BARRIER at the head of the queue
+  //
+  public void removeBarrier();
+
+  //
+  // Remove and return the next request to work on, or
+  // null if nothing may go now. Only reads may be
+  // returned while barrierAtHead() is true.
+  //
+  public DiskResult next();
+
+  //
+  // Remove and return a queued WRITE that starts at
+  // sectorNum and may go now (i.e., it is ahead of every
+  // BARRIER), or null. Used to coalesce a run of writes,
+  // so never a DISCARD.
+  //
+  public DiskResult removeWrite(int sectorNum);
+
+  //
+  // Remove and return a queued WRITE that dr (a WRITE
+  // about to be added) makes pointless: it is in the
+  // epoch dr will join, starts at dr's first sector, is
+  // no longer than dr, and is not durable. null if none.
+  // Nothing can observe such a write, so Disk completes
+  // it without doing it. The default never finds one.
+  //
+  public default DiskResult removeSuperseded(DiskResult dr)
+  {
+    return null;
+  }
+
+  //
+  // Whether old is a write that dr supersedes, given
+  // they are in the same epoch
+  //
+  public static boolean supersedes(DiskResult dr, DiskResult old)
+  {
+    return old.getOperation() == Disk.WRITE && !old.isDurable()
+      && old.getSectorNum() == dr.getSectorNum()
+      && old.getNSectors() <= dr.getNSectors();
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * DiskStats.java
+ *
+ * What a Disk has been doing. Disk updates one of these
+ * under its lock; Disk.getStats() hands out a copy, so
+ * a snapshot never changes once taken.
+ *
+ * Every READ, WRITE and DISCARD request is timed at
+ * three points:
+ *   queue   -- startRequest() until a DiskWorker takes it
+ *              in getWork()
+ *   service -- getWork() until the worker has finished
+ *              the transfer (and any flush), just before
+ *              the callback
+ *   stall   -- the part of the queue time the request
+ *              spent waiting for a BARRIER ahead of it to
+ *              retire (0 for a read that passed it)
+ * so a slow commit can be blamed on the queue, a barrier,
+ * or the backend. Barrier retirement itself (the flush)
+ * is timed separately.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+public class DiskStats{
+  private static final int R = 0;
+  private static final int W = 1;
+  private static final int D = 2;
+  private static final int OPS = 3;
+
+  private long requests[];
+  private long sectors[];
+  private LatencyHistogram queueTime[];
+  private LatencyHistogram serviceTime[];
+  private LatencyHistogram barrierStall[];
+  private LatencyHistogram barrierFlush;
+  private int queueDepth;      // Queued, not yet in getWork()
+  private int maxQueueDepth;
+  private int inFlight;        // Handed out, not yet workDone()
+  private long superseded;     // Writes completed without I/O
+
+  public DiskStats()
+  {
+    int ii;
+
+    this.requests = new long[OPS];
+    this.sectors = new long[OPS];
+    this.queueTime = new LatencyHistogram[OPS];
+    this.serviceTime = new LatencyHistogram[OPS];
+    this.barrierStall = new LatencyHistogram[OPS];
+    for(ii = 0; ii < OPS; ii++){
+      queueTime[ii] = new LatencyHistogram();
+      serviceTime[ii] = new LatencyHistogram();
+      barrierStall[ii] = new LatencyHistogram();
+    }
+    this.barrierFlush = new LatencyHistogram();
+    this.queueDepth = 0;
+    this.maxQueueDepth = 0;
+    this.inFlight = 0;
+    this.superseded = 0;
+  }
+
+  //-------------------------------------------------------
+  // Updates -- called by Disk with its lock held
+  //-------------------------------------------------------
+  void queued(DiskResult dr)
+  {
+    requests[index(dr.getOperation())]++;
+    sectors[index(dr.getOperation())] += dr.getNSectors();
+    queueDepth++;
+    maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+  }
+
+  void dispatched(DiskResult dr, long stallNanos)
+  {
+    int op = index(dr.getOperation());
+    queueTime[op].record(dr.getDispatchNanos() - dr.getQueueNanos());
+    barrierStall[op].record(stallNanos);
+    queueDepth--;
+    inFlight++;
+  }
+
+  void completed(DiskResult dr)
+  {
+    serviceTime[index(dr.getOperation())].record(dr.getDoneNanos()
+                                                 - dr.getDispatchNanos());
+    inFlight--;
+  }
+
+  void superseded(DiskResult dr)
+  {
+    superseded++;
+  }
+
+  void barrierRetired(long flushNanos)
+  {
+    barrierFlush.record(flushNanos);
+  }
+
+  //-------------------------------------------------------
+  // Queries. op is Disk.READ, Disk.WRITE or Disk.DISCARD.
+  //-------------------------------------------------------
+  public long getRequests(int op)
+  {
+    return requests[index(op)];
+  }
+
+  public long getSectors(int op)
+  {
+    return sectors[index(op)];
+  }
+
+  public LatencyHistogram getQueueTime(int op)
+  {
+    return queueTime[index(op)];
+  }
+
+  public LatencyHistogram getServiceTime(int op)
+  {
+    return serviceTime[index(op)];
+  }
+
+  public LatencyHistogram getBarrierStall(int op)
+  {
+    return barrierStall[index(op)];
+  }
+
+  //-------------------------------------------------------
+  // getBarrierFlushTime -- one sample per retired
+  // BARRIER
+  //-------------------------------------------------------
+  public LatencyHistogram getBarrierFlushTime()
+  {
+    return barrierFlush;
+  }
+
+  public int getQueueDepth()
+  {
+    return queueDepth;
+  }
+
+  public int getMaxQueueDepth()
+  {
+    return maxQueueDepth;
+  }
+
+  public int getInFlight()
+  {
+    return inFlight;
+  }
+
+  //-------------------------------------------------------
+  // getSuperseded -- writes completed without I/O because
+  // a later write in the same epoch overwrote them while
+  // they were queued (also counted in getRequests())
+  //-------------------------------------------------------
+  public long getSuperseded()
+  {
+    return superseded;
+  }
+
+  //-------------------------------------------------------
+  // restart -- empty stats that carry over the current
+  // queue depth and requests in flight
+  //-------------------------------------------------------
+  DiskStats restart()
+  {
+    DiskStats s = new DiskStats();
+    s.queueDepth = queueDepth;
+    s.maxQueueDepth = queueDepth;
+    s.inFlight = inFlight;
+    return s;
+  }
+
+  public DiskStats copy()
+  {
+    DiskStats s = new DiskStats();
+    int ii;
+
+    for(ii = 0; ii < OPS; ii++){
+      s.requests[ii] = requests[ii];
+      s.sectors[ii] = sectors[ii];
+      s.queueTime[ii] = queueTime[ii].copy();
+      s.serviceTime[ii] = serviceTime[ii].copy();
+      s.barrierStall[ii] = barrierStall[ii].copy();
+    }
+    s.barrierFlush = barrierFlush.copy();
+    s.queueDepth = queueDepth;
+    s.maxQueueDepth = maxQueueDepth;
+    s.inFlight = inFlight;
+    s.superseded = superseded;
+    return s;
+  }
+
+  public String toString()
+  {
+    return "queue depth " + queueDepth + " (max " + maxQueueDepth + ")"
+      + " in flight " + inFlight + " superseded " + superseded + "\n"
+      + opString("READ   ", R) + opString("WRITE  ", W) 
+      + opString("DISCARD", D)
+      + "barrier flush: " + barrierFlush + "\n";
+  }
+
+  private String opString(String name, int op)
+  {
+    return name + " " + requests[op] + " reqs " + sectors[op] + " sectors\n"
+      + "  queue:   " + queueTime[op] + "\n"
+      + "  stall:   " + barrierStall[op] + "\n"
+      + "  service: " + serviceTime[op] + "\n";
+  }
+
+  private static int index(int op)
+  {
+    if(op == Disk.READ){
+      return R;
+    }
+    if(op == Disk.WRITE){
+      return W;
+    }
+    if(op == Disk.DISCARD){
+      return D;
+    }
+    throw new IllegalArgumentException("Bad operation");
+  }
+}
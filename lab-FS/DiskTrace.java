@@ -0,0 +1,368 @@
+/*
+ * DiskTrace.java
+ *
+ * A compact binary record of the requests a Disk is
+ * given and of when each completes (see
+ * Disk.startTrace()), for DiskTraceReplayer to issue
+ * again against another backend, scheduler or worker
+ * count. ADisk records one when run with
+ * -Dlabfs.trace=<file>.
+ *
+ * The file is a header (magic, version, sector size,
+ * sector count) followed by records, each a type byte
+ * and variable-length integers:
+ *
+ *  QUEUED   time, id, op, tag, sector, nSectors, flags
+ *           (durable, priority), dependencies
+ *  BARRIER  time
+ *  DONE     time, id, service time, status
+ *
+ * Times are nanoseconds written as the difference from
+ * the record before, so most take a byte or two. The id
+ * of a request is its sequence number on the Disk; a
+ * dependency (DiskResult.after()) is written as how far
+ * back it was queued. No data is recorded.
+ *
+ * Disk calls in under its lock. An I/O error stops the
+ * recording rather than failing the Disk; close()
+ * reports it. What is buffered is also written out if
+ * the JVM exits before close(), so a program that never
+ * shuts its disk down still leaves a usable trace.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+public class DiskTrace implements Closeable{
+  public static final int QUEUED = 1;
+  public static final int BARRIER = 2;
+  public static final int DONE = 3;
+
+  private static final int MAGIC = 0x44545243; // "DTRC"
+  private static final int VERSION = 1;
+  private static final int BUFFER_BYTES = 64 * 1024;
+  private static final int OPS[] = { Disk.READ, Disk.WRITE, Disk.DISCARD };
+
+  private DataOutputStream out;
+  private long last;            // Time of the record before
+  private IOException failed;   // First write error, if any
+  private Thread atExit;        // Shutdown hook until close()
+
+  //-------------------------------------------------------
+  // DiskTrace -- start a trace at path for a disk of
+  // numSectors sectors; times count from now
+  //-------------------------------------------------------
+  public DiskTrace(String path, int numSectors)
+    throws IOException
+  {
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path),
+                                                             BUFFER_BYTES));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(Disk.SECTOR_SIZE);
+    out.writeInt(numSectors);
+    this.last = System.nanoTime();
+    this.failed = null;
+    this.atExit = new Thread(() -> flush());
+    Runtime.getRuntime().addShutdownHook(atExit);
+  }
+
+  //-------------------------------------------------------
+  // queued -- dr (not a BARRIER) was queued at
+  // dr.getQueueNanos()
+  //-------------------------------------------------------
+  synchronized void queued(DiskResult dr)
+  {
+    List<DiskResult> after = dr.getDependencies();
+    try{
+      record(QUEUED, dr.getQueueNanos());
+      writeVarLong(dr.getQueuedSeq());
+      writeVarLong(opIndex(dr.getOperation()));
+      writeVarLong(zigZag(dr.getTag()));
+      writeVarLong(dr.getSectorNum());
+      writeVarLong(dr.getNSectors());
+      writeVarLong((dr.isDurable() ? 1 : 0) | dr.getPriority() << 1);
+      writeVarLong(after.size());
+      for(DiskResult dep : after){
+        writeVarLong(dr.getQueuedSeq() - dep.getQueuedSeq());
+      }
+    }
+    catch(IOException e){
+      fail(e);
+    }
+  }
+
+  //-------------------------------------------------------
+  // barrier -- a BARRIER was queued at time now
+  //-------------------------------------------------------
+  synchronized void barrier(long now)
+  {
+    try{
+      record(BARRIER, now);
+    }
+    catch(IOException e){
+      fail(e);
+    }
+  }
+
+  //-------------------------------------------------------
+  // done -- dr was called back
+  //-------------------------------------------------------
+  synchronized void done(DiskResult dr)
+  {
+    try{
+      record(DONE, dr.getDoneNanos());
+      writeVarLong(dr.getQueuedSeq());
+      writeVarLong(Math.max(0, dr.getDoneNanos() - dr.getDispatchNanos()));
+      writeVarLong(dr.getStatus() == DiskResult.OK ? 0 : 1);
+    }
+    catch(IOException e){
+      fail(e);
+    }
+  }
+
+  //-------------------------------------------------------
+  // close -- flush the trace; throws the error that
+  // stopped the recording, if one did
+  //-------------------------------------------------------
+  public synchronized void close()
+    throws IOException
+  {
+    if(atExit != null){
+      try{
+        Runtime.getRuntime().removeShutdownHook(atExit);
+      }
+      catch(IllegalStateException e){
+        // Already exiting; the hook is running or has run
+      }
+      atExit = null;
+    }
+    if(out != null){
+      try{
+        out.close();
+      }
+      catch(IOException e){
+        fail(e);
+      }
+      out = null;
+    }
+    if(failed != null){
+      throw failed;
+    }
+  }
+
+  private synchronized void flush()
+  {
+    if(out != null){
+      try{
+        out.flush();
+      }
+      catch(IOException e){
+        fail(e);
+      }
+    }
+  }
+
+  private void record(int type, long nanos)
+    throws IOException
+  {
+    if(out == null){
+      return;
+    }
+    out.writeByte(type);
+    writeVarLong(zigZag(nanos - last));
+    last = nanos;
+  }
+
+  private void fail(IOException e)
+  {
+    if(failed == null){
+      failed = e;
+    }
+    if(out != null){
+      try{
+        out.close();
+      }
+      catch(IOException ignored){
+      }
+      out = null;
+    }
+  }
+
+  private void writeVarLong(long v)
+    throws IOException
+  {
+    if(out == null){
+      return;
+    }
+    while((v & ~0x7FL) != 0){
+      out.writeByte((int)(v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte((int)v);
+  }
+
+  private static long zigZag(long v)
+  {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  private static long unZigZag(long v)
+  {
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  private static int opIndex(int op)
+  {
+    int ii;
+    for(ii = 0; ii < OPS.length; ii++){
+      if(OPS[ii] == op){
+        return ii;
+      }
+    }
+    throw new IllegalArgumentException("Bad operation");
+  }
+
+  //-------------------------------------------------------
+  // Entry -- one record, as read back. time is
+  // nanoseconds since the trace started; the fields that
+  // the record type does not have are 0 (after, null).
+  //-------------------------------------------------------
+  public static class Entry{
+    public int type;
+    public long time;
+    public long id;
+    public int operation;
+    public int tag;
+    public int sectorNum;
+    public int nSectors;
+    public boolean durable;
+    public int priority;
+    public long after[];       // Ids of dependencies
+    public long serviceNanos;  // DONE: dispatch to completion
+    public boolean ok;         // DONE: status was OK
+  }
+
+  //-------------------------------------------------------
+  // Reader -- the records of a trace file in order. A
+  // record cut short (the recording process died) ends
+  // the trace.
+  //-------------------------------------------------------
+  public static class Reader implements Closeable{
+    private DataInputStream in;
+    private int sectorSize;
+    private int numSectors;
+    private long time;
+
+    public Reader(String path)
+      throws IOException
+    {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(path),
+                                                            BUFFER_BYTES));
+      try{
+        if(in.readInt() != MAGIC || in.readInt() != VERSION){
+          throw new IOException("Not a disk trace: " + path);
+        }
+        this.sectorSize = in.readInt();
+        this.numSectors = in.readInt();
+      }
+      catch(EOFException e){
+        in.close();
+        throw new IOException("Not a disk trace: " + path);
+      }
+      catch(IOException e){
+        in.close();
+        throw e;
+      }
+      this.time = 0;
+    }
+
+    public int getSectorSize()
+    {
+      return sectorSize;
+    }
+
+    public int getNumSectors()
+    {
+      return numSectors;
+    }
+
+    //-----------------------------------------------------
+    // next -- the next record, or null at the end
+    //-----------------------------------------------------
+    public Entry next()
+      throws IOException
+    {
+      Entry e = new Entry();
+      long flags;
+      int ii;
+
+      try{
+        e.type = in.read();
+        if(e.type < 0){
+          return null;
+        }
+        time += unZigZag(readVarLong());
+        e.time = time;
+        if(e.type == QUEUED){
+          e.id = readVarLong();
+          e.operation = OPS[(int)readVarLong()];
+          e.tag = (int)unZigZag(readVarLong());
+          e.sectorNum = (int)readVarLong();
+          e.nSectors = (int)readVarLong();
+          flags = readVarLong();
+          e.durable = (flags & 1) != 0;
+          e.priority = (int)(flags >> 1);
+          e.after = new long[(int)readVarLong()];
+          for(ii = 0; ii < e.after.length; ii++){
+            e.after[ii] = e.id - readVarLong();
+          }
+        }
+        else if(e.type == DONE){
+          e.id = readVarLong();
+          e.serviceNanos = readVarLong();
+          e.ok = readVarLong() == 0;
+        }
+        else if(e.type != BARRIER){
+          throw new IOException("Bad trace record " + e.type);
+        }
+        return e;
+      }
+      catch(EOFException eof){
+        return null;
+      }
+    }
+
+    public void close()
+      throws IOException
+    {
+      in.close();
+    }
+
+    private long readVarLong()
+      throws IOException
+    {
+      long v = 0;
+      int shift = 0;
+      int b;
+
+      do{
+        b = in.readUnsignedByte();
+        v |= (long)(b & 0x7F) << shift;
+        shift += 7;
+      } while((b & 0x80) != 0);
+      return v;
+    }
+  }
+}
@@ -0,0 +1,319 @@
+/*
+ * DiskTraceReplayer.java
+ *
+ * Issues the requests of a DiskTrace again, in the same
+ * order, barriers and dependencies included, against a
+ * Disk built from whatever backend, scheduler and worker
+ * count is to be tried. Requests go out at the times
+ * they were recorded, or back to back at maximum speed.
+ * Writes carry dummy data, since a trace has none.
+ *
+ *   java DiskTraceReplayer <trace> [-fast] [-workers n]
+ *        [-backend file|mapped|direct|ram] [-image file]
+ *        [-scheduler random|elevator|deadline|priority]
+ *
+ * prints the run time and the Disk's DiskStats. The
+ * file, mapped and direct backends write over the image
+ * they are given, so they get a scratch file, deleted
+ * on exit, unless -image names one; the live volume
+ * (Disk.PATH) is refused.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+
+public class DiskTraceReplayer implements DiskCallback{
+  private Disk disk;
+  private SimpleLock lock;
+  private Condition allDone;
+  private HashMap<Integer, DiskResult> live;  // By tag: queued, not called back
+  private int errors;
+  private byte buffer[];  // Source of every write, sink of every read
+
+  //-------------------------------------------------------
+  // DiskTraceReplayer -- replay onto a new Disk over
+  // backend
+  //-------------------------------------------------------
+  public DiskTraceReplayer(DiskBackend backend, int nWorkers,
+                           DiskScheduler scheduler)
+  {
+    this.lock = new SimpleLock();
+    this.allDone = lock.newCondition();
+    this.live = new HashMap<Integer, DiskResult>();
+    this.errors = 0;
+    this.buffer = new byte[Disk.SECTOR_SIZE];
+    Arrays.fill(buffer, (byte)0x5A);
+    this.disk = new Disk(this, backend, nWorkers, scheduler);
+  }
+
+  public Disk getDisk()
+  {
+    return disk;
+  }
+
+  //-------------------------------------------------------
+  // getErrors -- requests that completed with an error
+  //-------------------------------------------------------
+  public int getErrors()
+  {
+    try{
+      lock.lock();
+      return errors;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // replay -- issue every request in the trace at path
+  // and wait for all of them. At original speed each
+  // request is queued as long after the start as it was
+  // in the recording (later, if queueing falls behind);
+  // otherwise as fast as Disk takes them. Returns the
+  // run time in nanoseconds.
+  //-------------------------------------------------------
+  public long replay(String path, boolean originalSpeed)
+    throws IOException
+  {
+    DiskTrace.Entry e;
+    DiskResult dr;
+    ArrayList<DiskResult> after = new ArrayList<DiskResult>();
+    long start;
+
+    try(DiskTrace.Reader r = new DiskTrace.Reader(path)){
+      if(r.getSectorSize() != Disk.SECTOR_SIZE){
+        throw new IOException("Trace has " + r.getSectorSize()
+                              + "-byte sectors, disk has " + Disk.SECTOR_SIZE);
+      }
+      start = System.nanoTime();
+      while((e = r.next()) != null){
+        if(e.type == DiskTrace.DONE){
+          continue;
+        }
+        if(originalSpeed){
+          waitUntil(start + e.time);
+        }
+        if(e.type == DiskTrace.BARRIER){
+          disk.addBarrier();
+          continue;
+        }
+        dr = new DiskResult(e.operation, tag(e.id), e.sectorNum, e.nSectors,
+                            e.operation == Disk.DISCARD ? null : buffer(e.nSectors));
+        dr.setDurable(e.durable);
+        dr.setPriority(e.priority);
+        after.clear();
+        try{
+          lock.lock();
+          for(long id : e.after){
+            // Not live: done already, or queued before the recording
+            if(live.containsKey(tag(id))){
+              after.add(live.get(tag(id)));
+            }
+          }
+          live.put(dr.getTag(), dr);
+        }
+        finally{
+          lock.unlock();
+        }
+        dr.after(after);
+        disk.startRequests(Collections.singletonList(dr));
+      }
+    }
+    try{
+      lock.lock();
+      while(!live.isEmpty()){
+        allDone.awaitUninterruptibly();
+      }
+    }
+    finally{
+      lock.unlock();
+    }
+    return System.nanoTime() - start;
+  }
+
+  public void requestDone(DiskResult result)
+  {
+    try{
+      lock.lock();
+      live.remove(result.getTag());
+      if(result.getStatus() != DiskResult.OK){
+        errors++;
+      }
+      if(live.isEmpty()){
+        allDone.signalAll();
+      }
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // tag -- ids count up from 1, so they make unique tags
+  // (short of 2^31 requests in one trace)
+  //-------------------------------------------------------
+  private static int tag(long id)
+  {
+    return (int)(id % Integer.MAX_VALUE);
+  }
+
+  //-------------------------------------------------------
+  // buffer -- the shared buffer, grown to nSectors. Reads
+  // into it race with each other and with writes out of
+  // it; the data is never looked at.
+  //-------------------------------------------------------
+  private byte[] buffer(int nSectors)
+  {
+    if(buffer.length < nSectors * Disk.SECTOR_SIZE){
+      buffer = Arrays.copyOf(buffer, nSectors * Disk.SECTOR_SIZE);
+      Arrays.fill(buffer, (byte)0x5A);
+    }
+    return buffer;
+  }
+
+  //-------------------------------------------------------
+  // scratchImage -- a new file to replay onto, deleted
+  // when the replay exits
+  //-------------------------------------------------------
+  private static String scratchImage()
+    throws IOException
+  {
+    File f = File.createTempFile("replay", ".dat");
+    f.deleteOnExit();
+    return f.getPath();
+  }
+
+  //-------------------------------------------------------
+  // checkImage -- path, unless it is the live volume,
+  // which the dummy writes would destroy
+  //-------------------------------------------------------
+  private static String checkImage(String path)
+    throws IOException
+  {
+    if(Files.exists(Paths.get(path)) && Files.exists(Paths.get(Disk.PATH))
+       && Files.isSameFile(Paths.get(path), Paths.get(Disk.PATH))){
+      throw new IOException("Will not replay over the live volume " + Disk.PATH);
+    }
+    return path;
+  }
+
+  private static void waitUntil(long when)
+  {
+    long left;
+    while((left = when - System.nanoTime()) > 0){
+      LockSupport.parkNanos(left);
+    }
+  }
+
+  //-------------------------------------------------------
+  // main() -- replay a trace and report
+  //-------------------------------------------------------
+  public static void main(String args[])
+  {
+    String path = null;
+    String backendName = "file";
+    String schedulerName = "elevator";
+    String image = null;
+    boolean originalSpeed = true;
+    int nWorkers = 1;
+    int numSectors;
+    int used = 1;
+    DiskTrace.Entry entry;
+    DiskBackend backend;
+    DiskScheduler scheduler;
+    DiskTraceReplayer replayer;
+    long nanos;
+    int ii;
+
+    try{
+      for(ii = 0; ii < args.length; ii++){
+        if(args[ii].equals("-fast")){
+          originalSpeed = false;
+        }
+        else if(args[ii].equals("-workers")){
+          nWorkers = Integer.parseInt(args[++ii]);
+        }
+        else if(args[ii].equals("-backend")){
+          backendName = args[++ii];
+        }
+        else if(args[ii].equals("-image")){
+          image = args[++ii];
+        }
+        else if(args[ii].equals("-scheduler")){
+          schedulerName = args[++ii];
+        }
+        else{
+          path = args[ii];
+        }
+      }
+    }
+    catch(ArrayIndexOutOfBoundsException | NumberFormatException e){
+      path = null;
+    }
+    if(path == null){
+      System.out.println("Usage: java DiskTraceReplayer <trace> [-fast] [-workers n]"
+                         + " [-backend file|mapped|direct|ram] [-image file]"
+                         + " [-scheduler random|elevator|deadline|priority]");
+      System.exit(-1);
+    }
+
+    try{
+      try(DiskTrace.Reader r = new DiskTrace.Reader(path)){
+        numSectors = r.getNumSectors();
+        while((entry = r.next()) != null){
+          used = Math.max(used, entry.sectorNum + entry.nSectors);
+        }
+      }
+      if(!backendName.equals("ram")){
+        image = image == null ? scratchImage() : checkImage(image);
+      }
+      if(backendName.equals("ram")){
+        // Only as big as the sectors the trace touches
+        backend = new RamDiskBackend(false, used);
+      }
+      else if(backendName.equals("mapped")){
+        backend = new MappedDiskBackend(image, numSectors);
+      }
+      else if(backendName.equals("direct")){
+        backend = DirectDiskBackend.open(image, numSectors);
+      }
+      else{
+        backend = new FileDiskBackend(image, false, numSectors);
+      }
+      if(schedulerName.equals("random")){
+        scheduler = new RandomDiskScheduler();
+      }
+      else if(schedulerName.equals("deadline")){
+        scheduler = new DeadlineDiskScheduler();
+      }
+      else if(schedulerName.equals("priority")){
+        scheduler = new PriorityDiskScheduler();
+      }
+      else{
+        scheduler = new ElevatorDiskScheduler();
+      }
+      replayer = new DiskTraceReplayer(backend, nWorkers, scheduler);
+      nanos = replayer.replay(path, originalSpeed);
+      System.out.println("Replayed " + path + " in " + nanos / 1000000 + " ms, "
+                         + replayer.getErrors() + " errors");
+      System.out.print(replayer.getDisk().getStats());
+      System.exit(0);
+    }
+    catch(IOException e){
+      System.out.println("Replay failed: " + e);
+      System.exit(-1);
+    }
+  }
+}
@@ -10,7 +10,15 @@
  *
  */
 import java.util.concurrent.locks.Condition;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
 
 public class DiskUnit implements DiskCallback{
 
@@ -24,6 +32,17 @@ public class DiskUnit implements DiskCallback{
   private static final boolean verbose = true;
   private static final boolean vverbose = false;
 
+  private static boolean useMappedBackend = false;
+  private static int nWorkers = 1;
+  private static boolean useElevator = false;
+  private static boolean useDeadline = false;
+  private static boolean useGroupSync = false;
+  private static boolean useStriped = false;
+  private static boolean useDirect = false;
+  private static RamDiskBackend ramDisk = null;  // Shared by a whole pass
+  private static boolean useTiered = false;
+  private static TieredDiskBackend tiered = null; // Shared by a whole pass
+
 
   int status[];
   int doneCount;
@@ -37,6 +56,62 @@ public class DiskUnit implements DiskCallback{
   // main() -- java DiskUnit to run this test
   //-------------------------------------------------------
   public static void main(String args[])
+  {
+    runAll();
+    System.out.println("Testing mapped backend");
+    useMappedBackend = true;
+    runAll();
+    System.out.println("Testing 4 workers");
+    useMappedBackend = false;
+    nWorkers = 4;
+    runAll();
+    System.out.println("Testing elevator scheduler");
+    useElevator = true;
+    runAll();
+    System.out.println("Testing deadline scheduler");
+    useDeadline = true;
+    runAll();
+    useDeadline = false;
+    System.out.println("Testing group fsync");
+    useGroupSync = true;
+    runAll();
+    System.out.println("Testing striped disk");
+    useStriped = true;
+    runAll();
+    testStripeLayout();
+    System.out.println("Stripe layout ok");
+    useStriped = false;
+    System.out.println("Testing direct I/O");
+    useDirect = true;
+    runAll();
+    testDirectBlockSharing();
+    System.out.println("Direct I/O block sharing ok");
+    useDirect = false;
+    System.out.println("Testing tiered disk");
+    useTiered = true;
+    runAll();
+    useTiered = false;
+    testReadAfterSuperseded(30);
+    System.out.println("Read after superseded write ok");
+    testTiers();
+    System.out.println("Tier promotion/demotion ok");
+    testTierRace();
+    System.out.println("Tier read/write race ok");
+    testTierFlush();
+    System.out.println("Tier writeback ok");
+    System.out.println("Testing RAM disk");
+    ramDisk = new RamDiskBackend(true);
+    runAll();
+    testRamSnapshot();
+    System.out.println("RAM disk snapshot/restore ok");
+    testLargeDisk();
+    System.out.println("4 GB disk ok");
+    testSparseFile();
+    System.out.println("Sparse file ok");
+    System.exit(0);
+  }
+
+  private static void runAll()
   {
     testWrites(true, (float)0.0, -1);
     System.out.println("Wrote 0 to all");
@@ -56,7 +131,76 @@ public class DiskUnit implements DiskCallback{
     System.out.println("Wrote data to some");
     testReads(false, -1);    
     System.out.println("Read data from some");
-    System.exit(0);
+    testVectored(10, 4);
+    System.out.println("Vectored write/read ok");
+    testBatch(20, 8);
+    System.out.println("Batch write/read ok");
+    testPooled(40, 4);
+    System.out.println("Pooled write/read ok");
+    testStats(60, 8);
+    System.out.println("Disk stats ok");
+    testDiscard(200, 16);
+    System.out.println("Discard ok");
+    testReadAhead(300, 100);
+    System.out.println("Read-ahead ok");
+    testSubmit(420, 6);
+    System.out.println("Submit ok");
+    testSuperseded(440);
+    System.out.println("Superseded writes ok");
+    testDependencies(460);
+    System.out.println("Dependencies ok");
+    testTrace(480);
+    System.out.println("Trace record/replay ok");
+  }
+
+  //-------------------------------------------------------
+  // newDisk -- open the disk under test on the selected
+  // backend
+  //-------------------------------------------------------
+  private static Disk newDisk(DiskCallback cb)
+  {
+    DiskBackend backend;
+    DiskScheduler scheduler;
+    try{
+      if(ramDisk != null){
+        backend = ramDisk;
+      }
+      else if(useTiered){
+        if(tiered == null){
+          tiered = new TieredDiskBackend(new FileDiskBackend(Disk.PATH, !useGroupSync), 64);
+        }
+        backend = tiered;
+      }
+      else if(useMappedBackend){
+        backend = new MappedDiskBackend(Disk.PATH);
+      }
+      else if(useDirect){
+        backend = DirectDiskBackend.open(Disk.PATH, Disk.NUM_OF_SECTORS);
+      }
+      else if(useStriped){
+        backend = new StripedDiskBackend(new String[]{ "STRIPE0.dat", "STRIPE1.dat", 
+                                                       "STRIPE2.dat", "STRIPE3.dat" },
+                                         8, !useGroupSync, Disk.NUM_OF_SECTORS);
+      }
+      else{
+        backend = new FileDiskBackend(Disk.PATH, !useGroupSync);
+      }
+      if(useDeadline){
+        scheduler = new DeadlineDiskScheduler();
+      }
+      else if(useElevator){
+        scheduler = new ElevatorDiskScheduler();
+      }
+      else{
+        scheduler = new RandomDiskScheduler();
+      }
+      return new Disk(cb, backend, nWorkers, scheduler);
+    }
+    catch(IOException e){
+      System.out.println("Unable to open disk file");
+      System.exit(-1);
+    }
+    return null;
   }
 
 
@@ -75,13 +219,7 @@ public class DiskUnit implements DiskCallback{
     int ok;
 
     du = new DiskUnit(barrierWhere);
-    try{
-      d = new Disk(du);
-    }
-    catch(FileNotFoundException fnf){
-      System.out.println("Unable to open disk file");
-      System.exit(-1);
-    }
+    d = newDisk(du);
     du.doClear();
     for(ii = 0; ii < NUM; ii++){
       //
@@ -144,13 +282,7 @@ public class DiskUnit implements DiskCallback{
     int ok;
 
     du = new DiskUnit(barrierWhere);
-    try{
-      d = new Disk(du);
-    }
-    catch(FileNotFoundException fnf){
-      System.out.println("Unable to open disk file");
-      System.exit(-1);
-    }
+    d = newDisk(du);
 
     du.doClear();
     for(ii = 0; ii < NUM; ii++){
@@ -190,6 +322,1247 @@ public class DiskUnit implements DiskCallback{
     return;
   }
 
+  //-------------------------------------------------------
+  // Write n sectors starting at first with one vectored
+  // request, then read them back with one scatter/gather
+  // request. Sector ii holds (byte)ii like the other
+  // tests expect.
+  //-------------------------------------------------------
+  private static void testVectored(int first, int n)
+  {
+    CallbackTracker ct = new CallbackTracker();
+    Disk d = newDisk(ct);
+    byte b[] = new byte[n * Disk.SECTOR_SIZE];
+    byte bufs[][] = new byte[n][Disk.SECTOR_SIZE];
+    DiskResult r;
+    int ii, jj;
+
+    for(ii = 0; ii < n; ii++){
+      for(jj = 0; jj < Disk.SECTOR_SIZE; jj++){
+        b[ii * Disk.SECTOR_SIZE + jj] = (byte)(first + ii);
+      }
+    }
+    try{
+      d.startRequest(Disk.WRITE, 1, first, n, b);
+      r = ct.waitForTag(1);
+      if(r.getStatus() != DiskResult.OK || r.getNSectors() != n){
+        System.out.println("ERROR: vectored write " + r);
+        System.exit(-1);
+      }
+      d.startRequest(Disk.READ, 2, first, bufs);
+      r = ct.waitForTag(2);
+      if(r.getStatus() != DiskResult.OK || r.getNSectors() != n){
+        System.out.println("ERROR: vectored read " + r);
+        System.exit(-1);
+      }
+    }
+    catch(Exception e){
+      System.out.println("Unexpected exception in vectored request " + e);
+      System.exit(-1);
+    }
+    for(ii = 0; ii < n; ii++){
+      for(jj = 0; jj < Disk.SECTOR_SIZE; jj++){
+        if(bufs[ii][jj] != (byte)(first + ii)){
+          System.out.println("ERROR: vectored read sector " + (first + ii));
+          System.exit(-1);
+        }
+      }
+    }
+  }
+
+  //-------------------------------------------------------
+  // Submit n writes, a barrier and an overwrite of the
+  // first sector as one batch, then read them back with a
+  // second batch. The overwrite must win.
+  //-------------------------------------------------------
+  private static void testBatch(int first, int n)
+  {
+    CallbackTracker ct = new CallbackTracker();
+    Disk d = newDisk(ct);
+    ArrayList<DiskResult> batch = new ArrayList<DiskResult>();
+    Vector<Integer> tags = new Vector<Integer>();
+    byte bufs[][] = new byte[n][Disk.SECTOR_SIZE];
+    byte b[];
+    int ii, jj;
+
+    for(ii = 0; ii < n; ii++){
+      b = new byte[Disk.SECTOR_SIZE];
+      Arrays.fill(b, (byte)(first + ii));
+      batch.add(new DiskResult(Disk.WRITE, ii, first + ii, b));
+      tags.add(ii);
+    }
+    batch.add(new DiskResult(Disk.BARRIER, DiskResult.RESERVED_TAG, 0, null));
+    b = new byte[Disk.SECTOR_SIZE];
+    Arrays.fill(b, (byte)99);
+    batch.add(new DiskResult(Disk.WRITE, n, first, b));
+    tags.add(n);
+    try{
+      d.startRequests(batch);
+      for(DiskResult r : ct.waitForTags(tags)){
+        if(r.getStatus() != DiskResult.OK){
+          System.out.println("ERROR: batch write " + r);
+          System.exit(-1);
+        }
+      }
+      batch.clear();
+      tags.clear();
+      for(ii = 0; ii < n; ii++){
+        batch.add(new DiskResult(Disk.READ, ii, first + ii, bufs[ii]));
+        tags.add(ii);
+      }
+      d.startRequests(batch);
+      ct.waitForTags(tags);
+    }
+    catch(Exception e){
+      System.out.println("Unexpected exception in batch request " + e);
+      System.exit(-1);
+    }
+    for(ii = 0; ii < n; ii++){
+      for(jj = 0; jj < Disk.SECTOR_SIZE; jj++){
+        if(bufs[ii][jj] != (byte)(ii == 0 ? 99 : first + ii)){
+          System.out.println("ERROR: batch read sector " + (first + ii));
+          System.exit(-1);
+        }
+      }
+    }
+
+    //
+    // One bad request rejects the whole batch
+    //
+    batch.clear();
+    batch.add(new DiskResult(Disk.WRITE, 0, first, bufs[0]));
+    batch.add(new DiskResult(Disk.WRITE, 1, Disk.NUM_OF_SECTORS, bufs[1]));
+    try{
+      d.startRequests(batch);
+      System.out.println("ERROR: bad batch accepted");
+      System.exit(-1);
+    }
+    catch(IllegalArgumentException e){
+    }
+    catch(IOException e){
+      System.out.println("Unexpected exception in batch request " + e);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Write n sectors, a barrier, and one more sector, then
+  // read the n back. Every request must be counted and
+  // timed, and only the write behind the barrier may
+  // have stalled on it.
+  //-------------------------------------------------------
+  private static void testStats(int first, int n)
+  {
+    CallbackTracker ct = new CallbackTracker();
+    Disk d = newDisk(ct);
+    ArrayList<DiskResult> batch = new ArrayList<DiskResult>();
+    Vector<Integer> tags = new Vector<Integer>();
+    DiskStats stats;
+    int ii;
+
+    for(ii = 0; ii < n; ii++){
+      batch.add(new DiskResult(Disk.WRITE, ii, first + ii, new byte[Disk.SECTOR_SIZE]));
+      tags.add(ii);
+    }
+    batch.add(new DiskResult(Disk.BARRIER, DiskResult.RESERVED_TAG, 0, null));
+    batch.add(new DiskResult(Disk.WRITE, n, first + n, new byte[Disk.SECTOR_SIZE]));
+    tags.add(n);
+    try{
+      d.startRequests(batch);
+      ct.waitForTags(tags);
+      batch.clear();
+      tags.clear();
+      for(ii = 0; ii < n; ii++){
+        batch.add(new DiskResult(Disk.READ, ii, first + ii, new byte[Disk.SECTOR_SIZE]));
+        tags.add(ii);
+      }
+      d.startRequests(batch);
+      ct.waitForTags(tags);
+    }
+    catch(Exception e){
+      System.out.println("Unexpected exception in stats test " + e);
+      System.exit(-1);
+    }
+
+    //
+    // Completion is counted when the worker is done with
+    // the callback, so it can lag waitForTags a little
+    //
+    stats = d.getStats();
+    for(ii = 0; ii < 1000 && stats.getInFlight() > 0; ii++){
+      try{
+        Thread.sleep(1);
+      }
+      catch(InterruptedException e){
+      }
+      stats = d.getStats();
+    }
+    if(stats.getRequests(Disk.WRITE) != n + 1
+       || stats.getRequests(Disk.READ) != n
+       || stats.getSectors(Disk.READ) != n
+       || stats.getQueueTime(Disk.WRITE).getCount() != n + 1
+       || stats.getServiceTime(Disk.WRITE).getCount() != n + 1
+       || stats.getServiceTime(Disk.READ).getCount() != n
+       || stats.getQueueDepth() != 0
+       || stats.getInFlight() != 0
+       || stats.getMaxQueueDepth() < n + 1
+       || stats.getBarrierFlushTime().getCount() != 1){
+      System.out.println("ERROR: bad stats\n" + stats);
+      System.exit(-1);
+    }
+    if(stats.getBarrierStall(Disk.WRITE).getMaxNanos() <= 0
+       || stats.getBarrierStall(Disk.READ).getMaxNanos() != 0){
+      System.out.println("ERROR: bad barrier stall\n" + stats);
+      System.exit(-1);
+    }
+    if(vverbose){
+      System.out.print(stats);
+    }
+
+    d.resetStats();
+    stats = d.getStats();
+    if(stats.getRequests(Disk.WRITE) != 0 
+       || stats.getQueueTime(Disk.READ).getCount() != 0){
+      System.out.println("ERROR: stats not reset\n" + stats);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Write n sectors, discard them, and read them back.
+  // The mapped backend keeps discarded data (allowed);
+  // the others must return zeros. Then rewrite one sector
+  // in the middle of the discarded range: it must read
+  // back, its neighbours must stay discarded.
+  //-------------------------------------------------------
+  private static void testDiscard(int first, int n)
+  {
+    CallbackTracker ct = new CallbackTracker();
+    Disk d = newDisk(ct);
+    byte b[] = new byte[n * Disk.SECTOR_SIZE];
+    byte one[] = new byte[Disk.SECTOR_SIZE];
+    boolean zeros = !useMappedBackend && !useDirect;
+    int mid = n / 2;
+    int ii;
+
+    Arrays.fill(b, (byte)7);
+    Arrays.fill(one, (byte)9);
+    try{
+      d.startRequest(Disk.WRITE, 1, first, n, b);
+      checkDone(ct.waitForTag(1), "write");
+      d.startRequest(Disk.DISCARD, 2, first, n, null);
+      checkDone(ct.waitForTag(2), "discard");
+      d.startRequest(Disk.READ, 3, first, n, b);
+      checkDone(ct.waitForTag(3), "read");
+      for(ii = 0; zeros && ii < b.length; ii++){
+        if(b[ii] != 0){
+          System.out.println("ERROR: discarded sector " + (first + ii / Disk.SECTOR_SIZE) 
+                             + " not zero");
+          System.exit(-1);
+        }
+      }
+
+      d.startRequest(Disk.WRITE, 4, first + mid, one);
+      checkDone(ct.waitForTag(4), "write");
+      d.startRequest(Disk.READ, 5, first, n, b);
+      checkDone(ct.waitForTag(5), "read");
+      for(ii = 0; ii < b.length; ii++){
+        if(ii / Disk.SECTOR_SIZE == mid ? b[ii] != 9 : zeros && b[ii] != 0){
+          System.out.println("ERROR: sector " + (first + ii / Disk.SECTOR_SIZE) 
+                             + " wrong after rewrite");
+          System.exit(-1);
+        }
+      }
+    }
+    catch(Exception e){
+      System.out.println("Unexpected exception in discard " + e);
+      System.exit(-1);
+    }
+
+    //
+    // A discard carries no buffer but still needs a valid
+    // range
+    //
+    try{
+      d.startRequest(Disk.DISCARD, 6, d.getNumSectors() - 1, 2, null);
+      System.out.println("ERROR: bad discard accepted");
+      System.exit(-1);
+    }
+    catch(IllegalArgumentException e){
+    }
+    catch(IOException e){
+      System.out.println("Unexpected exception in discard " + e);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Read n sectors one at a time, in order, the way ADisk
+  // recovery does. Most must come out of the track
+  // buffer. Then overwrite a sector the buffer holds: the
+  // next read must see the new data.
+  //-------------------------------------------------------
+  private static void testReadAhead(int first, int n)
+  {
+    CallbackTracker ct = new CallbackTracker();
+    Disk d = newDisk(ct);
+    byte b[] = new byte[n * Disk.SECTOR_SIZE];
+    byte one[] = new byte[Disk.SECTOR_SIZE];
+    int last = first + n - 2;
+    int ii;
+
+    d.setReadAhead(Disk.READ_AHEAD_SECTORS);
+
+    for(ii = 0; ii < b.length; ii++){
+      b[ii] = (byte)(first + ii / Disk.SECTOR_SIZE);
+    }
+    try{
+      d.startRequest(Disk.WRITE, 1, first, n, b);
+      checkDone(ct.waitForTag(1), "write");
+      for(ii = 0; ii < n; ii++){
+        d.startRequest(Disk.READ, 2, first + ii, one);
+        checkDone(ct.waitForTag(2), "read");
+        if(one[0] != (byte)(first + ii) || one[Disk.SECTOR_SIZE - 1] != (byte)(first + ii)){
+          System.out.println("ERROR: read-ahead sector " + (first + ii));
+          System.exit(-1);
+        }
+      }
+      if(d.getTrackBuffer().getHits() < n / 2){
+        System.out.println("ERROR: only " + d.getTrackBuffer().getHits() 
+                           + " track buffer hits");
+        System.exit(-1);
+      }
+
+      Arrays.fill(one, (byte)-1);
+      d.startRequest(Disk.WRITE, 3, last, one);
+      checkDone(ct.waitForTag(3), "overwrite");
+      Arrays.fill(one, (byte)0);
+      d.startRequest(Disk.READ, 4, last, one);
+      checkDone(ct.waitForTag(4), "read after overwrite");
+      if(one[0] != (byte)-1){
+        System.out.println("ERROR: read-ahead kept stale sector " + last);
+        System.exit(-1);
+      }
+    }
+    catch(Exception e){
+      System.out.println("Unexpected exception in read-ahead " + e);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Write n sectors and read them back through submit(),
+  // with the read chained onto the write's future. Then
+  // kill the disk: a request that can no longer complete
+  // must fail its future rather than leave it pending.
+  //-------------------------------------------------------
+  private static void testSubmit(int first, int n)
+  {
+    CallbackTracker ct = new CallbackTracker();
+    Disk d = newDisk(ct);
+    byte b[] = new byte[n * Disk.SECTOR_SIZE];
+    byte c[] = new byte[n * Disk.SECTOR_SIZE];
+    DiskResult r;
+    int ii;
+
+    for(ii = 0; ii < b.length; ii++){
+      b[ii] = (byte)(first + ii / Disk.SECTOR_SIZE);
+    }
+    r = d.submit(Disk.WRITE, first, n, b, false)
+      .thenCompose(w -> {
+          checkDone(w, "submitted write");
+          return d.submit(Disk.READ, first, n, c, false);
+        })
+      .join();
+    checkDone(r, "submitted read");
+    if(r.getBuf() != c || !Arrays.equals(b, c)){
+      System.out.println("ERROR: submitted read returned wrong data");
+      System.exit(-1);
+    }
+
+    d.setFailProb(0, (float)1.0);
+    try{
+      d.submit(Disk.READ, first, c).join();
+      System.out.println("ERROR: read from a dead disk completed");
+      System.exit(-1);
+    }
+    catch(CompletionException e){
+      if(!(e.getCause() instanceof IOException)){
+        System.out.println("ERROR: dead disk failed with " + e.getCause());
+        System.exit(-1);
+      }
+    }
+  }
+
+  //-------------------------------------------------------
+  // Queue two writes to one sector in one batch: the
+  // first is superseded and completes without I/O, the
+  // second's data is what a read sees. Writes split by a
+  // barrier, and a durable first write, are both done.
+  //-------------------------------------------------------
+  private static void testSuperseded(int sector)
+  {
+    CallbackTracker ct = new CallbackTracker();
+    Disk d = newDisk(ct);
+    ArrayList<DiskResult> batch = new ArrayList<DiskResult>();
+    byte b[][] = new byte[6][Disk.SECTOR_SIZE];
+    DiskResult durable;
+    int ii;
+
+    for(ii = 0; ii < b.length; ii++){
+      Arrays.fill(b[ii], (byte)(ii + 1));
+    }
+    try{
+      batch.add(new DiskResult(Disk.WRITE, 1, sector, b[0]));
+      batch.add(new DiskResult(Disk.WRITE, 2, sector, b[1]));
+      d.startRequests(batch);
+      checkDone(ct.waitForTag(1), "superseded write");
+      checkDone(ct.waitForTag(2), "superseding write");
+      checkSector(d, ct, sector, (byte)2);
+      if(d.getStats().getSuperseded() != 1){
+        System.out.println("ERROR: " + d.getStats().getSuperseded() + " writes superseded");
+        System.exit(-1);
+      }
+
+      batch.clear();
+      batch.add(new DiskResult(Disk.WRITE, 3, sector, b[2]));
+      batch.add(new DiskResult(Disk.BARRIER, DiskResult.RESERVED_TAG, 0, null));
+      batch.add(new DiskResult(Disk.WRITE, 4, sector, b[3]));
+      durable = new DiskResult(Disk.WRITE, 5, sector + 1, b[4]);
+      durable.setDurable(true);
+      batch.add(durable);
+      batch.add(new DiskResult(Disk.WRITE, 6, sector + 1, b[5]));
+      d.startRequests(batch);
+      for(ii = 3; ii <= 6; ii++){
+        checkDone(ct.waitForTag(ii), "write");
+      }
+      checkSector(d, ct, sector, (byte)4);
+      if(d.getStats().getSuperseded() != 1){
+        System.out.println("ERROR: write across a barrier or durable write superseded");
+        System.exit(-1);
+      }
+    }
+    catch(Exception e){
+      System.out.println("Unexpected exception in superseded writes " + e);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Write, write, superseded write called back, read: the
+  // read comes after the first write, so it must see the
+  // second (or at least the first), even though the
+  // second is stuck behind a barrier that reads may pass.
+  //-------------------------------------------------------
+  private static void testReadAfterSuperseded(int sector)
+  {
+    final int slow = sector + 2;
+    final CountDownLatch release = new CountDownLatch(1);
+    RamDiskBackend backend = new RamDiskBackend(false, 100){
+        public void write(int sectorNum, int nSectors, byte b[])
+        {
+          if(sectorNum == slow){
+            await(release);
+          }
+          super.write(sectorNum, nSectors, b);
+        }
+      };
+    CallbackTracker ct = new CallbackTracker();
+    Disk d = new Disk(ct, backend, 2);
+    ArrayList<DiskResult> batch = new ArrayList<DiskResult>();
+    byte b[][] = new byte[3][Disk.SECTOR_SIZE];
+    byte got[] = new byte[Disk.SECTOR_SIZE];
+    int ii;
+
+    for(ii = 0; ii < b.length; ii++){
+      Arrays.fill(b[ii], (byte)(ii + 1));
+    }
+    try{
+      batch.add(new DiskResult(Disk.WRITE, 1, slow, b[0]));
+      batch.add(new DiskResult(Disk.BARRIER, DiskResult.RESERVED_TAG, 0, null));
+      batch.add(new DiskResult(Disk.WRITE, 2, sector, b[1]));
+      batch.add(new DiskResult(Disk.WRITE, 3, sector, b[2]));
+      d.startRequests(batch);
+      checkDone(ct.waitForTag(2), "superseded write");
+      d.startRequest(Disk.READ, 4, sector, got);
+      Thread.sleep(100);
+      release.countDown();
+      checkDone(ct.waitForTag(4), "read");
+      if(got[0] != 3){
+        System.out.println("ERROR: read after a superseded write saw " + got[0] + ", expected 3");
+        System.exit(-1);
+      }
+      checkDone(ct.waitForTag(3), "superseding write");
+    }
+    catch(Exception e){
+      System.out.println("Unexpected exception in read after superseded write " + e);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // A write that depends on a slow write does not start
+  // until that one is done, while an unrelated write in
+  // the same batch (which a barrier would have held up)
+  // goes right away if there is a worker for it. A
+  // dependency must already be queued.
+  //-------------------------------------------------------
+  private static void testDependencies(int sector)
+  {
+    CallbackTracker ct = new CallbackTracker();
+    Disk d = newDisk(ct);
+    ArrayList<DiskResult> batch = new ArrayList<DiskResult>();
+    byte b[][] = new byte[3][Disk.SECTOR_SIZE];
+    DiskResult slow, dependent, unrelated;
+    int ii;
+
+    for(ii = 0; ii < b.length; ii++){
+      Arrays.fill(b[ii], (byte)(ii + 1));
+    }
+    d.setLatencyModel((now, op, sectorNum, nSectors) ->
+                      sectorNum == sector ? now + 200L * 1000 * 1000 : 0);
+    try{
+      slow = new DiskResult(Disk.WRITE, 1, sector, b[0]);
+      dependent = new DiskResult(Disk.WRITE, 2, sector + 1, b[1]).after(slow);
+      unrelated = new DiskResult(Disk.WRITE, 3, sector + 10, b[2]);
+      batch.add(slow);
+      batch.add(dependent);
+      batch.add(unrelated);
+      d.startRequests(batch);
+      for(ii = 1; ii <= 3; ii++){
+        checkDone(ct.waitForTag(ii), "write");
+      }
+      if(dependent.getDispatchNanos() < slow.getDoneNanos()){
+        System.out.println("ERROR: dependent write started before its dependency was done");
+        System.exit(-1);
+      }
+      if(nWorkers > 1 && unrelated.getDoneNanos() >= slow.getDoneNanos()){
+        System.out.println("ERROR: unrelated write waited for the slow one");
+        System.exit(-1);
+      }
+      d.setLatencyModel(null);
+      checkSector(d, ct, sector + 1, (byte)2);
+
+      // Already done
+      d.startRequest(Disk.WRITE, 4, sector + 2, b[0]);
+      dependent = new DiskResult(Disk.READ, 5, sector + 2, new byte[Disk.SECTOR_SIZE]);
+      d.startRequests(Arrays.asList(dependent.after(ct.waitForTag(4))));
+      checkDone(ct.waitForTag(5), "read after write");
+      if(dependent.getBuf()[0] != 1){
+        System.out.println("ERROR: read after a done write missed its data");
+        System.exit(-1);
+      }
+
+      try{
+        d.startRequests(Arrays.asList(new DiskResult(Disk.WRITE, 6, sector, b[0])
+                                      .after(new DiskResult(Disk.WRITE, 7, sector, b[1]))));
+        System.out.println("ERROR: dependency on an unqueued request accepted");
+        System.exit(-1);
+      }
+      catch(IllegalArgumentException e){
+      }
+    }
+    catch(Exception e){
+      System.out.println("Unexpected exception in dependencies " + e);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Record a write, a barrier and a read that depends on
+  // the write, read the trace back, then replay it at
+  // full speed onto a RAM disk. (A completion is
+  // recorded after its callback returns, so the read's
+  // may miss the trace.)
+  //-------------------------------------------------------
+  private static void testTrace(int sector)
+  {
+    String path = "DISK_TRACE.dat";
+    CallbackTracker ct = new CallbackTracker();
+    Disk d = newDisk(ct);
+    DiskResult w, r;
+    ArrayList<DiskTrace.Entry> q = new ArrayList<DiskTrace.Entry>();
+    ArrayList<DiskTrace.Entry> done = new ArrayList<DiskTrace.Entry>();
+    DiskTrace.Entry e;
+    int barriers = 0;
+    DiskTraceReplayer replayer;
+
+    try{
+      d.startTrace(path);
+      w = new DiskResult(Disk.WRITE, 1, sector, 2, new byte[2 * Disk.SECTOR_SIZE]);
+      w.setDurable(true);
+      d.startRequests(Arrays.asList(w));
+      d.addBarrier();
+      r = new DiskResult(Disk.READ, 2, sector + 1, new byte[Disk.SECTOR_SIZE]).after(w);
+      d.startRequests(Arrays.asList(r));
+      checkDone(ct.waitForTag(1), "traced write");
+      checkDone(ct.waitForTag(2), "traced read");
+      d.stopTrace();
+
+      // Completions interleave with the queueing
+      try(DiskTrace.Reader reader = new DiskTrace.Reader(path)){
+        while((e = reader.next()) != null){
+          if(e.type == DiskTrace.QUEUED){
+            q.add(e);
+          }
+          else if(e.type == DiskTrace.DONE){
+            done.add(e);
+          }
+          else if(q.size() == 1){
+            barriers++;
+          }
+        }
+      }
+      if(q.size() != 2 || barriers != 1 || done.isEmpty() || done.size() > 2
+         || q.get(0).operation != Disk.WRITE || q.get(0).tag != 1 
+         || q.get(0).sectorNum != sector || q.get(0).nSectors != 2 
+         || !q.get(0).durable || q.get(0).id != w.getQueuedSeq()
+         || q.get(1).operation != Disk.READ || q.get(1).after.length != 1 
+         || q.get(1).after[0] != q.get(0).id
+         || done.get(0).id != q.get(0).id || !done.get(0).ok){
+        System.out.println("ERROR: trace does not match the requests");
+        System.exit(-1);
+      }
+
+      replayer = new DiskTraceReplayer(new RamDiskBackend(false, Disk.NUM_OF_SECTORS), 
+                                       nWorkers, new RandomDiskScheduler());
+      replayer.replay(path, false);
+      if(replayer.getErrors() != 0
+         || replayer.getDisk().getStats().getRequests(Disk.WRITE) != 1
+         || replayer.getDisk().getStats().getRequests(Disk.READ) != 1){
+        System.out.println("ERROR: replay issued " + replayer.getDisk().getStats());
+        System.exit(-1);
+      }
+      Files.delete(Paths.get(path));
+    }
+    catch(Exception ex){
+      System.out.println("Unexpected exception in trace " + ex);
+      System.exit(-1);
+    }
+  }
+
+  private static void checkSector(Disk d, CallbackTracker ct, int sector, byte expect)
+    throws IOException
+  {
+    byte b[] = new byte[Disk.SECTOR_SIZE];
+    d.startRequest(Disk.READ, 100, sector, b);
+    checkDone(ct.waitForTag(100), "read");
+    if(b[0] != expect || b[Disk.SECTOR_SIZE - 1] != expect){
+      System.out.println("ERROR: sector " + sector + " holds " + b[0] + ", expected " + expect);
+      System.exit(-1);
+    }
+  }
+
+  private static void checkDone(DiskResult r, String what)
+  {
+    if(r.getStatus() != DiskResult.OK){
+      System.out.println("ERROR: " + what + " " + r);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Discarding the tail of a file image gives the space
+  // back: after reopening, the tail reads as zeros and
+  // the image keeps its size.
+  //-------------------------------------------------------
+  private static void testSparseFile()
+  {
+    String path = "SPARSE_DISK.dat";
+    int numSectors = 1024;
+    byte b[] = new byte[24 * Disk.SECTOR_SIZE];
+    FileDiskBackend backend;
+    int ii;
+
+    try{
+      Files.deleteIfExists(Paths.get(path));
+      backend = new FileDiskBackend(path, false, numSectors);
+      Arrays.fill(b, (byte)3);
+      backend.write(numSectors - 24, 24, b);
+      backend.write(10, 1, b);
+      backend.discard(numSectors - 124, 124);
+      backend.close();
+
+      backend = new FileDiskBackend(path, false, numSectors);
+      if(backend.getNumSectors() != numSectors){
+        System.out.println("ERROR: sparse image changed size");
+        System.exit(-1);
+      }
+      backend.read(numSectors - 24, 24, b);
+      for(ii = 0; ii < b.length; ii++){
+        if(b[ii] != 0){
+          System.out.println("ERROR: discarded tail not zero");
+          System.exit(-1);
+        }
+      }
+      backend.read(10, 1, b);
+      if(b[0] != 3){
+        System.out.println("ERROR: data before the tail lost");
+        System.exit(-1);
+      }
+      backend.close();
+      Files.delete(Paths.get(path));
+    }
+    catch(IOException e){
+      System.out.println("Unexpected exception in sparse file " + e);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Write n sectors from a pooled buffer, dropping our
+  // reference as soon as the request is queued, then read
+  // them back into another pooled buffer. Buffers must be
+  // recycled rather than allocated again.
+  //-------------------------------------------------------
+  private static void testPooled(int first, int n)
+  {
+    SectorBufferPool pool = new SectorBufferPool(1024 * 1024);
+    CallbackTracker ct = new CallbackTracker();
+    Disk d = newDisk(ct);
+    SectorBuffer sb;
+    byte b[] = new byte[n * Disk.SECTOR_SIZE];
+    DiskResult r;
+    int ii, round;
+
+    for(round = 0; round < 10; round++){
+      for(ii = 0; ii < b.length; ii++){
+        b[ii] = (byte)(first + round + ii / Disk.SECTOR_SIZE);
+      }
+      try{
+        sb = pool.get(n);
+        sb.put(0, b, 0, b.length);
+        d.startRequest(Disk.WRITE, 1, first, sb);
+        sb.release();
+        r = ct.waitForTag(1);
+        if(r.getStatus() != DiskResult.OK){
+          System.out.println("ERROR: pooled write " + r);
+          System.exit(-1);
+        }
+
+        sb = pool.get(n);
+        d.startRequest(Disk.READ, 2, first, sb);
+        r = ct.waitForTag(2);
+        if(r.getStatus() != DiskResult.OK){
+          System.out.println("ERROR: pooled read " + r);
+          System.exit(-1);
+        }
+        Arrays.fill(b, (byte)0);
+        sb.get(0, b, 0, b.length);
+        sb.release();
+      }
+      catch(Exception e){
+        System.out.println("Unexpected exception in pooled request " + e);
+        System.exit(-1);
+      }
+      for(ii = 0; ii < b.length; ii++){
+        if(b[ii] != (byte)(first + round + ii / Disk.SECTOR_SIZE)){
+          System.out.println("ERROR: pooled read sector " + (first + ii / Disk.SECTOR_SIZE));
+          System.exit(-1);
+        }
+      }
+    }
+
+    //
+    // Disk drops its references just after the callbacks,
+    // so at most this round's and the last round's write
+    // and read buffers are live at once
+    //
+    if(pool.getAllocations() > 4){
+      System.out.println("ERROR: pool allocated " + pool.getAllocations() + " buffers");
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Several threads each rewrite their own sector of the
+  // same file system blocks through a DirectDiskBackend,
+  // where every write is a read-modify-write of a whole
+  // block. None may undo another's write. Skipped where
+  // the file system cannot do direct I/O.
+  //-------------------------------------------------------
+  private static void testDirectBlockSharing()
+  {
+    final int nThreads = 8;
+    final DirectDiskBackend backend;
+    Thread threads[] = new Thread[nThreads];
+    byte b[] = new byte[nThreads * Disk.SECTOR_SIZE];
+    int ii;
+
+    try{
+      backend = new DirectDiskBackend(Disk.PATH, Disk.NUM_OF_SECTORS);
+    }
+    catch(UnsupportedOperationException | IOException e){
+      System.out.println("Direct I/O not supported here: " + e);
+      return;
+    }
+    for(ii = 0; ii < nThreads; ii++){
+      final int me = ii;
+      threads[ii] = new Thread(() -> {
+          byte mine[] = new byte[Disk.SECTOR_SIZE];
+          int round;
+          try{
+            for(round = 0; round < 200; round++){
+              Arrays.fill(mine, (byte)(me + round));
+              backend.write(1 + me, 1, mine);
+            }
+          }
+          catch(IOException e){
+            System.out.println("Unexpected exception in direct write " + e);
+            System.exit(-1);
+          }
+        });
+      threads[ii].start();
+    }
+    try{
+      for(ii = 0; ii < nThreads; ii++){
+        threads[ii].join();
+      }
+      backend.flush();
+      backend.read(1, nThreads, b);
+      backend.close();
+    }
+    catch(Exception e){
+      System.out.println("Unexpected exception in direct read " + e);
+      System.exit(-1);
+    }
+    for(ii = 0; ii < b.length; ii++){
+      if(b[ii] != (byte)(ii / Disk.SECTOR_SIZE + 199)){
+        System.out.println("ERROR: direct write to sector " + (1 + ii / Disk.SECTOR_SIZE) 
+                           + " lost");
+        System.exit(-1);
+      }
+    }
+  }
+
+  //-------------------------------------------------------
+  // Stripe 4-sector stripes over three RAM members and
+  // write a run that starts and ends mid-stripe. Each
+  // sector must land on member (s/4)%3 at sector
+  // (s/4)/3*4 + s%4, and read back whole through the
+  // stripe set.
+  //-------------------------------------------------------
+  //-------------------------------------------------------
+  // A sector read twice moves into the RAM tier; a write
+  // to it stays there until flush(). With the tier full,
+  // a newcomer has to be accessed more often than the
+  // coldest held sector to take its place, and a dirty
+  // victim is written down on the way out.
+  //-------------------------------------------------------
+  private static void testTiers()
+  {
+    RamDiskBackend lower = new RamDiskBackend(false, 100);
+    TieredDiskBackend t = new TieredDiskBackend(lower, 2);
+    byte b[] = new byte[3 * Disk.SECTOR_SIZE];
+    byte one[] = new byte[Disk.SECTOR_SIZE];
+    int ii;
+
+    try{
+      for(ii = 0; ii < b.length; ii++){
+        b[ii] = (byte)(10 + ii / Disk.SECTOR_SIZE);
+      }
+      lower.write(10, 3, b);
+      t.read(11, 1, one);
+      t.read(11, 1, one);
+      if(!t.isHeld(11) || t.isHeld(10) || t.getHits() != 0){
+        System.out.println("ERROR: twice-read sector not promoted");
+        System.exit(-1);
+      }
+      Arrays.fill(b, (byte)0);
+      t.read(10, 3, b);
+      for(ii = 0; ii < b.length; ii++){
+        if(b[ii] != (byte)(10 + ii / Disk.SECTOR_SIZE)){
+          System.out.println("ERROR: mixed tier read sector " + (10 + ii / Disk.SECTOR_SIZE));
+          System.exit(-1);
+        }
+      }
+      if(t.getHits() != 1){
+        System.out.println("ERROR: " + t.getHits() + " tier hits, expected 1");
+        System.exit(-1);
+      }
+
+      t.read(10, 1, one);
+      Arrays.fill(one, (byte)77);
+      t.write(11, 1, one);
+      lower.read(11, 1, one);
+      if(!t.isHeld(10) || one[0] != 11){
+        System.out.println("ERROR: write to a held sector went through before flush");
+        System.exit(-1);
+      }
+      t.flush();
+      lower.read(11, 1, one);
+      if(one[0] != 77){
+        System.out.println("ERROR: flush did not write the held sector down");
+        System.exit(-1);
+      }
+      t.write(11, 1, one);
+
+      // 12 (read once already) needs more accesses than 10
+      // (count 2) to get in
+      t.read(12, 1, one);
+      if(t.isHeld(12)){
+        System.out.println("ERROR: newcomer evicted an equally hot sector");
+        System.exit(-1);
+      }
+      t.read(12, 1, one);
+      if(!t.isHeld(12) || t.isHeld(10) || !t.isHeld(11)){
+        System.out.println("ERROR: coldest sector not the one demoted");
+        System.exit(-1);
+      }
+      // 12 (count 4) is colder than 11 (count 5) now
+      Arrays.fill(one, (byte)88);
+      t.write(12, 1, one);
+      for(ii = 0; ii < 3; ii++){
+        t.read(10, 1, one);
+      }
+      lower.read(12, 1, one);
+      if(t.isHeld(12) || !t.isHeld(10) || one[0] != 88){
+        System.out.println("ERROR: dirty victim not written down");
+        System.exit(-1);
+      }
+      t.close();
+    }
+    catch(IOException e){
+      System.out.println("Unexpected exception in tiers " + e);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Readers that fetched a sector from below while a
+  // write promoted it into the tier must not promote it
+  // again with what they read: the write wins, in RAM
+  // and, after flush(), below, and no slot is lost.
+  //-------------------------------------------------------
+  private static void testTierRace()
+  {
+    final int nReaders = 3;
+    final CountDownLatch fetched = new CountDownLatch(nReaders);
+    final CountDownLatch written = new CountDownLatch(1);
+    final RamDiskBackend lower = new RamDiskBackend(false, 100){
+        public void read(int sectorNum, ByteBuffer b)
+        {
+          super.read(sectorNum, b);
+          if(sectorNum == 20 && Thread.currentThread().getName().startsWith("reader")){
+            fetched.countDown();
+            try{
+              written.await();
+            }
+            catch(InterruptedException e){
+              Thread.currentThread().interrupt();
+            }
+          }
+        }
+      };
+    final TieredDiskBackend t = new TieredDiskBackend(lower, 2);
+    final byte old[] = new byte[Disk.SECTOR_SIZE];
+    byte one[] = new byte[Disk.SECTOR_SIZE];
+    Thread readers[] = new Thread[nReaders];
+    int ii;
+
+    try{
+      Arrays.fill(old, (byte)1);
+      lower.write(20, 1, old);
+      // One access now, so the write is the one that promotes
+      t.read(20, 1, one);
+      for(ii = 0; ii < nReaders; ii++){
+        readers[ii] = new Thread(() -> {
+            try{
+              t.read(20, 1, new byte[Disk.SECTOR_SIZE]);
+            }
+            catch(IOException e){
+              System.out.println("Unexpected exception in tier reader " + e);
+              System.exit(-1);
+            }
+          }, "reader" + ii);
+        readers[ii].start();
+      }
+      fetched.await();
+      Arrays.fill(one, (byte)99);
+      t.write(20, 1, one);
+      written.countDown();
+      for(ii = 0; ii < nReaders; ii++){
+        readers[ii].join();
+      }
+      if(!t.isHeld(20)){
+        System.out.println("ERROR: written sector not promoted");
+        System.exit(-1);
+      }
+      t.read(20, 1, one);
+      if(one[0] != 99){
+        System.out.println("ERROR: racing read replaced the tier copy with old data");
+        System.exit(-1);
+      }
+      t.flush();
+      lower.read(20, 1, one);
+      if(one[0] != 99){
+        System.out.println("ERROR: flush wrote down " + one[0] + ", not the write");
+        System.exit(-1);
+      }
+      // A lost slot would leave no room for a second sector
+      t.read(21, 1, one);
+      t.read(21, 1, one);
+      if(!t.isHeld(21) || !t.isHeld(20)){
+        System.out.println("ERROR: tier lost a slot to the race");
+        System.exit(-1);
+      }
+      t.close();
+    }
+    catch(IOException | InterruptedException e){
+      System.out.println("Unexpected exception in tier race " + e);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // A write to another sector does not keep a racing
+  // read from promoting. flush() writes a run of dirty
+  // sectors down as one transfer, without the tier lock:
+  // meanwhile a held sector can be read, and a write to a
+  // sector on its way down is absorbed for next time.
+  //-------------------------------------------------------
+  private static void testTierFlush()
+  {
+    final CountDownLatch inRead = new CountDownLatch(1);
+    final CountDownLatch goRead = new CountDownLatch(1);
+    final CountDownLatch inWrite = new CountDownLatch(1);
+    final CountDownLatch goWrite = new CountDownLatch(1);
+    final Vector<Integer> transfers = new Vector<Integer>(); // First, n of each
+    final RamDiskBackend lower = new RamDiskBackend(false, 100){
+        public void read(int sectorNum, ByteBuffer b)
+        {
+          super.read(sectorNum, b);
+          if(Thread.currentThread().getName().equals("reader")){
+            inRead.countDown();
+            await(goRead);
+          }
+        }
+        public void write(int sectorNum, ByteBuffer b)
+        {
+          if(Thread.currentThread().getName().equals("flusher")){
+            transfers.add(sectorNum);
+            transfers.add(b.remaining() / Disk.SECTOR_SIZE);
+            inWrite.countDown();
+            await(goWrite);
+          }
+          super.write(sectorNum, b);
+        }
+      };
+    final TieredDiskBackend t = new TieredDiskBackend(lower, 4);
+    byte run[] = new byte[3 * Disk.SECTOR_SIZE];
+    byte one[] = new byte[Disk.SECTOR_SIZE];
+    Thread reader;
+    Thread flusher;
+
+    try{
+      t.read(50, 1, one);
+      reader = new Thread(() -> {
+          try{
+            t.read(50, 1, new byte[Disk.SECTOR_SIZE]);
+          }
+          catch(IOException e){
+            System.out.println("Unexpected exception in tier reader " + e);
+            System.exit(-1);
+          }
+        }, "reader");
+      reader.start();
+      inRead.await();
+      t.write(51, 1, one);
+      goRead.countDown();
+      reader.join();
+      if(!t.isHeld(50) || t.isHeld(51)){
+        System.out.println("ERROR: write to another sector blocked a promotion");
+        System.exit(-1);
+      }
+
+      t.read(30, 3, run);
+      Arrays.fill(run, (byte)7);
+      t.write(30, 3, run);
+      flusher = new Thread(() -> {
+          try{
+            t.flush();
+          }
+          catch(IOException e){
+            System.out.println("Unexpected exception in tier flush " + e);
+            System.exit(-1);
+          }
+        }, "flusher");
+      flusher.start();
+      inWrite.await();
+      t.read(50, 1, one);
+      Arrays.fill(one, (byte)8);
+      t.write(30, 1, one);
+      goWrite.countDown();
+      flusher.join();
+      if(transfers.size() != 2 || transfers.get(0) != 30 || transfers.get(1) != 3){
+        System.out.println("ERROR: dirty run written down as " + transfers);
+        System.exit(-1);
+      }
+      lower.read(30, 3, run);
+      if(run[0] != 7 || run[2 * Disk.SECTOR_SIZE] != 7){
+        System.out.println("ERROR: flush did not write the run down");
+        System.exit(-1);
+      }
+      t.flush();
+      lower.read(30, 1, one);
+      if(!t.isHeld(30) || one[0] != 8){
+        System.out.println("ERROR: write during flush not written down by the next");
+        System.exit(-1);
+      }
+      t.close();
+    }
+    catch(IOException | InterruptedException e){
+      System.out.println("Unexpected exception in tier flush " + e);
+      System.exit(-1);
+    }
+  }
+
+  private static void await(CountDownLatch latch)
+  {
+    try{
+      latch.await();
+    }
+    catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void testStripeLayout()
+  {
+    RamDiskBackend m[] = new RamDiskBackend[3];
+    StripedDiskBackend striped;
+    int first = 2;
+    int n = 27;
+    byte b[] = new byte[n * Disk.SECTOR_SIZE];
+    byte one[] = new byte[Disk.SECTOR_SIZE];
+    int ii, s;
+
+    for(ii = 0; ii < m.length; ii++){
+      m[ii] = new RamDiskBackend(false, 102);
+    }
+    for(ii = 0; ii < b.length; ii++){
+      b[ii] = (byte)(first + ii / Disk.SECTOR_SIZE);
+    }
+    try{
+      striped = new StripedDiskBackend(m, 4);
+      if(striped.getNumSectors() != 3 * 100){
+        System.out.println("ERROR: stripe set has " + striped.getNumSectors() + " sectors");
+        System.exit(-1);
+      }
+      striped.write(first, n, b);
+      for(s = first; s < first + n; s++){
+        m[(s / 4) % 3].read((s / 4) / 3 * 4 + s % 4, 1, one);
+        if(one[0] != (byte)s || one[Disk.SECTOR_SIZE - 1] != (byte)s){
+          System.out.println("ERROR: sector " + s + " not on its member");
+          System.exit(-1);
+        }
+      }
+      Arrays.fill(b, (byte)0);
+      striped.read(first, n, b);
+      for(ii = 0; ii < b.length; ii++){
+        if(b[ii] != (byte)(first + ii / Disk.SECTOR_SIZE)){
+          System.out.println("ERROR: striped read sector " + (first + ii / Disk.SECTOR_SIZE));
+          System.exit(-1);
+        }
+      }
+      striped.close();
+    }
+    catch(IOException e){
+      System.out.println("Unexpected exception in stripe layout " + e);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Create a sparse 4 GB image, write a run that crosses
+  // the 2 GB mark through the file backend, then read it
+  // back through the mapped backend, where the same run
+  // crosses a mapping segment. Every offset here is past
+  // what an int byte offset can hold.
+  //-------------------------------------------------------
+  private static void testLargeDisk()
+  {
+    String path = "LARGE_DISK.dat";
+    int numSectors = 8 * 1024 * 1024;
+    int first = (int)((1L << 31) / Disk.SECTOR_SIZE) - 2;
+    int n = 4;
+    CallbackTracker ct = new CallbackTracker();
+    byte b[] = new byte[n * Disk.SECTOR_SIZE];
+    byte c[] = new byte[n * Disk.SECTOR_SIZE];
+    Disk d;
+    DiskResult r;
+    int ii;
+
+    for(ii = 0; ii < b.length; ii++){
+      b[ii] = (byte)(ii / Disk.SECTOR_SIZE + 1);
+    }
+    try{
+      Files.deleteIfExists(Paths.get(path));
+      d = new Disk(ct, new FileDiskBackend(path, false, numSectors));
+      if(d.getNumSectors() != numSectors){
+        System.out.println("ERROR: large disk has " + d.getNumSectors() + " sectors");
+        System.exit(-1);
+      }
+      d.startRequest(Disk.WRITE, 1, first, n, b, true);
+      r = ct.waitForTag(1);
+      if(r.getStatus() != DiskResult.OK){
+        System.out.println("ERROR: large disk write " + r);
+        System.exit(-1);
+      }
+      try{
+        d.startRequest(Disk.WRITE, 2, numSectors, b);
+        System.out.println("ERROR: write past end of large disk accepted");
+        System.exit(-1);
+      }
+      catch(IllegalArgumentException e){
+      }
+
+      d = new Disk(ct, new MappedDiskBackend(path));
+      d.startRequest(Disk.READ, 3, first, n, c);
+      r = ct.waitForTag(3);
+      if(r.getStatus() != DiskResult.OK || !Arrays.equals(b, c)){
+        System.out.println("ERROR: large disk read " + r);
+        System.exit(-1);
+      }
+      Files.deleteIfExists(Paths.get(path));
+    }
+    catch(IOException e){
+      System.out.println("Unexpected exception in large disk " + e);
+      System.exit(-1);
+    }
+  }
+
+  //-------------------------------------------------------
+  // Snapshot the RAM disk to a file, restore into a fresh
+  // RAM disk and compare every sector
+  //-------------------------------------------------------
+  private static void testRamSnapshot()
+  {
+    RamDiskBackend copy = new RamDiskBackend();
+    byte a[] = new byte[Disk.SECTOR_SIZE];
+    byte b[] = new byte[Disk.SECTOR_SIZE];
+    int ii, jj;
+
+    try{
+      ramDisk.snapshot("RAMDISK.dat");
+      copy.restore("RAMDISK.dat");
+    }
+    catch(IOException e){
+      System.out.println("Unexpected exception in snapshot " + e);
+      System.exit(-1);
+    }
+    for(ii = 0; ii < Disk.NUM_OF_SECTORS; ii++){
+      ramDisk.read(ii, 1, a);
+      copy.read(ii, 1, b);
+      for(jj = 0; jj < Disk.SECTOR_SIZE; jj++){
+        if(a[jj] != b[jj]){
+          System.out.println("ERROR: snapshot differs at sector " + ii);
+          System.exit(-1);
+        }
+      }
+    }
+  }
+
   //-------------------------------------------------------
   // set Disk.SECTOR_SIZE bytes to specified value
   //-------------------------------------------------------
@@ -318,12 +1691,14 @@ public class DiskUnit implements DiskCallback{
         }
         else{
           //
-          // Fake error. Expected case
+          // Fake error. Expected case. The fake request does
+          // not stand for a real sector, and with several
+          // workers a request already in flight may still
+          // complete after it, so leave status alone.
           //
           if(vverbose){
             System.out.println("Request " + result.getSectorNum() + " fake error");
           }
-          status[sec] = DONE_ERROR;
           anyHaveError = true;
           resultAvailable.signal();
           return;
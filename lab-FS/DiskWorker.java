@@ -9,35 +9,52 @@
  * (C) 2007,2010 Mike Dahlin
  *
  */
-import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 public class DiskWorker extends Thread{
-  RandomAccessFile file;
+  //
+  // Most requests one callback covers
+  //
+  private static final int MAX_BATCH = 32;
+
+  DiskBackend backend;
   Disk disk;
   DiskCallback callback;
   
   //-------------------------------------------------------
   // DiskWorker
   //-------------------------------------------------------
-  public DiskWorker(Disk disk, RandomAccessFile file, 
+  public DiskWorker(Disk disk, DiskBackend backend, 
                     DiskCallback callback)
   {
     this.disk = disk;
-    this.file = file;
+    this.backend = backend;
     this.callback = callback;
   }
 
   //-------------------------------------------------------
   // run() -- All work and no play makes run() a dull
   // method.
+  //
+  // Once a worker has done what getWork() gave it, it
+  // calls back for it together with any superseded
+  // writes waiting (up to MAX_BATCH requests), which
+  // need no I/O. Nothing that still needs I/O is started
+  // before the callback.
   //-------------------------------------------------------
   public void run()
   {
+    List<DiskResult> work;
+    ArrayList<DiskResult> done;
+    ArrayList<DiskResult> extra;
     DiskResult req;
     while(true){
       try{
-        req = disk.getWork();
+        work = disk.getWork();
       }
       catch(IOException e){
         //
@@ -49,22 +66,311 @@ public class DiskWorker extends Thread{
         return; // Stop working on requests. Thread exit.
       }
 
-      assert(req.getOperation() == Disk.READ || req.getOperation() == Disk.WRITE);
+      serve(work);
+      done = new ArrayList<DiskResult>(work);
+      extra = disk.takeSuperseded(MAX_BATCH - done.size());
+      if(!extra.isEmpty()){
+        serve(extra);
+        done.addAll(extra);
+      }
+      finish(done);
+    }
+  }
 
-      try{
-        file.seek(req.getSectorNum() * Disk.SECTOR_SIZE);
-        if(req.getOperation() == Disk.READ){
-          file.read(req.getBuf(), 0, Disk.SECTOR_SIZE);
+  //-------------------------------------------------------
+  // serve -- do one batch from getWork() (or a run of
+  // superseded writes), setting each request's status and
+  // completion time
+  //-------------------------------------------------------
+  private void serve(List<DiskResult> work)
+  {
+    DiskResult req;
+    DiskLatencyModel model;
+    long start;
+    long doneAt;
+    int nSectors;
+
+    req = work.get(0);
+    assert(req.getOperation() == Disk.READ || req.getOperation() == Disk.WRITE
+           || req.getOperation() == Disk.DISCARD);
+
+    //
+    // nSectors is what the device model charges for:
+    // everything for a write, nothing for a discard or a
+    // read the track buffer served, the whole window
+    // for a read-ahead, nothing for a superseded write
+    // (which is always alone)
+    //
+    start = System.nanoTime();
+    nSectors = 0;
+    for(DiskResult r : work){
+      nSectors += r.getNSectors();
+    }
+    try{
+      if(req.isSuperseded()){
+        nSectors = 0;
+      }
+      else if(req.getOperation() == Disk.READ){
+        nSectors = read(req);
+      }
+      else if(req.getOperation() == Disk.DISCARD){
+        nSectors = 0;
+        discard(req);
+      }
+      else{
+        write(work);
+      }
+      setStatus(work, DiskResult.OK);
+    }
+    catch(IOException e){
+      setStatus(work, DiskResult.REAL_ERROR);
+    }
+    if(req.getOperation() != Disk.READ && !req.isSuperseded()){
+      invalidate(work);
+    }
+    doneAt = 0;
+    model = disk.getLatencyModel();
+    if(model != null && nSectors > 0){
+      doneAt = model.complete(start, req.getOperation(), 
+                              req.getSectorNum(), nSectors);
+    }
+    waitUntil(doneAt);
+    doneAt = System.nanoTime();
+    for(DiskResult r : work){
+      r.setDoneNanos(doneAt);
+    }
+  }
+
+  //-------------------------------------------------------
+  // finish -- call back for done, tell Disk, then complete
+  // the futures of the requests that came from submit()
+  //-------------------------------------------------------
+  private void finish(List<DiskResult> done)
+  {
+    List<DiskResult> tagged = done;
+
+    if(hasFutures(done)){
+      tagged = new ArrayList<DiskResult>();
+      for(DiskResult r : done){
+        if(r.getFuture() == null){
+          tagged.add(r);
         }
-        else{
-          file.write(req.getBuf(), 0, Disk.SECTOR_SIZE);
+      }
+    }
+    if(!tagged.isEmpty()){
+      callback.requestsDone(tagged);
+    }
+    disk.workDone(done);
+    for(DiskResult r : done){
+      if(r.getFuture() != null){
+        r.getFuture().complete(r);
+      }
+    }
+  }
+
+  //-------------------------------------------------------
+  // read -- at most one backend transfer per request. A
+  // scatter/gather request is staged through a single
+  // pooled buffer. Returns the sectors taken from the
+  // backend.
+  //-------------------------------------------------------
+  private int read(DiskResult req)
+    throws IOException
+  {
+    byte bufs[][] = req.getBufs();
+    SectorBuffer sb = req.getSectorBuffer();
+    int fetched;
+    int ii;
+
+    if(sb != null){
+      return fetch(req.getSectorNum(), sb.getByteBuffer());
+    }
+    if(bufs == null){
+      return fetch(req.getSectorNum(), 
+                   ByteBuffer.wrap(req.getBuf(), 0, 
+                                   req.getNSectors() * Disk.SECTOR_SIZE));
+    }
+    sb = SectorBufferPool.SHARED.get(bufs.length);
+    try{
+      fetched = fetch(req.getSectorNum(), sb.getByteBuffer());
+      for(ii = 0; ii < bufs.length; ii++){
+        sb.get(ii * Disk.SECTOR_SIZE, bufs[ii], 0, Disk.SECTOR_SIZE);
+      }
+      return fetched;
+    }
+    finally{
+      sb.release();
+    }
+  }
+
+  //-------------------------------------------------------
+  // fetch -- fill dst with the sectors at sectorNum: out
+  // of the track buffer if it holds them, else from the
+  // backend, taking a whole window if the reads have
+  // turned sequential. Returns the sectors read from the
+  // backend (0 for a track buffer hit).
+  //-------------------------------------------------------
+  private int fetch(int sectorNum, ByteBuffer dst)
+    throws IOException
+  {
+    TrackBuffer tb = disk.getTrackBuffer();
+    int nSectors = dst.remaining() / Disk.SECTOR_SIZE;
+    TrackBuffer.Fill fill = null;
+    ByteBuffer window = null;
+    SectorBuffer sb;
+
+    if(tb != null && tb.read(sectorNum, nSectors, dst)){
+      return 0;
+    }
+    if(tb != null){
+      fill = tb.startFill(sectorNum, nSectors);
+    }
+    if(fill == null){
+      backend.read(sectorNum, dst);
+      return nSectors;
+    }
+    sb = SectorBufferPool.SHARED.get(fill.nSectors);
+    try{
+      backend.read(sectorNum, sb.getByteBuffer());
+      window = sb.getByteBuffer();
+      tb.endFill(fill, window);
+      dst.put(window.limit(nSectors * Disk.SECTOR_SIZE));
+      return fill.nSectors;
+    }
+    finally{
+      if(window == null){
+        tb.endFill(fill, null);
+      }
+      sb.release();
+    }
+  }
+
+  //-------------------------------------------------------
+  // write -- work is a run of writes to consecutive
+  // sectors (usually just one). Do them with one backend
+  // transfer, then flush if any of them must be durable.
+  //-------------------------------------------------------
+  private void write(List<DiskResult> work)
+    throws IOException
+  {
+    DiskResult first = work.get(0);
+    boolean durable = false;
+    int nSectors = 0;
+    SectorBuffer sb;
+    ByteBuffer b;
+
+    if(work.size() == 1 && first.getSectorBuffer() != null){
+      backend.write(first.getSectorNum(), first.getSectorBuffer().getByteBuffer());
+      durable = first.isDurable();
+    }
+    else if(work.size() == 1 && first.getBufs() == null){
+      backend.write(first.getSectorNum(), first.getNSectors(), first.getBuf());
+      durable = first.isDurable();
+    }
+    else{
+      for(DiskResult req : work){
+        assert(req.getSectorNum() == first.getSectorNum() + nSectors);
+        nSectors += req.getNSectors();
+      }
+      sb = SectorBufferPool.SHARED.get(nSectors);
+      try{
+        b = sb.getByteBuffer();
+        for(DiskResult req : work){
+          copyOut(req, b);
+          durable = durable || req.isDurable();
         }
-        req.setStatus(DiskResult.OK);
+        b.flip();
+        backend.write(first.getSectorNum(), b);
       }
-      catch(IOException e){
-        req.setStatus(DiskResult.REAL_ERROR);
+      finally{
+        sb.release();
       }
-      callback.requestDone(req);
+    }
+    if(durable){
+      backend.flush();
+    }
+  }
+
+  //-------------------------------------------------------
+  // discard -- no data moves, so the device model does
+  // not charge for it
+  //-------------------------------------------------------
+  private void discard(DiskResult req)
+    throws IOException
+  {
+    backend.discard(req.getSectorNum(), req.getNSectors());
+    if(req.isDurable()){
+      backend.flush();
+    }
+  }
+
+  //-------------------------------------------------------
+  // invalidate -- work may have changed the backend (even
+  // if it failed); drop any read-ahead copy before the
+  // callback so a later read sees the new data
+  //-------------------------------------------------------
+  private void invalidate(List<DiskResult> work)
+  {
+    TrackBuffer tb = disk.getTrackBuffer();
+    if(tb == null){
+      return;
+    }
+    for(DiskResult r : work){
+      tb.invalidate(r.getSectorNum(), r.getNSectors());
+    }
+  }
+
+  //-------------------------------------------------------
+  // copyOut -- append the data of write req to b
+  //-------------------------------------------------------
+  private static void copyOut(DiskResult req, ByteBuffer b)
+  {
+    byte bufs[][] = req.getBufs();
+    int ii;
+
+    if(req.getSectorBuffer() != null){
+      b.put(req.getSectorBuffer().getByteBuffer());
+      return;
+    }
+    if(bufs == null){
+      b.put(req.getBuf(), 0, req.getNSectors() * Disk.SECTOR_SIZE);
+      return;
+    }
+    for(ii = 0; ii < bufs.length; ii++){
+      b.put(bufs[ii], 0, Disk.SECTOR_SIZE);
+    }
+  }
+
+  //-------------------------------------------------------
+  // waitUntil -- hold the completion until the modeled
+  // device would have finished (no-op for 0)
+  //-------------------------------------------------------
+  private static void waitUntil(long doneAt)
+  {
+    long left;
+    while(doneAt != 0 && (left = doneAt - System.nanoTime()) > 0){
+      LockSupport.parkNanos(left);
+    }
+  }
+
+  //-------------------------------------------------------
+  // hasFutures -- whether any of work came from
+  // Disk.submit() rather than startRequest()
+  //-------------------------------------------------------
+  private static boolean hasFutures(List<DiskResult> work)
+  {
+    for(DiskResult r : work){
+      if(r.getFuture() != null){
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void setStatus(List<DiskResult> work, int status)
+  {
+    for(DiskResult req : work){
+      req.setStatus(status);
     }
   }
   
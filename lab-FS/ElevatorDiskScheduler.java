@@ -0,0 +1,180 @@
+/*
+ * ElevatorDiskScheduler.java
+ *
+ * C-SCAN: sweep upward through sector numbers from where
+ * the last request started and wrap around to the lowest
+ * queued sector when nothing is left above.
+ *
+ * Writes are sorted only within the epoch at the head of
+ * the queue (no write passes a BARRIER). Reads can pass
+ * barriers, so all queued reads take part in the sweep.
+ * A BARRIER still cannot retire while reads queued ahead
+ * of it are waiting.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ElevatorDiskScheduler implements DiskScheduler{
+  //
+  // Requests queued between two barriers
+  //
+  private static class Epoch{
+    TreeMap<Integer, ArrayDeque<DiskResult>> writes = new TreeMap<>();
+    int nWrites = 0;
+    int nReads = 0;
+    boolean closed = false; // A BARRIER follows this epoch
+  }
+
+  //
+  // A queued read remembers its epoch so that epoch's
+  // barrier can wait for it
+  //
+  private static class QueuedRead{
+    DiskResult dr;
+    Epoch epoch;
+    QueuedRead(DiskResult dr, Epoch epoch){
+      this.dr = dr;
+      this.epoch = epoch;
+    }
+  }
+
+  private ArrayDeque<Epoch> epochs;
+  private TreeMap<Integer, ArrayDeque<QueuedRead>> reads;
+  private int position;
+
+  //-------------------------------------------------------
+  // ElevatorDiskScheduler
+  //-------------------------------------------------------
+  public ElevatorDiskScheduler()
+  {
+    this.epochs = new ArrayDeque<Epoch>();
+    this.epochs.addLast(new Epoch());
+    this.reads = new TreeMap<Integer, ArrayDeque<QueuedRead>>();
+    this.position = 0;
+  }
+
+  public void add(DiskResult dr)
+  {
+    Epoch tail = epochs.getLast();
+    if(dr.getOperation() == Disk.BARRIER){
+      tail.closed = true;
+      epochs.addLast(new Epoch());
+    }
+    else if(dr.getOperation() == Disk.READ){
+      reads.computeIfAbsent(dr.getSectorNum(), k -> new ArrayDeque<QueuedRead>())
+        .addLast(new QueuedRead(dr, tail));
+      tail.nReads++;
+    }
+    else{
+      tail.writes.computeIfAbsent(dr.getSectorNum(), k -> new ArrayDeque<DiskResult>())
+        .addLast(dr);
+      tail.nWrites++;
+    }
+  }
+
+  public boolean barrierAtHead()
+  {
+    Epoch head = epochs.getFirst();
+    return head.closed && head.nReads == 0 && head.nWrites == 0;
+  }
+
+  public void removeBarrier()
+  {
+    assert(barrierAtHead());
+    epochs.removeFirst();
+  }
+
+  //-------------------------------------------------------
+  // next() -- lowest eligible sector at or above position;
+  // if there is none, wrap to the lowest eligible sector.
+  //-------------------------------------------------------
+  public DiskResult next()
+  {
+    Epoch head = epochs.getFirst();
+    Map.Entry<Integer, ArrayDeque<QueuedRead>> r;
+    Map.Entry<Integer, ArrayDeque<DiskResult>> w;
+    QueuedRead qr;
+    DiskResult dr;
+
+    r = reads.ceilingEntry(position);
+    w = head.writes.ceilingEntry(position);
+    if(r == null && w == null){
+      r = reads.firstEntry();
+      w = head.writes.firstEntry();
+    }
+    if(r == null && w == null){
+      return null;
+    }
+
+    if(w == null || (r != null && r.getKey() <= w.getKey())){
+      qr = r.getValue().removeFirst();
+      if(r.getValue().isEmpty()){
+        reads.remove(r.getKey());
+      }
+      qr.epoch.nReads--;
+      dr = qr.dr;
+    }
+    else{
+      dr = w.getValue().removeFirst();
+      if(w.getValue().isEmpty()){
+        head.writes.remove(w.getKey());
+      }
+      head.nWrites--;
+    }
+    position = dr.getSectorNum() + dr.getNSectors();
+    return dr;
+  }
+
+  public DiskResult removeWrite(int sectorNum)
+  {
+    Epoch head = epochs.getFirst();
+    ArrayDeque<DiskResult> q = head.writes.get(sectorNum);
+    DiskResult dr = null;
+
+    if(q == null){
+      return null;
+    }
+    for(DiskResult w : q){
+      if(w.getOperation() == Disk.WRITE){
+        dr = w;
+        break;
+      }
+    }
+    if(dr == null){
+      return null; // Only DISCARDs start here
+    }
+    q.remove(dr);
+    if(q.isEmpty()){
+      head.writes.remove(sectorNum);
+    }
+    head.nWrites--;
+    position = dr.getSectorNum() + dr.getNSectors();
+    return dr;
+  }
+
+  public DiskResult removeSuperseded(DiskResult dr)
+  {
+    Epoch tail = epochs.getLast();
+    ArrayDeque<DiskResult> q = tail.writes.get(dr.getSectorNum());
+
+    if(q == null){
+      return null;
+    }
+    for(DiskResult w : q){
+      if(DiskScheduler.supersedes(dr, w)){
+        q.remove(w);
+        if(q.isEmpty()){
+          tail.writes.remove(dr.getSectorNum());
+        }
+        tail.nWrites--;
+        return w;
+      }
+    }
+    return null;
+  }
+}
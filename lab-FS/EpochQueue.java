@@ -0,0 +1,201 @@
+/*
+ * EpochQueue.java
+ *
+ * Pending Disk requests, split into epochs by BARRIERs.
+ *
+ * Only two kinds of request may be handed out:
+ *  -- writes in the head epoch (writes cannot pass a barrier)
+ *  -- reads in any epoch (reads can pass a barrier)
+ * so we keep exactly those two sets in array-backed bags
+ * that support O(1) removal of any member (swap with the
+ * last element). Writes queued behind a barrier wait in
+ * their own epoch until it reaches the head.
+ *
+ * add, removeEligible, removeWrite, barrierAtHead and
+ * removeBarrier are all O(1) (removeWrite is O(k) in the
+ * number of queued writes to the same sector).
+ *
+ * Not thread safe; Disk holds its lock.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class EpochQueue{
+  //
+  // A queued request and where it currently sits in a bag
+  //
+  private static class Slot{
+    DiskResult dr;
+    Epoch epoch;
+    int index;
+    Slot(DiskResult dr, Epoch epoch){
+      this.dr = dr;
+      this.epoch = epoch;
+      this.index = -1;
+    }
+  }
+
+  //
+  // Requests queued between two barriers. Writes sit in
+  // the writes bag and bySector index; reads only count
+  // here (they live in the shared reads bag).
+  //
+  private static class Epoch{
+    ArrayList<Slot> writes = new ArrayList<Slot>();
+    HashMap<Integer, ArrayDeque<Slot>> bySector = new HashMap<Integer, ArrayDeque<Slot>>();
+    int nReads = 0;
+    boolean closed = false; // A BARRIER follows this epoch
+  }
+
+  private ArrayDeque<Epoch> epochs;
+  private ArrayList<Slot> reads;
+
+  //-------------------------------------------------------
+  // EpochQueue
+  //-------------------------------------------------------
+  public EpochQueue()
+  {
+    this.epochs = new ArrayDeque<Epoch>();
+    this.epochs.addLast(new Epoch());
+    this.reads = new ArrayList<Slot>();
+  }
+
+  //-------------------------------------------------------
+  // add -- queue a READ, WRITE, DISCARD or BARRIER
+  //-------------------------------------------------------
+  public void add(DiskResult dr)
+  {
+    Epoch tail = epochs.getLast();
+    Slot slot;
+
+    if(dr.getOperation() == Disk.BARRIER){
+      tail.closed = true;
+      epochs.addLast(new Epoch());
+      return;
+    }
+    slot = new Slot(dr, tail);
+    if(dr.getOperation() == Disk.READ){
+      bagAdd(reads, slot);
+      tail.nReads++;
+    }
+    else{
+      bagAdd(tail.writes, slot);
+      tail.bySector.computeIfAbsent(dr.getSectorNum(), k -> new ArrayDeque<Slot>())
+        .addLast(slot);
+    }
+  }
+
+  public boolean barrierAtHead()
+  {
+    Epoch head = epochs.getFirst();
+    return head.closed && head.nReads == 0 && head.writes.isEmpty();
+  }
+
+  public void removeBarrier()
+  {
+    assert(barrierAtHead());
+    epochs.removeFirst();
+  }
+
+  //-------------------------------------------------------
+  // eligibleCount -- number of requests that may go now.
+  // Indexes 0..eligibleCount()-1 name them for
+  // removeEligible; any removal renumbers.
+  //-------------------------------------------------------
+  public int eligibleCount()
+  {
+    return epochs.getFirst().writes.size() + reads.size();
+  }
+
+  public DiskResult removeEligible(int ii)
+  {
+    Epoch head = epochs.getFirst();
+    Slot slot;
+
+    if(ii < head.writes.size()){
+      slot = head.writes.get(ii);
+      removeWriteSlot(slot);
+    }
+    else{
+      slot = reads.get(ii - head.writes.size());
+      bagRemove(reads, slot);
+      slot.epoch.nReads--;
+    }
+    return slot.dr;
+  }
+
+  //-------------------------------------------------------
+  // removeWrite -- oldest head-epoch WRITE that starts at
+  // sectorNum, or null. DISCARDs sit with the writes (they
+  // are ordered the same way) but are never returned here.
+  //-------------------------------------------------------
+  public DiskResult removeWrite(int sectorNum)
+  {
+    ArrayDeque<Slot> q = epochs.getFirst().bySector.get(sectorNum);
+
+    if(q == null){
+      return null;
+    }
+    for(Slot slot : q){
+      if(slot.dr.getOperation() == Disk.WRITE){
+        removeWriteSlot(slot);
+        return slot.dr;
+      }
+    }
+    return null;
+  }
+
+  //-------------------------------------------------------
+  // removeSuperseded -- see DiskScheduler. Looks in the
+  // tail epoch only.
+  //-------------------------------------------------------
+  public DiskResult removeSuperseded(DiskResult dr)
+  {
+    ArrayDeque<Slot> q = epochs.getLast().bySector.get(dr.getSectorNum());
+
+    if(q == null){
+      return null;
+    }
+    for(Slot slot : q){
+      if(DiskScheduler.supersedes(dr, slot.dr)){
+        removeWriteSlot(slot);
+        return slot.dr;
+      }
+    }
+    return null;
+  }
+
+  private void removeWriteSlot(Slot slot)
+  {
+    ArrayDeque<Slot> q = slot.epoch.bySector.get(slot.dr.getSectorNum());
+    q.remove(slot);
+    if(q.isEmpty()){
+      slot.epoch.bySector.remove(slot.dr.getSectorNum());
+    }
+    bagRemove(slot.epoch.writes, slot);
+  }
+
+  //-------------------------------------------------------
+  // bagAdd/bagRemove -- O(1) unordered set on an ArrayList
+  //-------------------------------------------------------
+  private static void bagAdd(ArrayList<Slot> bag, Slot slot)
+  {
+    slot.index = bag.size();
+    bag.add(slot);
+  }
+
+  private static void bagRemove(ArrayList<Slot> bag, Slot slot)
+  {
+    Slot last = bag.remove(bag.size() - 1);
+    if(last != slot){
+      last.index = slot.index;
+      bag.set(slot.index, last);
+    }
+    slot.index = -1;
+  }
+}
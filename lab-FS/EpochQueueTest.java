@@ -0,0 +1,82 @@
+import java.util.HashSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class EpochQueueTest {
+    //-------------------------------------------------------
+    // main() -- EpochQueue test
+    //-------------------------------------------------------
+    public static void main(String[] args) {
+        testBarrierRules();
+        testDeepQueue(50000);
+
+        System.out.println("All Tests Passed!");
+    }
+
+    // 写不能越过barrier，读可以
+    private static void testBarrierRules() {
+        System.out.println("Test 1: test barrier rules");
+        EpochQueue queue = new EpochQueue();
+
+        queue.add(request(Disk.WRITE, 1, 10));
+        queue.add(request(Disk.WRITE, 2, 11));
+        queue.add(request(Disk.BARRIER, DiskResult.RESERVED_TAG, 0));
+        queue.add(request(Disk.WRITE, 3, 12));
+        queue.add(request(Disk.READ, 4, 13));
+
+        // 两个写 + 越过barrier的读
+        assert queue.eligibleCount() == 3;
+        assert !queue.barrierAtHead();
+
+        DiskResult dr = queue.removeWrite(11);
+        assert dr != null && dr.getTag() == 2;
+        assert queue.removeWrite(12) == null;
+
+        HashSet<Integer> tags = new HashSet<>();
+        while (queue.eligibleCount() > 0) {
+            tags.add(queue.removeEligible(0).getTag());
+        }
+        assert tags.contains(1) && tags.contains(4) && !tags.contains(3);
+        assert queue.barrierAtHead();
+
+        queue.removeBarrier();
+        assert queue.eligibleCount() == 1;
+        assert queue.removeEligible(0).getTag() == 3;
+        assert queue.eligibleCount() == 0;
+        System.out.println("Test 1 Passed!");
+    }
+
+    // 深队列下随机出队，检查时间和每个请求只出队一次
+    private static void testDeepQueue(int n) {
+        System.out.println("Test 2: test deep queue");
+        EpochQueue queue = new EpochQueue();
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        boolean[] done = new boolean[n];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < n; ++i) {
+            int op = rand.nextInt(4) == 0 ? Disk.READ : Disk.WRITE;
+            queue.add(request(op, i, rand.nextInt(Disk.NUM_OF_SECTORS)));
+            if (i % 100 == 99) {
+                queue.add(request(Disk.BARRIER, DiskResult.RESERVED_TAG, 0));
+            }
+        }
+        int count = 0;
+        while (count < n) {
+            while (queue.barrierAtHead()) {
+                queue.removeBarrier();
+            }
+            DiskResult dr = queue.removeEligible(rand.nextInt(queue.eligibleCount()));
+            assert !done[dr.getTag()];
+            done[dr.getTag()] = true;
+            ++count;
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+        System.out.println(n + " requests in " + ms + " ms");
+        assert ms < 5000;
+        System.out.println("Test 2 Passed!");
+    }
+
+    private static DiskResult request(int op, int tag, int sectorNum) {
+        return new DiskResult(op, tag, sectorNum, op == Disk.BARRIER ? null : new byte[0]);
+    }
+}
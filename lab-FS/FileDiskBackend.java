@@ -0,0 +1,288 @@
+/*
+ * FileDiskBackend.java
+ *
+ * Disk storage in a plain file. Two durability modes:
+ *
+ *  -- sync each write: the file is opened for synchronous
+ *     writes (the same guarantee as the original "rws"),
+ *     so flush() has nothing left to do.
+ *  -- group sync: writes go to the page cache and flush()
+ *     does one FileChannel.force(). Disk flushes when a
+ *     barrier retires and after a durable write, which is
+ *     all ADisk's recovery depends on.
+ *
+ * I/O is positional (pread/pwrite), so several
+ * DiskWorkers can use one backend at the same time.
+ *
+ * The file is extended (sparsely, where the file system
+ * allows) to the requested number of sectors when it is
+ * opened; an existing larger image keeps its size.
+ *
+ * Discarded ranges are remembered while the backend is
+ * open and read back as zeros; a read entirely inside
+ * one does not touch the file at all. Java cannot punch a hole in
+ * the middle of a file, but a discard that reaches the
+ * end of the image truncates the file there and extends
+ * it again, so the space is given back. Formatting
+ * discards the whole volume, which leaves a sparse file.
+ * After a restart, a discarded range that was not at the
+ * end may still hold its old data (allowed, since
+ * discarded contents are undefined).
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FileDiskBackend implements DiskBackend{
+  private FileChannel channel;
+  private boolean syncEachWrite;
+  private AtomicBoolean dirty; // Writes since the last force
+  private int numSectors;
+  private TreeMap<Integer, Integer> holes; // Discarded: first -> end
+
+  //-------------------------------------------------------
+  // FileDiskBackend -- sync each write, default size
+  //-------------------------------------------------------
+  public FileDiskBackend(String path)
+    throws IOException
+  {
+    this(path, true);
+  }
+
+  public FileDiskBackend(String path, boolean syncEachWrite)
+    throws IOException
+  {
+    this(path, syncEachWrite, Disk.NUM_OF_SECTORS);
+  }
+
+  public FileDiskBackend(String path, boolean syncEachWrite, int numSectors)
+    throws IOException
+  {
+    long size = (long)numSectors * Disk.SECTOR_SIZE;
+
+    if(numSectors < 1){
+      throw new IllegalArgumentException("Bad sector count");
+    }
+    if(syncEachWrite){
+      this.channel = FileChannel.open(Paths.get(path),
+                                      StandardOpenOption.CREATE,
+                                      StandardOpenOption.READ,
+                                      StandardOpenOption.WRITE,
+                                      StandardOpenOption.SYNC);
+    }
+    else{
+      this.channel = FileChannel.open(Paths.get(path),
+                                      StandardOpenOption.CREATE,
+                                      StandardOpenOption.READ,
+                                      StandardOpenOption.WRITE);
+    }
+    this.syncEachWrite = syncEachWrite;
+    this.dirty = new AtomicBoolean(false);
+    this.holes = new TreeMap<Integer, Integer>();
+    if(channel.size() < size){
+      channel.write(ByteBuffer.allocate(1), size - 1);
+    }
+    this.numSectors = (int)Math.min(Integer.MAX_VALUE, 
+                                    channel.size() / Disk.SECTOR_SIZE);
+  }
+
+  public int getNumSectors()
+  {
+    return numSectors;
+  }
+
+  //-------------------------------------------------------
+  // read -- Disk checks the range, so a short read only
+  // happens if someone truncated the file underneath us;
+  // that part of the buffer is left as the caller passed
+  // it in.
+  //-------------------------------------------------------
+  public void read(int sectorNum, int nSectors, byte b[])
+    throws IOException
+  {
+    read(sectorNum, ByteBuffer.wrap(b, 0, nSectors * Disk.SECTOR_SIZE));
+  }
+
+  public void write(int sectorNum, int nSectors, byte b[])
+    throws IOException
+  {
+    write(sectorNum, ByteBuffer.wrap(b, 0, nSectors * Disk.SECTOR_SIZE));
+  }
+
+  public void read(int sectorNum, ByteBuffer b)
+    throws IOException
+  {
+    int start = b.position();
+    int nSectors = b.remaining() / Disk.SECTOR_SIZE;
+    long pos = (long)sectorNum * Disk.SECTOR_SIZE - start;
+
+    if(inHole(sectorNum, nSectors)){
+      zero(b, start, b.limit());
+      b.position(b.limit());
+      return;
+    }
+    while(b.hasRemaining()){
+      if(channel.read(b, pos + b.position()) < 0){
+        break;
+      }
+    }
+    zeroHoles(sectorNum, nSectors, b, start);
+  }
+
+  public void write(int sectorNum, ByteBuffer b)
+    throws IOException
+  {
+    fill(sectorNum, b.remaining() / Disk.SECTOR_SIZE);
+    long pos = (long)sectorNum * Disk.SECTOR_SIZE - b.position();
+    while(b.hasRemaining()){
+      channel.write(b, pos + b.position());
+    }
+    dirty.set(true);
+  }
+
+  //-------------------------------------------------------
+  // discard -- remember the range; if it (merged with
+  // its neighbours) runs to the end of the image, cut the
+  // file back to its start and extend it sparsely again
+  //-------------------------------------------------------
+  public void discard(int sectorNum, int nSectors)
+    throws IOException
+  {
+    int first = sectorNum;
+    int end = sectorNum + nSectors;
+    Map.Entry<Integer, Integer> e;
+
+    synchronized(holes){
+      e = holes.floorEntry(first);
+      if(e != null && e.getValue() >= first){
+        first = e.getKey();
+        end = Math.max(end, e.getValue());
+      }
+      while((e = holes.ceilingEntry(first)) != null && e.getKey() <= end){
+        end = Math.max(end, e.getValue());
+        holes.remove(e.getKey());
+      }
+      holes.put(first, end);
+      if(end == numSectors){
+        channel.truncate((long)first * Disk.SECTOR_SIZE);
+        channel.write(ByteBuffer.allocate(1), 
+                      (long)numSectors * Disk.SECTOR_SIZE - 1);
+        dirty.set(true);
+      }
+    }
+  }
+
+  //-------------------------------------------------------
+  // inHole -- every sector of the range was discarded
+  // and not written since
+  //-------------------------------------------------------
+  private boolean inHole(int sectorNum, int nSectors)
+  {
+    Map.Entry<Integer, Integer> e;
+    synchronized(holes){
+      if(holes.isEmpty()){
+        return false;
+      }
+      e = holes.floorEntry(sectorNum);
+      return e != null && e.getValue() >= sectorNum + nSectors;
+    }
+  }
+
+  //-------------------------------------------------------
+  // zeroHoles -- after a read of nSectors sectors from
+  // sectorNum into b at start, clear the parts that were
+  // discarded (the file may still hold old data there)
+  //-------------------------------------------------------
+  private void zeroHoles(int sectorNum, int nSectors, ByteBuffer b, int start)
+  {
+    int end = sectorNum + nSectors;
+    int from, to;
+    Integer low;
+
+    synchronized(holes){
+      if(holes.isEmpty()){
+        return;
+      }
+      low = holes.floorKey(sectorNum);
+      for(Map.Entry<Integer, Integer> e 
+            : holes.subMap(low == null ? sectorNum : low, end).entrySet()){
+        from = Math.max(sectorNum, e.getKey());
+        to = Math.min(end, e.getValue());
+        if(from < to){
+          zero(b, start + (from - sectorNum) * Disk.SECTOR_SIZE,
+               start + (to - sectorNum) * Disk.SECTOR_SIZE);
+        }
+      }
+    }
+  }
+
+  private static void zero(ByteBuffer b, int from, int to)
+  {
+    int ii;
+    for(ii = from; ii < to; ii++){
+      b.put(ii, (byte)0);
+    }
+  }
+
+  //-------------------------------------------------------
+  // fill -- the range is about to hold data again; take
+  // it out of the holes
+  //-------------------------------------------------------
+  private void fill(int sectorNum, int nSectors)
+  {
+    int end = sectorNum + nSectors;
+    Map.Entry<Integer, Integer> e;
+
+    synchronized(holes){
+      if(holes.isEmpty()){
+        return;
+      }
+      e = holes.lowerEntry(end);
+      while(e != null && e.getValue() > sectorNum){
+        holes.remove(e.getKey());
+        if(e.getKey() < sectorNum){
+          holes.put(e.getKey(), sectorNum);
+        }
+        if(e.getValue() > end){
+          holes.put(end, e.getValue());
+        }
+        e = holes.lowerEntry(e.getKey());
+      }
+    }
+  }
+
+  //-------------------------------------------------------
+  // flush -- skip the force if nothing was written since
+  // the last one (e.g., a barrier right after a durable
+  // write). Flushes run one at a time: a caller that
+  // finds dirty clear may be racing a force that covers
+  // its writes, and must not return before that force
+  // does.
+  //-------------------------------------------------------
+  public synchronized void flush()
+    throws IOException
+  {
+    if(syncEachWrite){
+      return; // SYNC -- already durable
+    }
+    if(dirty.getAndSet(false)){
+      channel.force(false);
+    }
+  }
+
+  public void close()
+    throws IOException
+  {
+    flush();
+    channel.close();
+  }
+}
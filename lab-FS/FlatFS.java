@@ -28,7 +28,13 @@ public class FlatFS implements AutoCloseable {
   public FlatFS(boolean doFormat)
     throws IOException
   {
-    ptree = new PTree(doFormat);
+    this(doFormat, null);
+  }
+
+  public FlatFS(boolean doFormat, DiskBackend backend)
+    throws IOException
+  {
+    ptree = new PTree(doFormat, backend);
     fileMetaSize = PTree.METADATA_SIZE;
   }
 
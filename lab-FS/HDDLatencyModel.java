@@ -0,0 +1,97 @@
+/*
+ * HDDLatencyModel.java
+ *
+ * A single-actuator disk:
+ *   service = seek + rotational delay + transfer
+ * Seek time grows with the square root of the distance
+ * the head moves (0 for the same track); rotational delay
+ * is how long the platter takes to bring the first sector
+ * under the head; transfer is size / media rate. One
+ * request is served at a time, so requests queue behind
+ * each other.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+public class HDDLatencyModel implements DiskLatencyModel{
+  private int sectorsPerTrack;
+  private int nTracks;           // Full stroke
+  private long minSeekNanos;     // Track-to-track
+  private long maxSeekNanos;     // Full stroke
+  private long rotationNanos;
+  private long bytesPerSecond;
+
+  private int headTrack;
+  private long busyUntil;
+
+  //-------------------------------------------------------
+  // HDDLatencyModel -- a 7200 RPM desktop drive, 500 KB
+  // per track whatever the sector size
+  //-------------------------------------------------------
+  public HDDLatencyModel()
+  {
+    this(7200, 1000 * Disk.DEFAULT_SECTOR_SIZE / Disk.SECTOR_SIZE, 
+         1000000L, 18000000L, 150L * 1024 * 1024);
+  }
+
+  public HDDLatencyModel(int rpm, int sectorsPerTrack, long minSeekNanos,
+                         long maxSeekNanos, long bytesPerSecond)
+  {
+    this(rpm, sectorsPerTrack, minSeekNanos, maxSeekNanos, bytesPerSecond,
+         Disk.NUM_OF_SECTORS);
+  }
+
+  //-------------------------------------------------------
+  // HDDLatencyModel -- as above for a disk of numSectors
+  // sectors (Disk.getNumSectors()), so a full-stroke seek
+  // spans the whole disk
+  //-------------------------------------------------------
+  public HDDLatencyModel(int rpm, int sectorsPerTrack, long minSeekNanos,
+                         long maxSeekNanos, long bytesPerSecond, 
+                         int numSectors)
+  {
+    this.sectorsPerTrack = sectorsPerTrack;
+    this.nTracks = (int)Math.max(1, ((long)numSectors + sectorsPerTrack - 1) 
+                                    / sectorsPerTrack);
+    this.minSeekNanos = minSeekNanos;
+    this.maxSeekNanos = maxSeekNanos;
+    this.rotationNanos = 60L * 1000000000L / rpm;
+    this.bytesPerSecond = bytesPerSecond;
+    this.headTrack = 0;
+    this.busyUntil = 0;
+  }
+
+  public synchronized long complete(long now, int operation, int sectorNum, 
+                                    int nSectors)
+  {
+    long start = Math.max(now, busyUntil);
+    int track = sectorNum / sectorsPerTrack;
+    int distance = Math.abs(track - headTrack);
+    long seek = 0;
+    long rotation;
+    long transfer;
+    long angle;
+    long target;
+    long sectorNanos = rotationNanos / sectorsPerTrack;
+
+    if(distance > 0){
+      seek = minSeekNanos 
+        + (long)((maxSeekNanos - minSeekNanos) 
+                 * Math.sqrt(Math.min(1.0, (double)distance / nTracks)));
+    }
+
+    //
+    // Where the platter is when the seek ends, in sectors
+    //
+    angle = ((start + seek) / sectorNanos) % sectorsPerTrack;
+    target = sectorNum % sectorsPerTrack;
+    rotation = ((target - angle + sectorsPerTrack) % sectorsPerTrack) * sectorNanos;
+
+    transfer = (long)nSectors * Disk.SECTOR_SIZE * 1000000000L / bytesPerSecond;
+
+    headTrack = (sectorNum + nSectors - 1) / sectorsPerTrack;
+    busyUntil = start + seek + rotation + transfer;
+    return busyUntil;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * LatencyHistogram.java
+ *
+ * Counts durations in power-of-two buckets: bucket i
+ * holds samples of at least 2^i and less than 2^(i+1)
+ * nanoseconds (bucket 0 also holds 0). Percentiles are
+ * reported as the upper edge of their bucket, so they
+ * are within a factor of two of the truth, which is
+ * enough to tell a 10us queue wait from a 10ms seek.
+ *
+ * Not thread safe; the owner locks around it.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+public class LatencyHistogram{
+  public static final int BUCKETS = 64;
+
+  private long buckets[];
+  private long count;
+  private long totalNanos;
+  private long maxNanos;
+
+  public LatencyHistogram()
+  {
+    this.buckets = new long[BUCKETS];
+    this.count = 0;
+    this.totalNanos = 0;
+    this.maxNanos = 0;
+  }
+
+  //-------------------------------------------------------
+  // record -- add one sample. Negative durations (clock
+  // skew between threads) count as 0.
+  //-------------------------------------------------------
+  public void record(long nanos)
+  {
+    if(nanos < 0){
+      nanos = 0;
+    }
+    buckets[bucketOf(nanos)]++;
+    count++;
+    totalNanos += nanos;
+    maxNanos = Math.max(maxNanos, nanos);
+  }
+
+  public long getCount()
+  {
+    return count;
+  }
+
+  public long getTotalNanos()
+  {
+    return totalNanos;
+  }
+
+  public long getMaxNanos()
+  {
+    return maxNanos;
+  }
+
+  public long getMeanNanos()
+  {
+    return count == 0 ? 0 : totalNanos / count;
+  }
+
+  //-------------------------------------------------------
+  // getBucket -- samples in [2^i, 2^(i+1)) ns
+  //-------------------------------------------------------
+  public long getBucket(int i)
+  {
+    return buckets[i];
+  }
+
+  //-------------------------------------------------------
+  // getPercentileNanos -- upper edge of the bucket that
+  // holds the p-th percentile sample (0 < p <= 100),
+  // capped at the largest sample. 0 if empty.
+  //-------------------------------------------------------
+  public long getPercentileNanos(double p)
+  {
+    long rank;
+    long seen = 0;
+    int ii;
+
+    if(p <= 0.0 || p > 100.0){
+      throw new IllegalArgumentException("Bad percentile");
+    }
+    if(count == 0){
+      return 0;
+    }
+    rank = (long)Math.ceil(count * p / 100.0);
+    for(ii = 0; ii < BUCKETS; ii++){
+      seen += buckets[ii];
+      if(seen >= rank){
+        break;
+      }
+    }
+    if(ii >= BUCKETS - 1){
+      return maxNanos;
+    }
+    return Math.min(maxNanos, (1L << (ii + 1)) - 1);
+  }
+
+  public LatencyHistogram copy()
+  {
+    LatencyHistogram h = new LatencyHistogram();
+    System.arraycopy(buckets, 0, h.buckets, 0, BUCKETS);
+    h.count = count;
+    h.totalNanos = totalNanos;
+    h.maxNanos = maxNanos;
+    return h;
+  }
+
+  public String toString()
+  {
+    return "n=" + count
+      + " mean=" + getMeanNanos() / 1000 + "us"
+      + " p50<=" + getPercentileNanos(50) / 1000 + "us"
+      + " p99<=" + getPercentileNanos(99) / 1000 + "us"
+      + " max=" + maxNanos / 1000 + "us";
+  }
+
+  private static int bucketOf(long nanos)
+  {
+    return nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+  }
+}
@@ -26,6 +26,13 @@ public class LogStatus {
     private int tail;
     private int usedSectors;
     private long latestWBSeq;
+    // 磁盘几何信息（总扇区数），格式化时写入超级块，挂载时读出
+    // 以64位保存；没有MAGIC的旧磁盘镜像按默认大小处理
+    private long numSectors;
+    // 格式化时的扇区大小，挂载时必须与当前进程一致；旧镜像都是512字节
+    private int sectorSize;
+
+    private static final int GEOMETRY_MAGIC = 0x47454f4d;
 
     // private SimpleLock lock;
     // private Condition freeSpace;
@@ -38,6 +45,8 @@ public class LogStatus {
         head = tail = 0;
         usedSectors = 0;
         latestWBSeq = 0;
+        numSectors = Disk.NUM_OF_SECTORS;
+        sectorSize = Disk.SECTOR_SIZE;
 
         // 设置日志级别为 FINE，用于调试信息输出
         LOGGER.setLevel(Level.WARNING);
@@ -56,6 +65,8 @@ public class LogStatus {
         this.usedSectors = usedSectors;
         this.latestWBSeq = latestCommitSeq;
         this.head = (this.tail + usedSectors) % Disk.ADISK_REDO_LOG_SECTORS;
+        this.numSectors = Disk.NUM_OF_SECTORS;
+        this.sectorSize = Disk.SECTOR_SIZE;
 
         // 设置日志级别为 FINE，用于调试信息输出
         LOGGER.setLevel(Level.WARNING);
@@ -168,6 +179,10 @@ public class LogStatus {
     public int getUsedSectors() { return this.usedSectors; }
     public long getLatestWBSeq() { return this.latestWBSeq; }
     public void setLatestWBSeq(long latestWBSeq) { this.latestWBSeq = latestWBSeq; }
+    public long getNumSectors() { return this.numSectors; }
+    public void setNumSectors(long numSectors) { this.numSectors = numSectors; }
+    public int getSectorSize() { return this.sectorSize; }
+    public void setSectorSize(int sectorSize) { this.sectorSize = sectorSize; }
     
 
     public void writeLogStatus(byte[] buffer) 
@@ -184,6 +199,9 @@ public class LogStatus {
         byteBuffer.putInt(tail);
         byteBuffer.putInt(usedSectors);
         byteBuffer.putLong(latestWBSeq);
+        byteBuffer.putInt(GEOMETRY_MAGIC);
+        byteBuffer.putLong(numSectors);
+        byteBuffer.putInt(sectorSize);
     }
 
     public static LogStatus parseLogStatus(byte[] buffer) 
@@ -199,6 +217,13 @@ public class LogStatus {
         int usedSectors = byteBuffer.getInt();
         long latestWBSeq = byteBuffer.getLong();
 
-        return new LogStatus(tail, usedSectors, latestWBSeq);
+        LogStatus logStatus = new LogStatus(tail, usedSectors, latestWBSeq);
+        if (byteBuffer.getInt() == GEOMETRY_MAGIC) {
+            logStatus.setNumSectors(byteBuffer.getLong());
+            logStatus.setSectorSize(byteBuffer.getInt());
+        } else {
+            logStatus.setSectorSize(Disk.DEFAULT_SECTOR_SIZE);
+        }
+        return logStatus;
     }
 }
\ No newline at end of file
@@ -1,4 +1,5 @@
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadLocalRandom;
@@ -9,6 +10,7 @@ public class LogStatusTest {
   //-------------------------------------------------------
    public static void main(String[] args) throws InterruptedException {
         concurrencyTest(10, 10);
+        superBlockTest();
 
         System.out.println("All Tests Passed!");
     }
@@ -46,6 +48,26 @@ public class LogStatusTest {
         assert(logStatus.getTail() == 1000 && logStatus.getHead() == (1000 + 256) % Disk.ADISK_REDO_LOG_SECTORS && logStatus.getUsedSectors() == 256);
     }
 
+    // 超级块记录卷的几何信息；旧格式（没有MAGIC）按默认512字节扇区解析
+    private static void superBlockTest() {
+        LogStatus logStatus = new LogStatus(10, 20, 30);
+        byte[] buffer = new byte[Disk.SECTOR_SIZE];
+
+        logStatus.setNumSectors(1L << 33);
+        logStatus.setSectorSize(Disk.LARGE_SECTOR_SIZE);
+        logStatus.writeLogStatus(buffer);
+        LogStatus parsed = LogStatus.parseLogStatus(buffer);
+        assert(parsed.getTail() == 10 && parsed.getUsedSectors() == 20 && parsed.getLatestWBSeq() == 30);
+        assert(parsed.getNumSectors() == 1L << 33);
+        assert(parsed.getSectorSize() == Disk.LARGE_SECTOR_SIZE);
+
+        // 只保留旧格式的前16字节
+        Arrays.fill(buffer, 16, buffer.length, (byte) 0);
+        parsed = LogStatus.parseLogStatus(buffer);
+        assert(parsed.getNumSectors() == Disk.NUM_OF_SECTORS);
+        assert(parsed.getSectorSize() == Disk.DEFAULT_SECTOR_SIZE);
+    }
+
     private static void performLogReserve(LogStatus logStatus, SimpleLock lock, Condition notEmpty, Condition notFull, CountDownLatch latch, LinkedList<LogInfo> queue, int times) {
         try {
           while (times-- > 0) {
@@ -0,0 +1,131 @@
+/*
+ * MappedDiskBackend.java
+ *
+ * Disk storage that maps the whole disk file into memory.
+ * Reads and writes are memory copies; nothing reaches the
+ * file until flush() forces the mapping, which Disk does
+ * when a barrier retires and after a durable write.
+ *
+ * One mapping is limited to 2 GB, so the file is mapped
+ * in 1 GB segments and a transfer that crosses a segment
+ * boundary is split.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class MappedDiskBackend implements DiskBackend{
+  private static final int SEGMENT_SECTORS = (1 << 30) / Disk.SECTOR_SIZE;
+
+  private FileChannel channel;
+  private MappedByteBuffer maps[];
+  private int numSectors;
+
+  //-------------------------------------------------------
+  // MappedDiskBackend -- default size, or the size of an
+  // existing larger file
+  //-------------------------------------------------------
+  public MappedDiskBackend(String path)
+    throws IOException
+  {
+    this(path, Disk.NUM_OF_SECTORS);
+  }
+
+  public MappedDiskBackend(String path, int numSectors)
+    throws IOException
+  {
+    int ii;
+    int n;
+
+    if(numSectors < 1){
+      throw new IllegalArgumentException("Bad sector count");
+    }
+    this.channel = FileChannel.open(Paths.get(path),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+    this.numSectors = (int)Math.min(Integer.MAX_VALUE,
+                                    Math.max(numSectors, 
+                                             channel.size() / Disk.SECTOR_SIZE));
+    this.maps = new MappedByteBuffer[(this.numSectors + SEGMENT_SECTORS - 1) 
+                                     / SEGMENT_SECTORS];
+    for(ii = 0; ii < maps.length; ii++){
+      n = Math.min(SEGMENT_SECTORS, this.numSectors - ii * SEGMENT_SECTORS);
+      maps[ii] = channel.map(FileChannel.MapMode.READ_WRITE,
+                             (long)ii * SEGMENT_SECTORS * Disk.SECTOR_SIZE,
+                             (long)n * Disk.SECTOR_SIZE);
+    }
+  }
+
+  public int getNumSectors()
+  {
+    return numSectors;
+  }
+
+  //-------------------------------------------------------
+  // read/write -- absolute get/put never touch the
+  // mapping's position, so concurrent callers are safe
+  // as long as they use different sectors.
+  //-------------------------------------------------------
+  public void read(int sectorNum, int nSectors, byte b[])
+  {
+    read(sectorNum, ByteBuffer.wrap(b, 0, nSectors * Disk.SECTOR_SIZE));
+  }
+
+  public void write(int sectorNum, int nSectors, byte b[])
+  {
+    write(sectorNum, ByteBuffer.wrap(b, 0, nSectors * Disk.SECTOR_SIZE));
+  }
+
+  public void read(int sectorNum, ByteBuffer b)
+  {
+    MappedByteBuffer map;
+    int offset;
+    int len;
+
+    while(b.hasRemaining()){
+      map = maps[sectorNum / SEGMENT_SECTORS];
+      offset = (sectorNum % SEGMENT_SECTORS) * Disk.SECTOR_SIZE;
+      len = Math.min(b.remaining(), map.capacity() - offset);
+      b.put(map.slice(offset, len));
+      sectorNum += len / Disk.SECTOR_SIZE;
+    }
+  }
+
+  public void write(int sectorNum, ByteBuffer b)
+  {
+    MappedByteBuffer map;
+    int offset;
+    int len;
+
+    while(b.hasRemaining()){
+      map = maps[sectorNum / SEGMENT_SECTORS];
+      offset = (sectorNum % SEGMENT_SECTORS) * Disk.SECTOR_SIZE;
+      len = Math.min(b.remaining(), map.capacity() - offset);
+      map.put(offset, b, b.position(), len);
+      b.position(b.position() + len);
+      sectorNum += len / Disk.SECTOR_SIZE;
+    }
+  }
+
+  public void flush()
+  {
+    for(MappedByteBuffer map : maps){
+      map.force();
+    }
+  }
+
+  public void close()
+    throws IOException
+  {
+    flush();
+    channel.close();
+  }
+}
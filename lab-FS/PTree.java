@@ -33,22 +33,25 @@ public class PTree implements AutoCloseable {
   public static final int TNODE_DIRECT = 8;
   public static final int TNODE_INDIRECT = 1;
   public static final int TNODE_DOUBLE_INDIRECT = 1;
-  public static final int BLOCK_SIZE_BYTES = 1024;
-  public static final int POINTERS_PER_INTERNAL_NODE = 256;
+  // 块至少1KB，4KB扇区时一个块就是一个扇区；内部节点存满4字节的块号
+  public static final int BLOCK_SIZE_BYTES = Math.max(1024, Disk.SECTOR_SIZE);
+  public static final int POINTERS_PER_INTERNAL_NODE = BLOCK_SIZE_BYTES / 4;
 
   // 自定义类元数据
   public static final int SECTORS_PER_BLOCK = BLOCK_SIZE_BYTES / Disk.SECTOR_SIZE;
   public static final int FIRST_AVAILABLE_SECTOR = ADisk.getFirstAvailableSector();
-  public static final int FREE_MAP_SECTORS = 2;
+  // 空闲块位图的扇区数随卷大小变化，至少2个，默认大小的磁盘布局不变
+  public static final int MIN_FREE_MAP_SECTORS = 2;
   public static final int FREE_MAP_SECTOR_START = FIRST_AVAILABLE_SECTOR;
   public static final int TNODE_SIZE = 128;
   public static final int FREE_TNODE_MAP_SECTORS = ((MAX_TREES / (Disk.SECTOR_SIZE / TNODE_SIZE)) + (8 * Disk.SECTOR_SIZE) - 1) / (8 * Disk.SECTOR_SIZE);
-  public static final int FREE_TNODE_MAP_SECTOR_START = FREE_MAP_SECTOR_START + FREE_MAP_SECTORS;
   public static final int TNODE_SECTORS = MAX_TREES / (Disk.SECTOR_SIZE / TNODE_SIZE);
-  public static final int TNODE_SECTOR_START = FREE_TNODE_MAP_SECTOR_START + FREE_TNODE_MAP_SECTORS;
-  public static final int DATA_BLOCK_START = TNODE_SECTOR_START + TNODE_SECTORS;
+  // 每次挂载时最多一次读入的位图扇区数
+  private static final int MAP_READ_SECTORS = 64;
 
-  public static final int MAX_FILE_SIZE = (PTree.TNODE_DIRECT + PTree.POINTERS_PER_INTERNAL_NODE + PTree.POINTERS_PER_INTERNAL_NODE * PTree.POINTERS_PER_INTERNAL_NODE) * BLOCK_SIZE_BYTES;
+  // 文件偏移是int，4KB块时树能覆盖的大小超过2GB，截断到不超过int的整块
+  public static final int MAX_FILE_SIZE = (int) Math.min((PTree.TNODE_DIRECT + PTree.POINTERS_PER_INTERNAL_NODE + (long) PTree.POINTERS_PER_INTERNAL_NODE * PTree.POINTERS_PER_INTERNAL_NODE) * BLOCK_SIZE_BYTES,
+                                                         Integer.MAX_VALUE / BLOCK_SIZE_BYTES * BLOCK_SIZE_BYTES);
 
   // 数据成员
   private ADisk aDisk;
@@ -57,25 +60,42 @@ public class PTree implements AutoCloseable {
   private boolean noOutstandingTrans;
   private int totAvailableBlocks;
   private int totAvailableTrees;
+
+  // 由卷大小（ADisk超级块中记录）决定的布局
+  // 依次为：空闲块位图，空闲tnode位图，tnode数组，数据块
+  private int freeMapSectors;
+  private int freeTNodeMapSectorStart;
+  private int tnodeSectorStart;
+  private int dataBlockStart;
+  private int endBlock;       // 最后一个数据块号 + 1
+  private int allocHint;      // 上次分配数据块所在的位图扇区
   
 
 
   public PTree(boolean doFormat)
   {
-    aDisk = new ADisk(doFormat);
+    this(doFormat, null);
+  }
+
+  // 指定底层Disk的存储后端，例如RamDiskBackend；null表示默认的DISK.dat
+  public PTree(boolean doFormat, DiskBackend backend)
+  {
+    aDisk = new ADisk(doFormat, backend);
     Common.debugPrintln("adisk return");
     lock = new SimpleLock();
     newTransCond = lock.newCondition();
     noOutstandingTrans = true;
-    totAvailableBlocks = (Disk.NUM_OF_SECTORS - DATA_BLOCK_START) / 2;
+    computeLayout(aDisk.getNumSectors());
+    totAvailableBlocks = endBlock - dataBlockStart / SECTORS_PER_BLOCK;
     totAvailableTrees = MAX_TREES;
+    allocHint = 0;
 
     try {
       if (doFormat) {
         format();
       } else {
         TransID xid = beginTrans();
-        totAvailableBlocks = checkUsedBlocks(xid);
+        countFree(xid);
         abortTrans(xid);
       }
     } catch (Exception e) {
@@ -139,14 +159,14 @@ public class PTree implements AutoCloseable {
       // 读取TNode Map找到第一个未用过的tnum
       int b, bi;
       for (b = 0; b < TNODE_SIZE; b += 8 * Disk.SECTOR_SIZE) {
-        aDisk.readSector(xid, FREE_TNODE_MAP_SECTOR_START + (b / (8 * Disk.SECTOR_SIZE)), buffer);
+        aDisk.readSector(xid, freeTNodeMapSectorStart + (b / (8 * Disk.SECTOR_SIZE)), buffer);
 
         for (bi = 0; bi < Disk.SECTOR_SIZE * 8 && b + bi < TNODE_SIZE; ++bi) {
           tnum = b + bi;
           // 将TNode Map中tnum对应的bit位职位1
           if ((buffer[bi / 8] & (1<<(bi % 8))) == 0) {
             buffer[bi / 8] |= 1<<(bi % 8);
-            aDisk.writeSector(xid, FREE_TNODE_MAP_SECTOR_START + (tnum / (8 * Disk.SECTOR_SIZE)), buffer);
+            aDisk.writeSector(xid, freeTNodeMapSectorStart + (tnum / (8 * Disk.SECTOR_SIZE)), buffer);
             --totAvailableTrees;
 
             return tnum;
@@ -172,7 +192,7 @@ public class PTree implements AutoCloseable {
 
       // 读取TNode
       readTNode(xid, tnum, tnodeBuffer);
-      // aDisk.readSector(xid, TNODE_SECTOR_START + tnum / (Disk.SECTOR_SIZE / TNODE_SIZE), tnodeBuffer);
+      // aDisk.readSector(xid, tnodeSectorStart + tnum / (Disk.SECTOR_SIZE / TNODE_SIZE), tnodeBuffer);
       Tnode tnode = Tnode.parseTnode(tnodeBuffer);
 
       for (int i = 0; i < TNODE_DIRECT; ++i) {
@@ -226,7 +246,7 @@ public class PTree implements AutoCloseable {
 
       // 读取TNode
       readTNode(xid, tnum, tnodeBuffer);
-      // aDisk.readSector(xid, TNODE_SECTOR_START + tnum / (Disk.SECTOR_SIZE / TNODE_SIZE), tnodeBuffer);
+      // aDisk.readSector(xid, tnodeSectorStart + tnum / (Disk.SECTOR_SIZE / TNODE_SIZE), tnodeBuffer);
       Tnode tnode = Tnode.parseTnode(tnodeBuffer);
       ret = tnode.maxDataBlockId;
     } finally {
@@ -247,7 +267,7 @@ public class PTree implements AutoCloseable {
 
       // 读取TNode
       readTNode(xid, tnum, tnodeBuffer);
-      // aDisk.readSector(xid, TNODE_SECTOR_START + tnum / (Disk.SECTOR_SIZE / TNODE_SIZE), tnodeBuffer);
+      // aDisk.readSector(xid, tnodeSectorStart + tnum / (Disk.SECTOR_SIZE / TNODE_SIZE), tnodeBuffer);
       Tnode tnode = Tnode.parseTnode(tnodeBuffer);
       ret = tnode.dataBlockCount;
     } finally {
@@ -264,7 +284,7 @@ public class PTree implements AutoCloseable {
       lock.lock();
       // 读取TNode 
       readTNode(xid, tnum, tnodeBuffer);
-      // aDisk.readSector(xid, TNODE_SECTOR_START + tnum / (Disk.SECTOR_SIZE / TNODE_SIZE), tnodeBuffer);
+      // aDisk.readSector(xid, tnodeSectorStart + tnum / (Disk.SECTOR_SIZE / TNODE_SIZE), tnodeBuffer);
       Tnode tnode = Tnode.parseTnode(tnodeBuffer);
       int blockNum = 0;
 
@@ -329,7 +349,7 @@ public class PTree implements AutoCloseable {
       lock.lock();
       // 读取TNode 
       readTNode(xid, tnum, tnodeBuffer);
-      // aDisk.readSector(xid, TNODE_SECTOR_START + tnum / (Disk.SECTOR_SIZE / TNODE_SIZE), tnodeBuffer);
+      // aDisk.readSector(xid, tnodeSectorStart + tnum / (Disk.SECTOR_SIZE / TNODE_SIZE), tnodeBuffer);
       Tnode tnode = Tnode.parseTnode(tnodeBuffer);
 
       if (blockId < TNODE_DIRECT) {
@@ -525,7 +545,8 @@ public class PTree implements AutoCloseable {
     throws IOException, IllegalArgumentException
   {
     if (param == ASK_FREE_SPACE) {
-      return totAvailableBlocks * BLOCK_SIZE_BYTES;
+      // 超过2GB时截断，需要准确值用getFreeSpace()
+      return (int) Math.min(Integer.MAX_VALUE, getFreeSpace());
     } else if (param == ASK_FREE_TREES) {
       return totAvailableTrees;
     } else if (param == ASK_MAX_TREES) {
@@ -536,6 +557,12 @@ public class PTree implements AutoCloseable {
   }
 
 
+  // 空闲空间的字节数
+  public long getFreeSpace()
+  {
+    return (long) totAvailableBlocks * BLOCK_SIZE_BYTES;
+  }
+
   /* 以下方法都需要在持有锁的情况下使用 */
   // 读取对应的TNode的字节数组
   private void readTNode(TransID xid, int tnum, byte[] tnodeBuffer) 
@@ -550,7 +577,7 @@ public class PTree implements AutoCloseable {
 
     byte[] buffer = new byte[Disk.SECTOR_SIZE];
     
-    int sectorNum = TNODE_SECTOR_START + (tnum / (Disk.SECTOR_SIZE / TNODE_SIZE));
+    int sectorNum = tnodeSectorStart + (tnum / (Disk.SECTOR_SIZE / TNODE_SIZE));
     aDisk.readSector(xid, sectorNum, buffer);
     System.arraycopy(buffer, (tnum % (Disk.SECTOR_SIZE / TNODE_SIZE)) * TNODE_SIZE, tnodeBuffer, 0, TNODE_SIZE);
   }
@@ -563,12 +590,7 @@ public class PTree implements AutoCloseable {
     if (buffer == null || buffer.length != BLOCK_SIZE_BYTES) {
       throw new IllegalArgumentException("Bad buffer");
     }
-    byte[] buffer1 = new byte[Disk.SECTOR_SIZE];
-    byte[] buffer2 = new byte[Disk.SECTOR_SIZE];
-    aDisk.readSector(xid, blockNum * 2, buffer1);
-    aDisk.readSector(xid, blockNum * 2 + 1, buffer2);
-    System.arraycopy(buffer1, 0, buffer, 0, Disk.SECTOR_SIZE);
-    System.arraycopy(buffer2, 0, buffer, Disk.SECTOR_SIZE, Disk.SECTOR_SIZE);
+    aDisk.readSectors(xid, blockNum * SECTORS_PER_BLOCK, SECTORS_PER_BLOCK, buffer);
   }
 
   private void writeBlock(TransID xid, int blockNum, byte[] buffer) 
@@ -577,12 +599,7 @@ public class PTree implements AutoCloseable {
     if (buffer == null || buffer.length != BLOCK_SIZE_BYTES) {
       throw new IllegalArgumentException("Bad buffer");
     }
-    byte[] buffer1 = new byte[Disk.SECTOR_SIZE];
-    byte[] buffer2 = new byte[Disk.SECTOR_SIZE];
-    System.arraycopy(buffer, 0, buffer1, 0, Disk.SECTOR_SIZE);
-    System.arraycopy(buffer, Disk.SECTOR_SIZE, buffer2, 0, Disk.SECTOR_SIZE);
-    aDisk.writeSector(xid, blockNum * 2, buffer1);
-    aDisk.writeSector(xid, blockNum * 2 + 1, buffer2);
+    aDisk.writeSectors(xid, blockNum * SECTORS_PER_BLOCK, SECTORS_PER_BLOCK, buffer);
   }
 
   private void freeTNode(TransID xid, int tnum) 
@@ -590,7 +607,7 @@ public class PTree implements AutoCloseable {
   {
     byte[] buffer = new byte[Disk.SECTOR_SIZE];
 
-    int sectorNum = FREE_TNODE_MAP_SECTOR_START + (tnum / (8 * Disk.SECTOR_SIZE));
+    int sectorNum = freeTNodeMapSectorStart + (tnum / (8 * Disk.SECTOR_SIZE));
     aDisk.readSector(xid, sectorNum, buffer);
     if ((buffer[(tnum % (8 * Disk.SECTOR_SIZE)) / 8] & (1 << ((tnum % (8 * Disk.SECTOR_SIZE)) % 8))) == 0) {
       throw new IllegalArgumentException("Bad tnum");
@@ -612,7 +629,9 @@ public class PTree implements AutoCloseable {
       return;
     }
     byte[] buffer = new byte[Disk.SECTOR_SIZE];
-    blockNum -= DATA_BLOCK_START / SECTORS_PER_BLOCK;
+    // 块的内容不再需要，事务提交后由ADisk统一discard
+    aDisk.discardSectors(xid, blockNum * SECTORS_PER_BLOCK, SECTORS_PER_BLOCK);
+    blockNum -= dataBlockStart / SECTORS_PER_BLOCK;
     int sectorNum = FREE_MAP_SECTOR_START + (blockNum / (8 * Disk.SECTOR_SIZE));
     aDisk.readSector(xid, sectorNum, buffer);
     if ((buffer[(blockNum % (8 * Disk.SECTOR_SIZE)) / 8] & (1 << ((blockNum % (8 * Disk.SECTOR_SIZE)) % 8))) == 0) {
@@ -632,18 +651,22 @@ public class PTree implements AutoCloseable {
     byte[] zeroBuffer = new byte[BLOCK_SIZE_BYTES];
     int blockNum = 0;
 
-    // 读取Block Map找到第一个未用过的blockNum
-    int b, bi, mapi = 0;
-    for (b = DATA_BLOCK_START / SECTORS_PER_BLOCK; b < Disk.NUM_OF_SECTORS / SECTORS_PER_BLOCK; b += Disk.SECTOR_SIZE * 8) {
+    // 读取Block Map找到一个未用过的blockNum
+    // 从上次分配所在的位图扇区开始找，大磁盘上不必每次从头扫描整个位图
+    int b, bi, mapi, n;
+    for (n = 0; n < freeMapSectors; ++n) {
+      mapi = (allocHint + n) % freeMapSectors;
+      b = dataBlockStart / SECTORS_PER_BLOCK + mapi * Disk.SECTOR_SIZE * 8;
       aDisk.readSector(xid, FREE_MAP_SECTOR_START + mapi, buffer);
 
-      for (bi = 0; bi < Disk.SECTOR_SIZE * 8 && b + bi < Disk.NUM_OF_SECTORS / SECTORS_PER_BLOCK; ++bi) {
+      for (bi = 0; bi < Disk.SECTOR_SIZE * 8 && b + bi < endBlock; ++bi) {
         blockNum = b + bi;
         // 将TNode Map中tnum对应的bit位职位1
         if ((buffer[bi / 8] & (1<<(bi % 8))) == 0) {
           buffer[bi / 8] |= 1<<(bi % 8);
           // Common.debugPrintln("sec", FREE_MAP_SECTOR_START + mapi, "mapi", mapi, "byte", buffer[bi / 8]);
           aDisk.writeSector(xid, FREE_MAP_SECTOR_START + mapi, buffer);
+          allocHint = mapi;
 
           if (zero) {
             Common.setBuffer((byte)0, zeroBuffer);
@@ -653,7 +676,6 @@ public class PTree implements AutoCloseable {
           return blockNum;
         }
       }
-      ++mapi;
     }
 
     return 0;
@@ -701,7 +723,7 @@ public class PTree implements AutoCloseable {
 
     byte[] buffer = new byte[Disk.SECTOR_SIZE];
     
-    int sectorNum = TNODE_SECTOR_START + (tnum / (Disk.SECTOR_SIZE / TNODE_SIZE));
+    int sectorNum = tnodeSectorStart + (tnum / (Disk.SECTOR_SIZE / TNODE_SIZE));
     aDisk.readSector(xid, sectorNum, buffer);
     System.arraycopy(tnodeBuffer, 0, buffer, (tnum % (Disk.SECTOR_SIZE / TNODE_SIZE)) * TNODE_SIZE, TNODE_SIZE);
     aDisk.writeSector(xid, sectorNum, buffer);
@@ -719,7 +741,7 @@ public class PTree implements AutoCloseable {
 
       // 格式化空闲tnode位图
       for (int i = 0; i < FREE_TNODE_MAP_SECTORS; ++i) {
-        aDisk.writeSector(transID, FREE_TNODE_MAP_SECTOR_START + i, buffer); 
+        aDisk.writeSector(transID, freeTNodeMapSectorStart + i, buffer); 
         ++hasWrittenSectors;
         if (hasWrittenSectors == Common.MAX_WRITES_PER_TRANSACTION) {
           commitTrans(transID);
@@ -730,7 +752,7 @@ public class PTree implements AutoCloseable {
       
       // 格式化tnode列表
       for (int i = 0; i < TNODE_SECTORS; ++i) {
-        aDisk.writeSector(transID, TNODE_SECTOR_START + i, buffer); 
+        aDisk.writeSector(transID, tnodeSectorStart + i, buffer); 
         ++hasWrittenSectors;
         if (hasWrittenSectors == Common.MAX_WRITES_PER_TRANSACTION) {
           commitTrans(transID);
@@ -740,7 +762,7 @@ public class PTree implements AutoCloseable {
       }
   
       // 格式化空闲数据块
-      for (int i = 0; i < FREE_MAP_SECTORS; ++i) {
+      for (int i = 0; i < freeMapSectors; ++i) {
         aDisk.writeSector(transID, FREE_MAP_SECTOR_START + i, buffer); 
         ++hasWrittenSectors;
         if (hasWrittenSectors == Common.MAX_WRITES_PER_TRANSACTION) {
@@ -767,9 +789,9 @@ public class PTree implements AutoCloseable {
     byte[] doubleBlockBuffer = new byte[BLOCK_SIZE_BYTES];
 
     // 解析空闲块位图，获取所有已经使用的块号
-    int blockNum = DATA_BLOCK_START / SECTORS_PER_BLOCK;
+    int blockNum = dataBlockStart / SECTORS_PER_BLOCK;
     Set<Integer> usedBlockNums = new HashSet<>();
-    for (int sectorNum = FREE_MAP_SECTOR_START; sectorNum < FREE_MAP_SECTOR_START + FREE_MAP_SECTORS; ++sectorNum) {
+    for (int sectorNum = FREE_MAP_SECTOR_START; sectorNum < FREE_MAP_SECTOR_START + freeMapSectors; ++sectorNum) {
       aDisk.readSector(xid, sectorNum, buffer);
       for (int i = 0; i < Disk.SECTOR_SIZE; ++i) {
         for (int j = 0; j < 8; ++j) {
@@ -785,7 +807,7 @@ public class PTree implements AutoCloseable {
     // 遍历所有TNode
     int tnum = 0;
     Set<Integer> usedTNodes = new HashSet<>();
-    for (int sectorNum = FREE_TNODE_MAP_SECTOR_START; sectorNum < FREE_TNODE_MAP_SECTOR_START + FREE_TNODE_MAP_SECTORS; ++sectorNum) {
+    for (int sectorNum = freeTNodeMapSectorStart; sectorNum < freeTNodeMapSectorStart + FREE_TNODE_MAP_SECTORS; ++sectorNum) {
       aDisk.readSector(xid, sectorNum, buffer);
 
       for (int i = 0; i < Disk.SECTOR_SIZE; ++i) {
@@ -858,7 +880,46 @@ public class PTree implements AutoCloseable {
   }
 
   private boolean isValidBlockNum(int blockNum) {
-    return blockNum >= DATA_BLOCK_START / SECTORS_PER_BLOCK && blockNum < Disk.NUM_OF_SECTORS / SECTORS_PER_BLOCK;
+    return blockNum >= dataBlockStart / SECTORS_PER_BLOCK && blockNum < endBlock;
+  }
+
+  // 根据卷的总扇区数计算各区域的位置
+  // 位图按数据区的上界分配，数据区起点按块对齐
+  private void computeLayout(int numSectors)
+  {
+    int maxBlocks = (numSectors - FREE_MAP_SECTOR_START) / SECTORS_PER_BLOCK;
+    freeMapSectors = Math.max(MIN_FREE_MAP_SECTORS, (maxBlocks + 8 * Disk.SECTOR_SIZE - 1) / (8 * Disk.SECTOR_SIZE));
+    freeTNodeMapSectorStart = FREE_MAP_SECTOR_START + freeMapSectors;
+    tnodeSectorStart = freeTNodeMapSectorStart + FREE_TNODE_MAP_SECTORS;
+    dataBlockStart = tnodeSectorStart + TNODE_SECTORS;
+    dataBlockStart += (SECTORS_PER_BLOCK - dataBlockStart % SECTORS_PER_BLOCK) % SECTORS_PER_BLOCK;
+    endBlock = numSectors / SECTORS_PER_BLOCK;
+  }
+
+  // 挂载时根据两个位图统计空闲的数据块和tnode
+  // 只数位图中的1，内存占用与卷大小无关
+  private void countFree(TransID xid)
+  throws IOException
+  {
+    byte[] buffer = new byte[MAP_READ_SECTORS * Disk.SECTOR_SIZE];
+    int usedBlocks = 0;
+    int usedTrees = 0;
+
+    for (int i = 0; i < freeMapSectors; i += MAP_READ_SECTORS) {
+      int n = Math.min(MAP_READ_SECTORS, freeMapSectors - i);
+      byte[] b = n == MAP_READ_SECTORS ? buffer : new byte[n * Disk.SECTOR_SIZE];
+      aDisk.readSectors(xid, FREE_MAP_SECTOR_START + i, n, b);
+      for (int j = 0; j < b.length; ++j) {
+        usedBlocks += Integer.bitCount(b[j] & 0xFF);
+      }
+    }
+    buffer = new byte[FREE_TNODE_MAP_SECTORS * Disk.SECTOR_SIZE];
+    aDisk.readSectors(xid, freeTNodeMapSectorStart, FREE_TNODE_MAP_SECTORS, buffer);
+    for (int j = 0; j < buffer.length; ++j) {
+      usedTrees += Integer.bitCount(buffer[j] & 0xFF);
+    }
+    totAvailableBlocks = endBlock - dataBlockStart / SECTORS_PER_BLOCK - usedBlocks;
+    totAvailableTrees = MAX_TREES - usedTrees;
   }
 
   @Override
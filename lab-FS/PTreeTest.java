@@ -1,5 +1,7 @@
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Random;
@@ -13,6 +15,7 @@ public class PTreeTest {
         testRWSimple();
         testRWMiddle();
         testPersistence();
+        testLargeVolume();
         System.out.println("All Tests Passed!");
         System.exit(0);
     }
@@ -315,6 +318,50 @@ public class PTreeTest {
         System.out.println("Test 4 Passed!");
     }
 
+    private static void testLargeVolume() 
+    throws IOException
+    {
+        System.out.println("Test 5: test 4GB volume");
+        String path = "LARGE_DISK.dat";
+        int numSectors = 8 * 1024 * 1024;
+        byte[] writeBuffer = new byte[PTree.BLOCK_SIZE_BYTES];
+        byte[] readBuffer = new byte[PTree.BLOCK_SIZE_BYTES];
+        int[] blockIds = {1, PTree.TNODE_DIRECT + PTree.POINTERS_PER_INTERNAL_NODE + 2};
+
+        Files.deleteIfExists(Paths.get(path));
+        // 稀疏文件，格式化时只写元数据
+        PTree ptree = new PTree(true, new FileDiskBackend(path, false, numSectors));
+        long freeSpace = ptree.getFreeSpace();
+        assert freeSpace > Integer.MAX_VALUE;
+        assert ptree.getParam(PTree.ASK_FREE_SPACE) == Integer.MAX_VALUE;
+
+        TransID xid = ptree.beginTrans();
+        int tnum = ptree.createTree(xid);
+        for (int blockId : blockIds) {
+            Common.setBuffer((byte)(blockId & 0xFF), writeBuffer);
+            ptree.writeData(xid, tnum, blockId, writeBuffer);
+        }
+        ptree.commitTrans(xid);
+        // 1个直接块 + 二级间接块、一级间接块和数据块
+        assert ptree.getFreeSpace() == freeSpace - 4 * PTree.BLOCK_SIZE_BYTES;
+        ptree.close();
+
+        // 按默认大小打开，卷大小从超级块读出
+        ptree = new PTree(false, new FileDiskBackend(path, false));
+        assert ptree.getFreeSpace() == freeSpace - 4 * PTree.BLOCK_SIZE_BYTES;
+        xid = ptree.beginTrans();
+        for (int blockId : blockIds) {
+            ptree.readData(xid, tnum, blockId, readBuffer);
+            Common.setBuffer((byte)(blockId & 0xFF), writeBuffer);
+            assert Arrays.equals(readBuffer, writeBuffer);
+        }
+        ptree.commitTrans(xid);
+        ptree.close();
+        Files.deleteIfExists(Paths.get(path));
+
+        System.out.println("Test 5 Passed!");
+    }
+
     private static void writePersistence() 
     throws IOException
     {
@@ -0,0 +1,147 @@
+/*
+ * PriorityDiskScheduler.java
+ *
+ * Serves requests by priority class (DiskResult
+ * getPriority()): sync-commit before foreground reads
+ * before background writeback. Each class has its own
+ * policy underneath (a DeadlineDiskScheduler unless told
+ * otherwise); next() asks the most urgent class first
+ * and falls through to the next class only when it has
+ * nothing that may go now.
+ *
+ * Every BARRIER is queued in every class, so the epochs
+ * of all classes line up and the usual rules hold across
+ * them: a barrier retires only when all classes are
+ * done with the epoch in front of it. That is also the
+ * limit of what priority can do: a commit write queued
+ * behind a barrier still waits for the writeback queued
+ * ahead of that barrier.
+ *
+ * Strict priority could starve writeback (and with it
+ * the barrier it sits in front of) under a steady stream
+ * of reads, so every agingInterval-th request is picked
+ * starting from the least urgent class.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.util.function.Supplier;
+
+public class PriorityDiskScheduler implements DiskScheduler{
+  public static final int DEFAULT_AGING_INTERVAL = 16;
+
+  private DiskScheduler classes[];  // Indexed by priority
+  private int agingInterval;
+  private int handedOut;
+
+  //-------------------------------------------------------
+  // PriorityDiskScheduler -- a DeadlineDiskScheduler per
+  // class
+  //-------------------------------------------------------
+  public PriorityDiskScheduler()
+  {
+    this(DeadlineDiskScheduler::new, DEFAULT_AGING_INTERVAL);
+  }
+
+  public PriorityDiskScheduler(Supplier<DiskScheduler> policy,
+                               int agingInterval)
+  {
+    int ii;
+
+    if(agingInterval < 1){
+      throw new IllegalArgumentException("Bad aging interval");
+    }
+    this.classes = new DiskScheduler[DiskResult.NUM_PRIORITIES];
+    for(ii = 0; ii < classes.length; ii++){
+      classes[ii] = policy.get();
+    }
+    this.agingInterval = agingInterval;
+    this.handedOut = 0;
+  }
+
+  public void add(DiskResult dr)
+  {
+    int ii;
+
+    if(dr.getOperation() == Disk.BARRIER){
+      for(ii = 0; ii < classes.length; ii++){
+        classes[ii].add(dr);
+      }
+      return;
+    }
+    classes[dr.getPriority()].add(dr);
+  }
+
+  public boolean barrierAtHead()
+  {
+    int ii;
+
+    for(ii = 0; ii < classes.length; ii++){
+      if(!classes[ii].barrierAtHead()){
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public void removeBarrier()
+  {
+    int ii;
+
+    assert(barrierAtHead());
+    for(ii = 0; ii < classes.length; ii++){
+      classes[ii].removeBarrier();
+    }
+  }
+
+  //-------------------------------------------------------
+  // next() -- most urgent class with something eligible,
+  // except that every agingInterval-th request handed
+  // out is looked for from the least urgent class up
+  //-------------------------------------------------------
+  public DiskResult next()
+  {
+    DiskResult dr = null;
+    boolean aging = handedOut + 1 >= agingInterval;
+    int ii;
+
+    for(ii = 0; ii < classes.length && dr == null; ii++){
+      dr = classes[aging ? classes.length - 1 - ii : ii].next();
+    }
+    if(dr != null){
+      handedOut = aging ? 0 : handedOut + 1;
+    }
+    return dr;
+  }
+
+  //-------------------------------------------------------
+  // removeWrite -- coalescing is free, so a run may pick
+  // up a write of any class
+  //-------------------------------------------------------
+  public DiskResult removeWrite(int sectorNum)
+  {
+    DiskResult dr = null;
+    int ii;
+
+    for(ii = 0; ii < classes.length && dr == null; ii++){
+      dr = classes[ii].removeWrite(sectorNum);
+    }
+    return dr;
+  }
+
+  //-------------------------------------------------------
+  // removeSuperseded -- the older write may have been
+  // queued in another class
+  //-------------------------------------------------------
+  public DiskResult removeSuperseded(DiskResult dr)
+  {
+    DiskResult old = null;
+    int ii;
+
+    for(ii = 0; ii < classes.length && old == null; ii++){
+      old = classes[ii].removeSuperseded(dr);
+    }
+    return old;
+  }
+}
@@ -0,0 +1,75 @@
+public class PriorityDiskSchedulerTest {
+    //-------------------------------------------------------
+    // main() -- PriorityDiskScheduler test
+    //-------------------------------------------------------
+    public static void main(String[] args) {
+        testClassOrder();
+        testBarrierAcrossClasses();
+        testAging();
+
+        System.out.println("All Tests Passed!");
+    }
+
+    // 先排队的写回、读，后到的commit写最先发出，然后是读
+    private static void testClassOrder() {
+        System.out.println("Test 1: test class order");
+        PriorityDiskScheduler s = new PriorityDiskScheduler(DeadlineDiskScheduler::new, 1000);
+
+        for (int i = 0; i < 100; ++i) {
+            s.add(request(Disk.WRITE, i, i, DiskResult.PRIO_BACKGROUND_WRITEBACK));
+        }
+        s.add(request(Disk.READ, 200, 500, DiskResult.PRIO_FOREGROUND_READ));
+        s.add(request(Disk.WRITE, 300, 900, DiskResult.PRIO_SYNC_COMMIT));
+        s.add(request(Disk.WRITE, 301, 901, DiskResult.PRIO_SYNC_COMMIT));
+
+        assert s.next().getTag() == 300;
+        assert s.next().getTag() == 301;
+        assert s.next().getTag() == 200;
+        for (int i = 0; i < 100; ++i) {
+            assert s.next().getPriority() == DiskResult.PRIO_BACKGROUND_WRITEBACK;
+        }
+        assert s.next() == null;
+        System.out.println("Test 1 Passed!");
+    }
+
+    // barrier之后的commit写要等barrier之前所有类别的写完成
+    private static void testBarrierAcrossClasses() {
+        System.out.println("Test 2: test barrier across classes");
+        PriorityDiskScheduler s = new PriorityDiskScheduler();
+
+        s.add(request(Disk.WRITE, 1, 10, DiskResult.PRIO_BACKGROUND_WRITEBACK));
+        s.add(request(Disk.BARRIER, DiskResult.RESERVED_TAG, 0, DiskResult.PRIO_BACKGROUND_WRITEBACK));
+        s.add(request(Disk.WRITE, 2, 20, DiskResult.PRIO_SYNC_COMMIT));
+
+        assert !s.barrierAtHead();
+        assert s.next().getTag() == 1;
+        assert s.next() == null;
+        assert s.barrierAtHead();
+        s.removeBarrier();
+        assert s.next().getTag() == 2;
+        System.out.println("Test 2 Passed!");
+    }
+
+    // 读源源不断时，写回每agingInterval个请求至少发出一个
+    private static void testAging() {
+        System.out.println("Test 3: test aging");
+        PriorityDiskScheduler s = new PriorityDiskScheduler(DeadlineDiskScheduler::new, 4);
+
+        s.add(request(Disk.WRITE, 1, 10, DiskResult.PRIO_BACKGROUND_WRITEBACK));
+        int writeAt = -1;
+        for (int i = 0; i < 8 && writeAt < 0; ++i) {
+            s.add(request(Disk.READ, 100 + i, 100 + i, DiskResult.PRIO_FOREGROUND_READ));
+            if (s.next().getOperation() == Disk.WRITE) {
+                writeAt = i;
+            }
+        }
+        assert writeAt == 3 : writeAt;
+        System.out.println("Test 3 Passed!");
+    }
+
+    private static DiskResult request(int op, int tag, int sectorNum, int priority) {
+        DiskResult dr = new DiskResult(op, tag, sectorNum, op == Disk.BARRIER ? null : new byte[0]);
+        dr.setPriority(priority);
+        return dr;
+    }
+}
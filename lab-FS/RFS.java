@@ -19,9 +19,15 @@ public class RFS implements AutoCloseable {
 
   public RFS(boolean doFormat)
     throws IOException
+  {
+    this(doFormat, null);
+  }
+
+  public RFS(boolean doFormat, DiskBackend backend)
+    throws IOException
   {
     openFiles = new File[Common.MAX_FD];
-    flatFS = new FlatFS(doFormat);
+    flatFS = new FlatFS(doFormat, backend);
     if (doFormat) {
       formatRFS();
     }
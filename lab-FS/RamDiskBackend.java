@@ -0,0 +1,182 @@
+/*
+ * RamDiskBackend.java
+ *
+ * Disk storage in memory, either on the Java heap or in
+ * a direct (off-heap) buffer. Nothing touches the file
+ * system unless asked to snapshot or restore, so many
+ * independent disks can live in one JVM and benchmarks
+ * measure CPU cost rather than the host file.
+ *
+ * A RamDiskBackend outlives the Disk using it: hand the
+ * same backend to a new Disk to "reboot" with the data
+ * that was written.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class RamDiskBackend implements DiskBackend{
+  private ByteBuffer data;
+
+  //-------------------------------------------------------
+  // RamDiskBackend -- zeroed, on the heap
+  //-------------------------------------------------------
+  public RamDiskBackend()
+  {
+    this(false);
+  }
+
+  public RamDiskBackend(boolean offHeap)
+  {
+    this(offHeap, Disk.NUM_OF_SECTORS);
+  }
+
+  //-------------------------------------------------------
+  // RamDiskBackend -- numSectors sectors, at most 2 GB
+  //-------------------------------------------------------
+  public RamDiskBackend(boolean offHeap, int numSectors)
+  {
+    int size;
+
+    if(numSectors < 1 
+       || (long)numSectors * Disk.SECTOR_SIZE > Integer.MAX_VALUE){
+      throw new IllegalArgumentException("Bad sector count");
+    }
+    size = numSectors * Disk.SECTOR_SIZE;
+    if(offHeap){
+      this.data = ByteBuffer.allocateDirect(size);
+    }
+    else{
+      this.data = ByteBuffer.allocate(size);
+    }
+  }
+
+  //-------------------------------------------------------
+  // read/write -- absolute get/put, safe for concurrent
+  // workers on different sectors
+  //-------------------------------------------------------
+  public void read(int sectorNum, int nSectors, byte b[])
+  {
+    data.get(sectorNum * Disk.SECTOR_SIZE, b, 0, nSectors * Disk.SECTOR_SIZE);
+  }
+
+  public void write(int sectorNum, int nSectors, byte b[])
+  {
+    data.put(sectorNum * Disk.SECTOR_SIZE, b, 0, nSectors * Disk.SECTOR_SIZE);
+  }
+
+  public void read(int sectorNum, ByteBuffer b)
+  {
+    b.put(data.slice(sectorNum * Disk.SECTOR_SIZE, b.remaining()));
+  }
+
+  public void write(int sectorNum, ByteBuffer b)
+  {
+    data.put(sectorNum * Disk.SECTOR_SIZE, b, b.position(), b.remaining());
+    b.position(b.limit());
+  }
+
+  //-------------------------------------------------------
+  // discard -- zero the sectors, so they read back as
+  // zeros and are left out of a snapshot
+  //-------------------------------------------------------
+  public void discard(int sectorNum, int nSectors)
+  {
+    byte zero[] = new byte[Disk.SECTOR_SIZE];
+    int ii;
+    for(ii = 0; ii < nSectors; ii++){
+      data.put((sectorNum + ii) * Disk.SECTOR_SIZE, zero);
+    }
+  }
+
+  public int getNumSectors()
+  {
+    return data.capacity() / Disk.SECTOR_SIZE;
+  }
+
+  public void flush()
+  {
+    // Memory is as durable as it gets
+  }
+
+  public void close()
+  {
+  }
+
+  //-------------------------------------------------------
+  // snapshot -- write the whole image to path. Caller
+  // must make sure no requests are in flight. Runs of
+  // all-zero sectors are skipped rather than written, so
+  // the file is sparse and the copy costs O(used data).
+  //-------------------------------------------------------
+  public void snapshot(String path)
+    throws IOException
+  {
+    ByteBuffer zero = ByteBuffer.allocate(Disk.SECTOR_SIZE);
+    ByteBuffer bb;
+    int nSectors = getNumSectors();
+    int first, end;
+
+    try(FileChannel fc = FileChannel.open(Paths.get(path),
+                                          StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE,
+                                          StandardOpenOption.TRUNCATE_EXISTING)){
+      first = 0;
+      while(first < nSectors){
+        if(isZero(first, zero)){
+          first++;
+          continue;
+        }
+        end = first + 1;
+        while(end < nSectors && !isZero(end, zero)){
+          end++;
+        }
+        bb = data.slice(first * Disk.SECTOR_SIZE, 
+                        (end - first) * Disk.SECTOR_SIZE);
+        while(bb.hasRemaining()){
+          fc.write(bb, (long)first * Disk.SECTOR_SIZE + bb.position());
+        }
+        first = end;
+      }
+      if(fc.size() < data.capacity()){
+        fc.write(ByteBuffer.allocate(1), data.capacity() - 1);
+      }
+      fc.force(false);
+    }
+  }
+
+  private boolean isZero(int sectorNum, ByteBuffer zero)
+  {
+    return data.slice(sectorNum * Disk.SECTOR_SIZE, Disk.SECTOR_SIZE)
+      .mismatch(zero) < 0;
+  }
+
+  //-------------------------------------------------------
+  // restore -- replace the image with the contents of
+  // path (e.g., a snapshot or a DISK.dat). A short file
+  // leaves the rest of the disk zeroed.
+  //-------------------------------------------------------
+  public void restore(String path)
+    throws IOException
+  {
+    ByteBuffer bb = data.duplicate();
+    bb.clear();
+    while(bb.hasRemaining()){
+      bb.put((byte)0);
+    }
+    bb.clear();
+    try(FileChannel fc = FileChannel.open(Paths.get(path), StandardOpenOption.READ)){
+      while(bb.hasRemaining()){
+        if(fc.read(bb) < 0){
+          break;
+        }
+      }
+    }
+  }
+}
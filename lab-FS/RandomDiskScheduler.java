@@ -0,0 +1,73 @@
+/*
+ * RandomDiskScheduler.java
+ *
+ * Pull a random-ish item off the queue. Use random
+ * to test non-fifo list... This is the original Disk
+ * policy; it is good for shaking out ordering bugs in
+ * the layers above and bad for throughput.
+ *
+ * Picks uniformly among the requests that may go now
+ * (head-epoch writes and any read), so every operation
+ * is O(1) however deep the queue gets.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.util.Random;
+
+public class RandomDiskScheduler implements DiskScheduler{
+  private EpochQueue pending;
+  private Random rand;
+
+  //-------------------------------------------------------
+  // RandomDiskScheduler
+  //-------------------------------------------------------
+  public RandomDiskScheduler()
+  {
+    this.pending = new EpochQueue();
+    this.rand = new Random();
+  }
+
+  public void add(DiskResult dr)
+  {
+    pending.add(dr);
+  }
+
+  public boolean barrierAtHead()
+  {
+    return pending.barrierAtHead();
+  }
+
+  public void removeBarrier()
+  {
+    pending.removeBarrier();
+  }
+
+  //-------------------------------------------------------
+  // next()
+  //
+  // Note
+  //  -- writes cannot pass barrier
+  //  -- reads can pass barrier
+  // EpochQueue only offers requests that obey both.
+  //-------------------------------------------------------
+  public DiskResult next()
+  {
+    int n = pending.eligibleCount();
+    if(n == 0){
+      return null;
+    }
+    return pending.removeEligible(rand.nextInt(n));
+  }
+
+  public DiskResult removeWrite(int sectorNum)
+  {
+    return pending.removeWrite(sectorNum);
+  }
+
+  public DiskResult removeSuperseded(DiskResult dr)
+  {
+    return pending.removeSuperseded(dr);
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * SSDLatencyModel.java
+ *
+ * A flash device with nChannels independent channels.
+ * Pages are striped across channels; each page costs a
+ * fixed read or program latency on its channel, and a
+ * request completes when its last page does. Requests
+ * on different channels proceed in parallel.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+public class SSDLatencyModel implements DiskLatencyModel{
+  private int sectorsPerPage;
+  private long readPageNanos;
+  private long writePageNanos;
+  private long busyUntil[];     // Per channel
+
+  //-------------------------------------------------------
+  // SSDLatencyModel -- 8 channels, 4 KB pages,
+  // 50us read / 200us program
+  //-------------------------------------------------------
+  public SSDLatencyModel()
+  {
+    this(8, 4096 / Disk.SECTOR_SIZE, 50000L, 200000L);
+  }
+
+  public SSDLatencyModel(int nChannels, int sectorsPerPage, 
+                         long readPageNanos, long writePageNanos)
+  {
+    if(nChannels < 1 || sectorsPerPage < 1){
+      throw new IllegalArgumentException("Bad SSD geometry");
+    }
+    this.sectorsPerPage = sectorsPerPage;
+    this.readPageNanos = readPageNanos;
+    this.writePageNanos = writePageNanos;
+    this.busyUntil = new long[nChannels];
+  }
+
+  public synchronized long complete(long now, int operation, int sectorNum, 
+                                    int nSectors)
+  {
+    long perPage = (operation == Disk.READ) ? readPageNanos : writePageNanos;
+    int firstPage = sectorNum / sectorsPerPage;
+    int lastPage = (sectorNum + nSectors - 1) / sectorsPerPage;
+    int page;
+    int channel;
+    long done = now;
+
+    for(page = firstPage; page <= lastPage; page++){
+      channel = page % busyUntil.length;
+      busyUntil[channel] = Math.max(now, busyUntil[channel]) + perPage;
+      done = Math.max(done, busyUntil[channel]);
+    }
+    return done;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * SectorBuffer.java
+ *
+ * A whole number of sectors in a direct ByteBuffer taken
+ * from a SectorBufferPool. The backends can read and
+ * write it without staging through a heap array.
+ *
+ * Reference counted: get() from the pool hands out one
+ * reference; retain() adds one and release() drops one.
+ * When the last reference goes the memory returns to the
+ * pool, so nobody may touch the buffer after releasing
+ * it. Disk holds its own reference while a request is
+ * queued, so a writer can release right after
+ * startRequest().
+ *
+ * A slice shares the reference count of the buffer it
+ * was cut from.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SectorBuffer{
+  private SectorBufferPool pool;
+  private SectorBuffer root;   // Owner of the count (this unless a slice)
+  private ByteBuffer mem;      // Whole pooled buffer (root only)
+  private ByteBuffer buf;      // Exactly nSectors sectors
+  private int nSectors;
+  private AtomicInteger refs;
+
+  //-------------------------------------------------------
+  // SectorBuffer -- used by SectorBufferPool. One
+  // reference.
+  //-------------------------------------------------------
+  SectorBuffer(SectorBufferPool pool, ByteBuffer mem, int nSectors)
+  {
+    this.pool = pool;
+    this.root = this;
+    this.mem = mem;
+    this.buf = mem.slice(0, nSectors * Disk.SECTOR_SIZE);
+    this.nSectors = nSectors;
+    this.refs = new AtomicInteger(1);
+  }
+
+  private SectorBuffer(SectorBuffer root, ByteBuffer buf, int nSectors)
+  {
+    this.root = root;
+    this.buf = buf;
+    this.nSectors = nSectors;
+  }
+
+  public int getNSectors()
+  {
+    return nSectors;
+  }
+
+  //-------------------------------------------------------
+  // getByteBuffer -- a view of the sectors with its own
+  // position and limit, positioned at 0
+  //-------------------------------------------------------
+  public ByteBuffer getByteBuffer()
+  {
+    checkLive();
+    return buf.duplicate();
+  }
+
+  //-------------------------------------------------------
+  // put/get -- absolute copies to/from byte arrays.
+  // offset is in bytes from the start of this buffer.
+  //-------------------------------------------------------
+  public void put(int offset, byte b[], int off, int len)
+  {
+    checkLive();
+    buf.put(offset, b, off, len);
+  }
+
+  public void get(int offset, byte b[], int off, int len)
+  {
+    checkLive();
+    buf.get(offset, b, off, len);
+  }
+
+  //-------------------------------------------------------
+  // slice -- nSectors sectors starting at firstSector of
+  // this buffer. Holds no reference of its own.
+  //-------------------------------------------------------
+  public SectorBuffer slice(int firstSector, int nSectors)
+  {
+    checkLive();
+    if(firstSector < 0 || nSectors < 1 || firstSector + nSectors > this.nSectors){
+      throw new IndexOutOfBoundsException("Bad slice");
+    }
+    return new SectorBuffer(root,
+                            buf.slice(firstSector * Disk.SECTOR_SIZE,
+                                      nSectors * Disk.SECTOR_SIZE),
+                            nSectors);
+  }
+
+  public SectorBuffer retain()
+  {
+    if(root.refs.getAndIncrement() <= 0){
+      throw new IllegalStateException("Buffer already released");
+    }
+    return this;
+  }
+
+  public void release()
+  {
+    int left = root.refs.decrementAndGet();
+    if(left < 0){
+      throw new IllegalStateException("Buffer already released");
+    }
+    if(left == 0){
+      root.pool.recycle(root.mem);
+    }
+  }
+
+  private void checkLive()
+  {
+    if(root.refs.get() <= 0){
+      throw new IllegalStateException("Buffer already released");
+    }
+  }
+}
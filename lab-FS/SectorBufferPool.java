@@ -0,0 +1,119 @@
+/*
+ * SectorBufferPool.java
+ *
+ * Recycles the direct buffers behind SectorBuffers.
+ * Buffers are kept in power-of-two size classes (in
+ * sectors), so a request for 3 sectors reuses a 4-sector
+ * buffer. Memory beyond maxFreeBytes is left to the GC
+ * rather than pooled.
+ *
+ * SHARED is the pool every layer uses by default, so a
+ * buffer one layer frees can serve the next layer's
+ * request.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+public class SectorBufferPool{
+  public static final int DEFAULT_MAX_FREE_BYTES = 8 * 1024 * 1024;
+  public static final SectorBufferPool SHARED =
+    new SectorBufferPool(DEFAULT_MAX_FREE_BYTES);
+
+  private SimpleLock lock;
+  private HashMap<Integer, ArrayDeque<ByteBuffer>> free; // By capacity
+  private long freeBytes;
+  private long maxFreeBytes;
+  private long allocations;
+
+  public SectorBufferPool(long maxFreeBytes)
+  {
+    this.lock = new SimpleLock();
+    this.free = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    this.freeBytes = 0;
+    this.maxFreeBytes = maxFreeBytes;
+    this.allocations = 0;
+  }
+
+  //-------------------------------------------------------
+  // get -- a buffer of nSectors sectors holding one
+  // reference. Contents are whatever the last user left.
+  //-------------------------------------------------------
+  public SectorBuffer get(int nSectors)
+  {
+    ArrayDeque<ByteBuffer> list;
+    ByteBuffer mem = null;
+    int capacity;
+
+    if(nSectors < 1){
+      throw new IllegalArgumentException("Bad sector count");
+    }
+    capacity = Integer.highestOneBit(nSectors);
+    if(capacity < nSectors){
+      capacity <<= 1;
+    }
+    capacity *= Disk.SECTOR_SIZE;
+    try{
+      lock.lock();
+      list = free.get(capacity);
+      if(list != null && !list.isEmpty()){
+        mem = list.pop();
+        freeBytes -= capacity;
+      }
+      else{
+        allocations++;
+      }
+    }
+    finally{
+      lock.unlock();
+    }
+    if(mem == null){
+      mem = ByteBuffer.allocateDirect(capacity);
+    }
+    return new SectorBuffer(this, mem, nSectors);
+  }
+
+  //-------------------------------------------------------
+  // recycle -- called when the last reference to a
+  // buffer is released
+  //-------------------------------------------------------
+  void recycle(ByteBuffer mem)
+  {
+    ArrayDeque<ByteBuffer> list;
+    try{
+      lock.lock();
+      if(freeBytes + mem.capacity() > maxFreeBytes){
+        return;
+      }
+      list = free.get(mem.capacity());
+      if(list == null){
+        list = new ArrayDeque<ByteBuffer>();
+        free.put(mem.capacity(), list);
+      }
+      list.push(mem);
+      freeBytes += mem.capacity();
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // getAllocations -- direct buffers created so far
+  // (misses)
+  //-------------------------------------------------------
+  public long getAllocations()
+  {
+    try{
+      lock.lock();
+      return allocations;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+}
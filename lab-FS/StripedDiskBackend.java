@@ -0,0 +1,341 @@
+/*
+ * StripedDiskBackend.java
+ *
+ * RAID-0: one sector space spread over several member
+ * backends (usually files on different devices). The
+ * space is cut into stripes of stripeSectors sectors
+ * dealt round robin to the members, so stripe s lives on
+ * member s % N at member stripe s / N.
+ *
+ * Each member has a worker thread of its own. A transfer
+ * that stays inside one member runs in the caller's
+ * thread; one that crosses members is split at stripe
+ * boundaries and the pieces run on the members' workers
+ * at the same time. flush() forces every member in
+ * parallel and returns when all are durable, so a Disk
+ * on top keeps its barrier semantics unchanged. Give
+ * that Disk one DiskWorker per member (see
+ * Disk(DiskCallback, String[], int)) so every member can
+ * be busy at once.
+ *
+ * Capacity is N times the smallest member, rounded down
+ * to whole stripes. There is no redundancy: losing one
+ * member loses the volume.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class StripedDiskBackend implements DiskBackend{
+  private DiskBackend members[];
+  private ExecutorService workers[]; // One thread per member
+  private int stripeSectors;
+  private int numSectors;
+
+  //
+  // One member's part of a split transfer
+  //
+  private interface MemberOp{
+    //
+    // nSectors sectors at memberSector of member; they are
+    // the ones offset sectors into the caller's transfer
+    //
+    public void run(DiskBackend member, int memberSector, int nSectors,
+                    int offset) throws IOException;
+  }
+
+  //-------------------------------------------------------
+  // StripedDiskBackend -- stripe over already open
+  // members. Closing this backend closes them.
+  //-------------------------------------------------------
+  public StripedDiskBackend(DiskBackend members[], int stripeSectors)
+  {
+    long perMember = Long.MAX_VALUE;
+    int ii;
+
+    if(members.length < 1){
+      throw new IllegalArgumentException("No members");
+    }
+    if(stripeSectors < 1){
+      throw new IllegalArgumentException("Bad stripe size");
+    }
+    for(ii = 0; ii < members.length; ii++){
+      perMember = Math.min(perMember, members[ii].getNumSectors());
+    }
+    perMember -= perMember % stripeSectors;
+    if(perMember < 1){
+      throw new IllegalArgumentException("Members smaller than one stripe");
+    }
+    this.members = members.clone();
+    this.stripeSectors = stripeSectors;
+    this.numSectors = (int)Math.min(perMember * members.length,
+                                    Integer.MAX_VALUE);
+    this.workers = new ExecutorService[members.length];
+    for(ii = 0; ii < members.length; ii++){
+      final String name = "StripeMember-" + ii;
+      workers[ii] = Executors.newSingleThreadExecutor(r -> {
+          Thread t = new Thread(r, name);
+          t.setDaemon(true);
+          return t;
+        });
+    }
+  }
+
+  //-------------------------------------------------------
+  // StripedDiskBackend -- one FileDiskBackend per path,
+  // together holding at least numSectors sectors
+  //-------------------------------------------------------
+  public StripedDiskBackend(String paths[], int stripeSectors,
+                            boolean syncEachWrite, int numSectors)
+    throws IOException
+  {
+    this(openMembers(paths, stripeSectors, syncEachWrite, numSectors),
+         stripeSectors);
+  }
+
+  private static DiskBackend[] openMembers(String paths[], int stripeSectors,
+                                           boolean syncEachWrite,
+                                           int numSectors)
+    throws IOException
+  {
+    DiskBackend m[] = new DiskBackend[paths.length];
+    long perMember;
+    int ii;
+
+    if(paths.length < 1 || stripeSectors < 1 || numSectors < 1){
+      throw new IllegalArgumentException("Bad striped disk");
+    }
+    perMember = ((long)numSectors + paths.length - 1) / paths.length;
+    perMember = (perMember + stripeSectors - 1) / stripeSectors * stripeSectors;
+    if(perMember > Integer.MAX_VALUE){
+      throw new IllegalArgumentException("Bad sector count");
+    }
+    for(ii = 0; ii < paths.length; ii++){
+      m[ii] = new FileDiskBackend(paths[ii], syncEachWrite, (int)perMember);
+    }
+    return m;
+  }
+
+  public int getNumMembers()
+  {
+    return members.length;
+  }
+
+  public int getStripeSectors()
+  {
+    return stripeSectors;
+  }
+
+  public int getNumSectors()
+  {
+    return numSectors;
+  }
+
+  public void read(int sectorNum, int nSectors, byte b[])
+    throws IOException
+  {
+    read(sectorNum, ByteBuffer.wrap(b, 0, nSectors * Disk.SECTOR_SIZE));
+  }
+
+  public void write(int sectorNum, int nSectors, byte b[])
+    throws IOException
+  {
+    write(sectorNum, ByteBuffer.wrap(b, 0, nSectors * Disk.SECTOR_SIZE));
+  }
+
+  public void read(int sectorNum, ByteBuffer b)
+    throws IOException
+  {
+    final ByteBuffer base = b;
+    final int start = b.position();
+
+    forEachPiece(sectorNum, b.remaining() / Disk.SECTOR_SIZE,
+                 (member, ms, n, offset) ->
+                 member.read(ms, piece(base, start, offset, n)));
+    b.position(b.limit());
+  }
+
+  public void write(int sectorNum, ByteBuffer b)
+    throws IOException
+  {
+    final ByteBuffer base = b;
+    final int start = b.position();
+
+    forEachPiece(sectorNum, b.remaining() / Disk.SECTOR_SIZE,
+                 (member, ms, n, offset) ->
+                 member.write(ms, piece(base, start, offset, n)));
+    b.position(b.limit());
+  }
+
+  public void discard(int sectorNum, int nSectors)
+    throws IOException
+  {
+    forEachPiece(sectorNum, nSectors,
+                 (member, ms, n, offset) -> member.discard(ms, n));
+  }
+
+  //-------------------------------------------------------
+  // flush -- force all members at the same time
+  //-------------------------------------------------------
+  public void flush()
+    throws IOException
+  {
+    ArrayList<Future<Void>> done = new ArrayList<Future<Void>>();
+    int ii;
+
+    for(ii = 0; ii < members.length; ii++){
+      final DiskBackend m = members[ii];
+      done.add(workers[ii].submit(() -> { m.flush(); return null; }));
+    }
+    waitAll(done);
+  }
+
+  public void close()
+    throws IOException
+  {
+    IOException first = null;
+    int ii;
+
+    for(ii = 0; ii < members.length; ii++){
+      workers[ii].shutdown();
+      try{
+        members[ii].close();
+      }
+      catch(IOException e){
+        if(first == null){
+          first = e;
+        }
+      }
+    }
+    if(first != null){
+      throw first;
+    }
+  }
+
+  //-------------------------------------------------------
+  // forEachPiece -- split [sectorNum, sectorNum+nSectors)
+  // at stripe boundaries and run op on each piece. All
+  // pieces on one member run in order on that member's
+  // worker; different members run concurrently. A
+  // transfer on a single member runs right here.
+  //-------------------------------------------------------
+  private void forEachPiece(int sectorNum, int nSectors, MemberOp op)
+    throws IOException
+  {
+    ArrayList<ArrayList<int[]>> byMember = new ArrayList<ArrayList<int[]>>();
+    ArrayList<Future<Void>> done = new ArrayList<Future<Void>>();
+    int used = 0;
+    int offset = 0;
+    int sector;
+    int stripe;
+    int within;
+    int member;
+    int n;
+    int ii;
+
+    if(sectorNum < 0 || nSectors < 0
+       || (long)sectorNum + nSectors > numSectors){
+      throw new IOException("Sector out of range");
+    }
+    for(ii = 0; ii < members.length; ii++){
+      byMember.add(new ArrayList<int[]>());
+    }
+    while(offset < nSectors){
+      sector = sectorNum + offset;
+      stripe = sector / stripeSectors;
+      within = sector % stripeSectors;
+      n = Math.min(stripeSectors - within, nSectors - offset);
+      member = stripe % members.length;
+      if(byMember.get(member).isEmpty()){
+        used++;
+      }
+      byMember.get(member).add(new int[]{
+          (stripe / members.length) * stripeSectors + within, n, offset });
+      offset += n;
+    }
+    for(ii = 0; ii < members.length; ii++){
+      final DiskBackend m = members[ii];
+      final ArrayList<int[]> pieces = byMember.get(ii);
+      if(pieces.isEmpty()){
+        continue;
+      }
+      if(used == 1){
+        runPieces(m, pieces, op);
+        return;
+      }
+      done.add(workers[ii].submit(() -> {
+            runPieces(m, pieces, op);
+            return null;
+          }));
+    }
+    waitAll(done);
+  }
+
+  private static void runPieces(DiskBackend m, ArrayList<int[]> pieces,
+                                MemberOp op)
+    throws IOException
+  {
+    for(int[] p : pieces){
+      op.run(m, p[0], p[1], p[2]);
+    }
+  }
+
+  //-------------------------------------------------------
+  // piece -- the view of b for nSectors sectors offset
+  // sectors past start, with its own position and limit
+  //-------------------------------------------------------
+  private static ByteBuffer piece(ByteBuffer b, int start, int offset,
+                                  int nSectors)
+  {
+    ByteBuffer v = b.duplicate();
+    v.limit(start + (offset + nSectors) * Disk.SECTOR_SIZE);
+    v.position(start + offset * Disk.SECTOR_SIZE);
+    return v;
+  }
+
+  //-------------------------------------------------------
+  // waitAll -- wait for every piece, even after one
+  // fails, so none is still using the caller's buffer.
+  // Rethrows the first failure.
+  //-------------------------------------------------------
+  private static void waitAll(ArrayList<Future<Void>> done)
+    throws IOException
+  {
+    IOException first = null;
+    boolean interrupted = false;
+
+    for(Future<Void> f : done){
+      while(true){
+        try{
+          f.get();
+          break;
+        }
+        catch(InterruptedException e){
+          interrupted = true;
+        }
+        catch(ExecutionException e){
+          if(first == null){
+            first = e.getCause() instanceof IOException
+              ? (IOException)e.getCause()
+              : new IOException(e.getCause());
+          }
+          break;
+        }
+      }
+    }
+    if(interrupted){
+      Thread.currentThread().interrupt();
+    }
+    if(first != null){
+      throw first;
+    }
+  }
+}
@@ -0,0 +1,676 @@
+/*
+ * TieredDiskBackend.java
+ *
+ * A small RAM tier of hot sectors in front of another
+ * backend (usually a file), for metadata such as the
+ * PTree bitmaps and tnode table, indirect blocks and the
+ * ADisk log status sector: a few hundred sectors that
+ * take most of the reads on a volume many times their
+ * size.
+ *
+ * The lower backend is authoritative. A write to a
+ * sector held in RAM is absorbed there and written down
+ * at the next flush() (Disk flushes when a barrier
+ * retires, after a durable write, and before a request
+ * whose dependencies wrote), so a flush still makes every
+ * completed write durable, and a sector rewritten
+ * between flushes goes down once. Other writes go
+ * straight through. flush() copies the dirty sectors
+ * out under the lock and writes them down without it,
+ * one transfer per run of consecutive sectors; a sector
+ * on its way down is not evicted, so any later write to
+ * it is absorbed rather than racing the old data down.
+ *
+ * Which sectors are held is decided by access count,
+ * LFU with aging:
+ *
+ *  -- every read or write of a sector counts
+ *  -- a sector not held is promoted once it has been
+ *     accessed PROMOTE_MIN times, evicting the held
+ *     sector with the lowest count if the tier is full
+ *     and that count is lower still (a dirty victim is
+ *     written down first)
+ *  -- every AGING_FACTOR * capacity accesses all counts
+ *     are halved, so yesterday's hot sectors cool off
+ *
+ * A read promotes a sector with the data it just read
+ * below, unless that sector was written (down, or into
+ * RAM) while the read was below, or was still going down
+ * when it started; such data may be old, and the sector
+ * is simply tried again next time. A sector promoted by
+ * someone else meanwhile keeps the copy it has.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class TieredDiskBackend implements DiskBackend{
+  public static final int PROMOTE_MIN = 2;
+  public static final int AGING_FACTOR = 8;
+
+  //
+  // A sector held in RAM, at slot index of ram. storing
+  // while flush() writes it down; it is not evicted then.
+  //
+  private static class Slot{
+    int sector;
+    int index;
+    int count;
+    boolean dirty;
+    boolean storing;
+    Slot(int sector, int index, int count){
+      this.sector = sector;
+      this.index = index;
+      this.count = count;
+      this.dirty = false;
+      this.storing = false;
+    }
+  }
+
+  //
+  // Sectors first..first+n-1 being read from below;
+  // stale[ii] once first+ii is written meanwhile
+  //
+  private static class Fetch{
+    int first;
+    int n;
+    boolean stale[];
+    Fetch(int first, int n){
+      this.first = first;
+      this.n = n;
+      this.stale = new boolean[n];
+    }
+  }
+
+  //
+  // Sectors first..first+n-1 being written below: a
+  // write that missed the tier, or (with data and slots)
+  // a run of dirty sectors flush() copied out
+  //
+  private static class Store{
+    int first;
+    int n;
+    ByteBuffer data;
+    ArrayList<Slot> slots;
+    Store(int first, int n){
+      this.first = first;
+      this.n = n;
+      this.data = null;
+      this.slots = null;
+    }
+  }
+
+  private DiskBackend lower;
+  private int capacity;                 // Sectors
+  private ByteBuffer ram;
+  private SimpleLock lock;
+  private HashMap<Integer, Slot> held;  // By sector
+  private TreeSet<Slot> coldest;        // Held, by count then sector
+  private ArrayList<Integer> freeSlots;
+  private HashMap<Integer, Integer> counts; // Of sectors not held
+  private long accesses;                // Since counts were last halved
+  private ArrayList<Fetch> fetches;     // Reads below in progress
+  private ArrayList<Store> stores;      // Writes below in progress
+  private long hits;
+  private long misses;
+  private long promotions;
+
+  //-------------------------------------------------------
+  // TieredDiskBackend -- hold up to capacity sectors of
+  // lower in RAM
+  //-------------------------------------------------------
+  public TieredDiskBackend(DiskBackend lower, int capacity)
+  {
+    int ii;
+
+    if(capacity < 1 || (long)capacity * Disk.SECTOR_SIZE > Integer.MAX_VALUE){
+      throw new IllegalArgumentException("Bad capacity");
+    }
+    this.lower = lower;
+    this.capacity = capacity;
+    this.ram = ByteBuffer.allocate(capacity * Disk.SECTOR_SIZE);
+    this.lock = new SimpleLock();
+    this.held = new HashMap<Integer, Slot>();
+    this.coldest = new TreeSet<Slot>((a, b) -> a.count != b.count
+                                     ? Integer.compare(a.count, b.count)
+                                     : Integer.compare(a.sector, b.sector));
+    this.freeSlots = new ArrayList<Integer>();
+    for(ii = capacity - 1; ii >= 0; ii--){
+      freeSlots.add(ii);
+    }
+    this.counts = new HashMap<Integer, Integer>();
+    this.accesses = 0;
+    this.fetches = new ArrayList<Fetch>();
+    this.stores = new ArrayList<Store>();
+    this.hits = 0;
+    this.misses = 0;
+    this.promotions = 0;
+  }
+
+  public int getNumSectors()
+  {
+    return lower.getNumSectors();
+  }
+
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  //-------------------------------------------------------
+  // isHeld -- true if sector is in RAM now
+  //-------------------------------------------------------
+  public boolean isHeld(int sector)
+  {
+    try{
+      lock.lock();
+      return held.containsKey(sector);
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // getHits/getMisses -- sectors read from RAM and from
+  // the lower backend; getPromotions -- sectors brought
+  // into RAM
+  //-------------------------------------------------------
+  public long getHits()
+  {
+    try{
+      lock.lock();
+      return hits;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  public long getMisses()
+  {
+    try{
+      lock.lock();
+      return misses;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  public long getPromotions()
+  {
+    try{
+      lock.lock();
+      return promotions;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  public void read(int sectorNum, int nSectors, byte b[])
+    throws IOException
+  {
+    read(sectorNum, ByteBuffer.wrap(b, 0, nSectors * Disk.SECTOR_SIZE));
+  }
+
+  public void write(int sectorNum, int nSectors, byte b[])
+    throws IOException
+  {
+    write(sectorNum, ByteBuffer.wrap(b, 0, nSectors * Disk.SECTOR_SIZE));
+  }
+
+  //-------------------------------------------------------
+  // read -- held sectors from RAM, runs of the rest from
+  // below; then count the ones read below and promote
+  // those that have earned it
+  //-------------------------------------------------------
+  public void read(int sectorNum, ByteBuffer b)
+    throws IOException
+  {
+    int base = b.position();
+    int n = b.remaining() / Disk.SECTOR_SIZE;
+    boolean fromBelow[] = new boolean[n];
+    Fetch fetch = new Fetch(sectorNum, n);
+    boolean ok = false;
+    Slot slot;
+    int ii, run;
+
+    try{
+      lock.lock();
+      for(ii = 0; ii < n; ii++){
+        slot = held.get(sectorNum + ii);
+        if(slot == null){
+          fromBelow[ii] = true;
+          continue;
+        }
+        copy(ram, slot.index * Disk.SECTOR_SIZE, b, base + ii * Disk.SECTOR_SIZE);
+        touch(slot);
+        hits++;
+      }
+      for(Store s : stores){
+        for(ii = Math.max(s.first, sectorNum); ii < Math.min(s.first + s.n, sectorNum + n); ii++){
+          fetch.stale[ii - sectorNum] = true;
+        }
+      }
+      fetches.add(fetch);
+    }
+    finally{
+      lock.unlock();
+    }
+
+    try{
+      for(ii = 0; ii < n; ii = run){
+        for(run = ii; run < n && fromBelow[run]; run++){
+        }
+        if(run > ii){
+          lower.read(sectorNum + ii, sectorRange(b, base, ii, run - ii));
+        }
+        else{
+          run++;
+        }
+      }
+      ok = true;
+    }
+    finally{
+      try{
+        lock.lock();
+        fetches.remove(fetch);
+        for(ii = 0; ok && ii < n; ii++){
+          if(!fromBelow[ii]){
+            continue;
+          }
+          misses++;
+          slot = held.get(sectorNum + ii);
+          if(slot != null){
+            touch(slot);
+          }
+          else if(count(sectorNum + ii) && !fetch.stale[ii]){
+            promote(sectorNum + ii, b, base + ii * Disk.SECTOR_SIZE);
+          }
+        }
+      }
+      finally{
+        lock.unlock();
+      }
+    }
+    b.position(base + n * Disk.SECTOR_SIZE);
+  }
+
+  //-------------------------------------------------------
+  // write -- into RAM for sectors that are (or now get)
+  // held, straight down for the rest
+  //-------------------------------------------------------
+  public void write(int sectorNum, ByteBuffer b)
+    throws IOException
+  {
+    int base = b.position();
+    int n = b.remaining() / Disk.SECTOR_SIZE;
+    boolean toBelow[] = new boolean[n];
+    Store store = null;
+    Slot slot;
+    int ii, run;
+
+    try{
+      lock.lock();
+      written(sectorNum, n);
+      for(ii = 0; ii < n; ii++){
+        slot = held.get(sectorNum + ii);
+        if(slot == null && count(sectorNum + ii)){
+          slot = promote(sectorNum + ii, null, 0);
+        }
+        if(slot == null){
+          toBelow[ii] = true;
+          continue;
+        }
+        copy(b, base + ii * Disk.SECTOR_SIZE, ram, slot.index * Disk.SECTOR_SIZE);
+        slot.dirty = true;
+        touch(slot);
+      }
+      for(ii = 0; ii < n && store == null; ii++){
+        if(toBelow[ii]){
+          store = new Store(sectorNum, n);
+          stores.add(store);
+        }
+      }
+    }
+    finally{
+      lock.unlock();
+    }
+    if(store == null){
+      b.position(base + n * Disk.SECTOR_SIZE);
+      return;
+    }
+
+    try{
+      for(ii = 0; ii < n; ii = run){
+        for(run = ii; run < n && toBelow[run]; run++){
+        }
+        if(run > ii){
+          lower.write(sectorNum + ii, sectorRange(b, base, ii, run - ii));
+        }
+        else{
+          run++;
+        }
+      }
+    }
+    finally{
+      try{
+        lock.lock();
+        stores.remove(store);
+      }
+      finally{
+        lock.unlock();
+      }
+    }
+    b.position(base + n * Disk.SECTOR_SIZE);
+  }
+
+  //-------------------------------------------------------
+  // discard -- held copies go without being written down.
+  // Not while flush() is writing down (a copy it took
+  // could land after a write that follows the discard).
+  //-------------------------------------------------------
+  public synchronized void discard(int sectorNum, int nSectors)
+    throws IOException
+  {
+    Slot slot;
+    int ii;
+
+    try{
+      lock.lock();
+      written(sectorNum, nSectors);
+      for(ii = sectorNum; ii < sectorNum + nSectors; ii++){
+        slot = held.remove(ii);
+        if(slot != null){
+          coldest.remove(slot);
+          freeSlots.add(slot.index);
+        }
+        counts.remove(ii);
+      }
+    }
+    finally{
+      lock.unlock();
+    }
+    lower.discard(sectorNum, nSectors);
+  }
+
+  //-------------------------------------------------------
+  // flush -- write the dirty held sectors down, then
+  // flush below. Writes that complete while this runs
+  // need not be covered. The sectors are copied out
+  // under the lock and written without it, so reads and
+  // writes go on meanwhile. Flushes run one at a time, so
+  // none returns before the writes it found are down.
+  //-------------------------------------------------------
+  public synchronized void flush()
+    throws IOException
+  {
+    ArrayList<Store> runs;
+    boolean ok = false;
+
+    try{
+      lock.lock();
+      runs = dirtyRuns();
+    }
+    finally{
+      lock.unlock();
+    }
+
+    try{
+      for(Store s : runs){
+        lower.write(s.first, s.data);
+      }
+      ok = true;
+    }
+    finally{
+      try{
+        lock.lock();
+        for(Store s : runs){
+          stores.remove(s);
+          for(Slot slot : s.slots){
+            slot.storing = false;
+            if(!ok && held.get(slot.sector) == slot){
+              slot.dirty = true;
+            }
+          }
+        }
+      }
+      finally{
+        lock.unlock();
+      }
+    }
+    lower.flush();
+  }
+
+  public void close()
+    throws IOException
+  {
+    flush();
+    lower.close();
+  }
+
+  //-------------------------------------------------------
+  // dirtyRuns -- copy the dirty held sectors out, one
+  // Store per run of consecutive sectors, and mark them
+  // clean and storing. Caller holds lock.
+  //-------------------------------------------------------
+  private ArrayList<Store> dirtyRuns()
+  {
+    TreeMap<Integer, Slot> dirty = new TreeMap<Integer, Slot>();
+    ArrayList<Store> runs = new ArrayList<Store>();
+    Store s = null;
+
+    for(Slot slot : held.values()){
+      if(slot.dirty){
+        dirty.put(slot.sector, slot);
+      }
+    }
+    for(Slot slot : dirty.values()){
+      if(s == null || slot.sector != s.first + s.n){
+        s = new Store(slot.sector, 0);
+        s.slots = new ArrayList<Slot>();
+        runs.add(s);
+      }
+      s.n++;
+      s.slots.add(slot);
+    }
+    for(Store r : runs){
+      r.data = ByteBuffer.allocate(r.n * Disk.SECTOR_SIZE);
+      for(Slot slot : r.slots){
+        copy(ram, slot.index * Disk.SECTOR_SIZE, r.data, r.data.position());
+        r.data.position(r.data.position() + Disk.SECTOR_SIZE);
+        slot.dirty = false;
+        slot.storing = true;
+      }
+      r.data.flip();
+      written(r.first, r.n);
+      stores.add(r);
+    }
+    return runs;
+  }
+
+  //-------------------------------------------------------
+  // written -- sectors first..first+n-1 are changing; a
+  // read below of any of them in progress may have old
+  // data. Caller holds lock.
+  //-------------------------------------------------------
+  private void written(int first, int n)
+  {
+    int ii;
+
+    for(Fetch f : fetches){
+      for(ii = Math.max(f.first, first); ii < Math.min(f.first + f.n, first + n); ii++){
+        f.stale[ii - f.first] = true;
+      }
+    }
+  }
+
+  //-------------------------------------------------------
+  // count -- one more access to sector, which is not
+  // held; true if it should be promoted now. Caller holds
+  // lock.
+  //-------------------------------------------------------
+  private boolean count(int sector)
+  {
+    Integer c = counts.get(sector);
+    int n = c == null ? 1 : c + 1;
+    Slot victim;
+
+    counts.put(sector, n);
+    age();
+    if(n < PROMOTE_MIN){
+      return false;
+    }
+    if(held.size() < capacity){
+      return true;
+    }
+    victim = victim();
+    return victim != null && victim.count < n;
+  }
+
+  //-------------------------------------------------------
+  // victim -- the coldest held sector that is not on its
+  // way down, or null. Caller holds lock.
+  //-------------------------------------------------------
+  private Slot victim()
+  {
+    for(Slot slot : coldest){
+      if(!slot.storing){
+        return slot;
+      }
+    }
+    return null;
+  }
+
+  //-------------------------------------------------------
+  // touch -- one more access to held slot. Caller holds
+  // lock.
+  //-------------------------------------------------------
+  private void touch(Slot slot)
+  {
+    coldest.remove(slot);
+    slot.count++;
+    coldest.add(slot);
+    age();
+  }
+
+  //-------------------------------------------------------
+  // promote -- hold sector, evicting the coldest sector
+  // if full, with the data at src[at] (or, for a write
+  // about to fill it, none yet). A sector already held
+  // keeps its slot and data. Caller holds lock.
+  //-------------------------------------------------------
+  private Slot promote(int sector, ByteBuffer src, int at)
+    throws IOException
+  {
+    Slot victim;
+    Slot slot;
+    Integer c;
+
+    slot = held.get(sector);
+    if(slot != null){
+      return slot;
+    }
+    if(held.size() >= capacity){
+      victim = victim();
+      if(victim == null){
+        return null;
+      }
+      if(victim.dirty){
+        writeDown(victim);
+      }
+      coldest.remove(victim);
+      held.remove(victim.sector);
+      freeSlots.add(victim.index);
+      counts.put(victim.sector, victim.count);
+    }
+    c = counts.remove(sector);
+    slot = new Slot(sector, freeSlots.remove(freeSlots.size() - 1),
+                    c == null ? 1 : c);
+    if(src != null){
+      copy(src, at, ram, slot.index * Disk.SECTOR_SIZE);
+    }
+    held.put(sector, slot);
+    coldest.add(slot);
+    promotions++;
+    return slot;
+  }
+
+  //-------------------------------------------------------
+  // age -- halve every count once enough accesses have
+  // gone by, forgetting sectors that reach 0. Caller
+  // holds lock.
+  //-------------------------------------------------------
+  private void age()
+  {
+    Iterator<Map.Entry<Integer, Integer>> it;
+    Map.Entry<Integer, Integer> e;
+
+    accesses++;
+    if(accesses < (long)AGING_FACTOR * capacity){
+      return;
+    }
+    accesses = 0;
+    it = counts.entrySet().iterator();
+    while(it.hasNext()){
+      e = it.next();
+      if(e.getValue() / 2 == 0){
+        it.remove();
+      }
+      else{
+        e.setValue(e.getValue() / 2);
+      }
+    }
+    // Halving can reorder ties; rebuild
+    coldest.clear();
+    for(Slot slot : held.values()){
+      slot.count /= 2;
+      coldest.add(slot);
+    }
+  }
+
+  //-------------------------------------------------------
+  // writeDown -- copy a dirty victim to the lower backend
+  // as it is evicted: one sector, and the sector has to
+  // be down before its slot is reused. Caller holds lock.
+  //-------------------------------------------------------
+  private void writeDown(Slot slot)
+    throws IOException
+  {
+    ByteBuffer b = ram.duplicate();
+    b.limit((slot.index + 1) * Disk.SECTOR_SIZE);
+    b.position(slot.index * Disk.SECTOR_SIZE);
+    written(slot.sector, 1);
+    lower.write(slot.sector, b);
+    slot.dirty = false;
+  }
+
+  //-------------------------------------------------------
+  // sectorRange -- a view of nSectors sectors of b,
+  // starting first sectors after base
+  //-------------------------------------------------------
+  private static ByteBuffer sectorRange(ByteBuffer b, int base, int first,
+                                        int nSectors)
+  {
+    ByteBuffer r = b.duplicate();
+    r.limit(base + (first + nSectors) * Disk.SECTOR_SIZE);
+    r.position(base + first * Disk.SECTOR_SIZE);
+    return r;
+  }
+
+  private static void copy(ByteBuffer src, int from, ByteBuffer dst, int to)
+  {
+    dst.put(to, src, from, Disk.SECTOR_SIZE);
+  }
+}
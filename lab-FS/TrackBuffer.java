@@ -0,0 +1,209 @@
+/*
+ * TrackBuffer.java
+ *
+ * Read-ahead for Disk, off unless turned on with
+ * Disk.setReadAhead(). When a READ starts where the last
+ * one ended, the DiskWorker fetches a whole window
+ * (Disk.READ_AHEAD_SECTORS for ADisk) in one backend
+ * transfer and parks it here; later reads that fall
+ * inside the window are copied out of it without going
+ * to the backend or the device model. ADisk recovery
+ * and FlatFS both read one sector per round trip, which
+ * this turns into one transfer per window.
+ *
+ * Coherence: a DiskWorker calls invalidate() after every
+ * WRITE or DISCARD reaches the backend and before its
+ * callback, so a read issued after a write completes
+ * never sees older data. A fill that was reading the
+ * backend while an overlapping write finished is marked
+ * stale and thrown away rather than installed.
+ *
+ * You must follow the coding standards distributed
+ * on the class web page.
+ *
+ */
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+public class TrackBuffer{
+  //
+  // A window being read from the backend
+  //
+  static class Fill{
+    int first;
+    int nSectors;
+    boolean stale;
+    Fill(int first, int nSectors){
+      this.first = first;
+      this.nSectors = nSectors;
+      this.stale = false;
+    }
+  }
+
+  private SimpleLock lock;
+  private int windowSectors;
+  private int numSectors;
+  private ByteBuffer data;        // windowSectors sectors
+  private int first;              // Sectors held: [first, first + valid)
+  private int valid;
+  private int nextSector;         // Where a sequential read would start
+  private ArrayList<Fill> filling;
+  private long hits;
+  private long fills;
+
+  public TrackBuffer(int windowSectors, int numSectors)
+  {
+    if(windowSectors < 1){
+      throw new IllegalArgumentException("Bad window");
+    }
+    this.lock = new SimpleLock();
+    this.windowSectors = windowSectors;
+    this.numSectors = numSectors;
+    this.data = ByteBuffer.allocateDirect(windowSectors * Disk.SECTOR_SIZE);
+    this.first = 0;
+    this.valid = 0;
+    this.nextSector = -1;
+    this.filling = new ArrayList<Fill>();
+    this.hits = 0;
+    this.fills = 0;
+  }
+
+  public int getWindowSectors()
+  {
+    return windowSectors;
+  }
+
+  //-------------------------------------------------------
+  // read -- copy nSectors sectors at sectorNum into dst
+  // (from its position) if the window holds all of them.
+  // Returns false, and leaves dst alone, otherwise.
+  //-------------------------------------------------------
+  public boolean read(int sectorNum, int nSectors, ByteBuffer dst)
+  {
+    ByteBuffer src;
+    try{
+      lock.lock();
+      if(sectorNum < first || sectorNum + nSectors > first + valid){
+        return false;
+      }
+      nextSector = sectorNum + nSectors;
+      src = data.duplicate();
+      src.limit((sectorNum - first + nSectors) * Disk.SECTOR_SIZE);
+      src.position((sectorNum - first) * Disk.SECTOR_SIZE);
+      dst.put(src);
+      hits++;
+      return true;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // startFill -- after read() missed: if the read
+  // continues the last one and is shorter than a window,
+  // the window to fetch instead (starting at sectorNum).
+  // null means just read what was asked.
+  //-------------------------------------------------------
+  Fill startFill(int sectorNum, int nSectors)
+  {
+    Fill f;
+    boolean sequential;
+    try{
+      lock.lock();
+      sequential = sectorNum == nextSector;
+      nextSector = sectorNum + nSectors;
+      if(!sequential || nSectors >= windowSectors){
+        return null;
+      }
+      f = new Fill(sectorNum, Math.min(windowSectors, numSectors - sectorNum));
+      if(f.nSectors <= nSectors){
+        return null;
+      }
+      filling.add(f);
+      return f;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // endFill -- src holds f's sectors, or null if the
+  // backend read failed. Installed unless a write
+  // overlapped it meanwhile.
+  //-------------------------------------------------------
+  void endFill(Fill f, ByteBuffer src)
+  {
+    try{
+      lock.lock();
+      filling.remove(f);
+      if(src == null || f.stale){
+        return;
+      }
+      data.clear();
+      data.put(src.duplicate());
+      first = f.first;
+      valid = f.nSectors;
+      fills++;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // invalidate -- sectors [sectorNum, sectorNum+nSectors)
+  // have changed on the backend
+  //-------------------------------------------------------
+  public void invalidate(int sectorNum, int nSectors)
+  {
+    try{
+      lock.lock();
+      if(overlaps(sectorNum, nSectors, first, valid)){
+        valid = 0;
+      }
+      for(Fill f : filling){
+        if(overlaps(sectorNum, nSectors, f.first, f.nSectors)){
+          f.stale = true;
+        }
+      }
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // getHits -- reads served from the window
+  //-------------------------------------------------------
+  public long getHits()
+  {
+    try{
+      lock.lock();
+      return hits;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  //-------------------------------------------------------
+  // getFills -- windows fetched and installed
+  //-------------------------------------------------------
+  public long getFills()
+  {
+    try{
+      lock.lock();
+      return fills;
+    }
+    finally{
+      lock.unlock();
+    }
+  }
+
+  private static boolean overlaps(int a, int na, int b, int nb)
+  {
+    return a < b + nb && b < a + na;
+  }
+}
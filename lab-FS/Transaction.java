@@ -13,9 +13,11 @@
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.zip.CRC32;
 
 import java.util.logging.ConsoleHandler;
@@ -40,6 +42,8 @@ public class Transaction {
     private int status;
     private LinkedList<Integer> sectorNumList;
     private LinkedHashMap<Integer, byte[]> sectorWriteRecords;
+    // 事务释放的扇区范围{起点, 扇区数}，提交后discard，不写入日志
+    private LinkedList<int[]> discardList;
 
 
     private SimpleLock lock;
@@ -53,6 +57,7 @@ public class Transaction {
         status = INPROGRESS;
         sectorNumList = new LinkedList<>();
         sectorWriteRecords = new LinkedHashMap<>();
+        discardList = new LinkedList<>();
 
         // 设置日志级别为 FINE，用于调试信息输出
         LOGGER.setLevel(Level.WARNING);
@@ -71,6 +76,7 @@ public class Transaction {
         status = INPROGRESS;
         sectorNumList = new LinkedList<>();
         sectorWriteRecords = new LinkedHashMap<>();
+        discardList = new LinkedList<>();
 
         // 设置日志级别为 FINE，用于调试信息输出
         LOGGER.setLevel(Level.FINE);
@@ -91,13 +97,15 @@ public class Transaction {
         this.status = header.status;
         this.sectorNumList = header.sectorNumList;
         this.sectorWriteRecords = sectorWriteRecords;
+        this.discardList = new LinkedList<>();
         this.lock = new SimpleLock();
     }
 
     public void addWrite(int sectorNum, byte buffer[])
             throws IllegalArgumentException,
             IndexOutOfBoundsException {
-        Common.checkSectorNum(sectorNum, 0, Disk.NUM_OF_SECTORS);
+        // 上界由ADisk按卷大小检查
+        Common.checkSectorNum(sectorNum, 0, Integer.MAX_VALUE);
         Common.checkBuffer(buffer, 1);
 
         try {
@@ -113,6 +121,48 @@ public class Transaction {
         }
     }
 
+    // 记录事务不再使用的扇区，提交后才会discard；abort时直接丢弃
+    public void addDiscard(int firstSector, int nSectors)
+            throws IndexOutOfBoundsException {
+        Common.checkSectorNum(firstSector, 0, Integer.MAX_VALUE);
+        if (nSectors < 1) {
+            throw new IndexOutOfBoundsException("Bad sector count");
+        }
+
+        try {
+            lock.lock();
+            discardList.add(new int[] { firstSector, nSectors });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 按起点排序并合并相邻/重叠的范围，一个范围对应一个DISCARD请求
+    public List<int[]> getDiscards() {
+        ArrayList<int[]> ranges = new ArrayList<>();
+
+        try {
+            lock.lock();
+            for (int[] range : discardList) {
+                ranges.add(range.clone());
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+        ArrayList<int[]> merged = new ArrayList<>();
+        for (int[] range : ranges) {
+            int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && (long) last[0] + last[1] >= range[0]) {
+                last[1] = (int) Math.max((long) last[0] + last[1], (long) range[0] + range[1]) - last[0];
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
     //
     // Return true if this transaction has written the specified
     // sector; in that case update buffer[] with the written value.
@@ -121,7 +171,8 @@ public class Transaction {
     public boolean checkRead(int sectorNum, byte buffer[])
             throws IllegalArgumentException,
             IndexOutOfBoundsException {
-        Common.checkSectorNum(sectorNum, 0, Disk.NUM_OF_SECTORS);
+        // 上界由ADisk按卷大小检查
+        Common.checkSectorNum(sectorNum, 0, Integer.MAX_VALUE);
         Common.checkBuffer(buffer, 1);
 
         boolean ret = false;
@@ -85,7 +85,8 @@ public class WriteBackList{
     throws IllegalArgumentException, 
            IndexOutOfBoundsException
     {
-        Common.checkSectorNum(secNum, 0, Disk.NUM_OF_SECTORS);
+        // 上界由ADisk按卷大小检查
+        Common.checkSectorNum(secNum, 0, Integer.MAX_VALUE);
         Common.checkBuffer(buffer, 1);
         boolean ret = false;
 